@@ -0,0 +1,112 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск по индексу из documents писем: редкое слово, частое слово и запрос с фильтром по приоритету.
+ * Письма собираются из словаря в VOCABULARY слов с неравномерной частотой, как в настоящей почте:
+ * деловые слова в начале словаря встречаются почти в каждом письме, остальные — редко.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class MailSearchBenchmark {
+
+    private static final String[] WORDS = ("договор счёт оплата поставка график встреча отчёт проект задача срок "
+            + "клиент заказ склад доставка акт сверка бюджет квартал презентация согласование релиз ошибка "
+            + "сервер доступ пароль отпуск командировка собеседование премия налог аудит").split(" ");
+
+    private static final String[] PRIORITIES = {"high", "medium", "low"};
+
+    private static final int VOCABULARY = 50_000;
+
+    @Param({"100000", "300000"})
+    public int documents;
+
+    private MailSearchIndex index;
+    private String[] vocabulary;
+
+    @Setup
+    public void setUp() {
+        index = new MailSearchIndex(documents);
+        Random random = new Random(42);
+        vocabulary = new String[VOCABULARY];
+        System.arraycopy(WORDS, 0, vocabulary, 0, WORDS.length);
+        for (int i = WORDS.length; i < VOCABULARY; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int j = 5 + random.nextInt(5); j > 0; j--) {
+                word.append((char) ('а' + random.nextInt(32)));
+            }
+            vocabulary[i] = word.toString();
+        }
+        List<EmailMessage> batch = new ArrayList<>(1000);
+        for (int uid = 1; uid <= documents; uid++) {
+            EmailMessage email = new EmailMessage();
+            email.setUid((long) uid);
+            email.setAccount("work");
+            email.setFolder("INBOX");
+            email.setFrom("sender" + random.nextInt(500) + "@example.com");
+            email.setSubject(sentence(random, 5) + " №" + uid);
+            email.setBody(sentence(random, 60));
+            email.setAiAnalysis("{\"summary\":\"" + sentence(random, 12) + "\",\"intent\":\"" + word(random)
+                    + "\",\"priority\":\"" + PRIORITIES[random.nextInt(PRIORITIES.length)] + "\"}");
+            batch.add(email);
+            if (batch.size() == 1000) {
+                index.index(batch);
+                batch.clear();
+            }
+        }
+        index.index(batch);
+    }
+
+    @Benchmark
+    public MailSearchIndex.SearchResult rareTerm() {
+        return index.search("аудит налог", null, null, null, null, 20);
+    }
+
+    @Benchmark
+    public MailSearchIndex.SearchResult frequentTerm() {
+        return index.search("договор", null, null, null, null, 20);
+    }
+
+    @Benchmark
+    public MailSearchIndex.SearchResult filteredByPriority() {
+        return index.search("оплата счёт", "high", null, null, null, 20);
+    }
+
+    private String sentence(Random random, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(word(random)).append(' ');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Первые слова словаря встречаются гораздо чаще последних (примерно по Ципфу)
+     */
+    private String word(Random random) {
+        double rank = Math.pow(random.nextDouble(), 4);
+        return vocabulary[(int) (rank * vocabulary.length)];
+    }
+}
@@ -0,0 +1,104 @@
+package normalno.service;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Извлечение текста из письма: разбор MIME из байтов и MessageBodyReader на корпусе src/jmh/resources/eml.
+ * Письмо разбирается заново в каждой операции, как после FETCH с сервера.
+ * previewBytes: 16384 — окно с частичной загрузкой (по умолчанию), 0 — полный текст.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageBodyBenchmark {
+
+    // Вложение генерируется при запуске, чтобы не хранить мегабайты в репозитории
+    private static final int LARGE_ATTACHMENT_BYTES = 5 * 1024 * 1024;
+
+    @Param({"plain", "alternative", "html-only", "nested", "large-attachment"})
+    public String fixture;
+
+    @Param({"16384", "0"})
+    public int previewBytes;
+
+    private Session session;
+    private byte[] raw;
+    private MessageBodyReader reader;
+
+    @Setup
+    public void setUp() throws Exception {
+        session = Session.getInstance(new Properties());
+        raw = fixture.equals("large-attachment") ? largeAttachment() : readFixture(fixture);
+        reader = new MessageBodyReader(previewBytes);
+    }
+
+    @Benchmark
+    public String extractBody() throws Exception {
+        MimeMessage message = new MimeMessage(session, new ByteArrayInputStream(raw));
+        return reader.readPreview(null, message).text();
+    }
+
+    private static byte[] readFixture(String name) throws IOException {
+        try (InputStream in = MessageBodyBenchmark.class.getResourceAsStream("/eml/" + name + ".eml")) {
+            if (in == null) {
+                throw new IllegalStateException("Нет файла eml/" + name + ".eml");
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Короткое письмо с архивом на 5 МБ: текст должен читаться, не декодируя вложение
+     */
+    private byte[] largeAttachment() throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom("Отдел кадров <hr@corp.example.org>");
+        message.setRecipients(MimeMessage.RecipientType.TO, "ivan@example.ru");
+        message.setSubject("Документы для оформления отпуска", "UTF-8");
+
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Иван, добрый день!\n\nВо вложении архив с бланками заявления и графиком отпусков. "
+                + "Заполненное заявление нужно вернуть до 1 ноября.\n\n--\nОтдел кадров", "UTF-8");
+        byte[] archive = new byte[LARGE_ATTACHMENT_BYTES];
+        new Random(42).nextBytes(archive);
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setContent(archive, "application/zip");
+        attachment.setFileName("documents.zip");
+        attachment.setDisposition(MimeBodyPart.ATTACHMENT);
+
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(attachment);
+        message.setContent(multipart);
+        message.saveChanges();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(LARGE_ATTACHMENT_BYTES * 4 / 3 + 4096);
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,73 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+import normalno.util.EmailBodyPreprocessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сборка промпта одного письма (String.format в AiService) и подготовка текста перед ней.
+ * body: short — пара абзацев, long — длинная переписка с цитатами и подписью.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PromptBuildBenchmark {
+
+    private static final String PARAGRAPH = "Добрый день! Направляем обновлённый график поставок на ноябрь. "
+            + "Просим подтвердить даты до пятницы, иначе склад не сможет зарезервировать окна разгрузки.\n";
+
+    @Param({"short", "long"})
+    public String body;
+
+    private EmailMessage email;
+    private EmailBodyPreprocessor preprocessor;
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder(PARAGRAPH).append(PARAGRAPH);
+        if (body.equals("long")) {
+            for (int i = 0; i < 40; i++) {
+                text.append("\nOn Mon, 13 Oct 2025 at 10:").append(10 + i).append(", Logistics wrote:\n");
+                text.append("> ").append(PARAGRAPH).append("> ").append(PARAGRAPH);
+            }
+            text.append("\n--\nС уважением,\nОтдел логистики\n+7 (495) 000-00-00\n");
+        }
+        email = new EmailMessage();
+        email.setFrom("Отдел логистики <logistics@example.org>");
+        email.setTo("ivan@example.ru");
+        email.setSubject("Re: График поставок на ноябрь");
+        email.setBody(text.toString());
+        preprocessor = new EmailBodyPreprocessor();
+    }
+
+    @Benchmark
+    public String buildPrompt() {
+        return AiService.buildPrompt(email);
+    }
+
+    /**
+     * Полный путь копии для модели: очистка текста и сборка промпта
+     */
+    @Benchmark
+    public String prepareAndBuildPrompt() {
+        EmailMessage prompt = email.copy();
+        prompt.setBody(preprocessor.prepare(email.getBody()));
+        return AiService.buildPrompt(prompt);
+    }
+}
@@ -0,0 +1,76 @@
+package normalno.util;
+
+import normalno.EmailMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор и форматирование ответа модели — выполняется для каждого письма при каждой отрисовке окна.
+ * response: clean — чистый JSON, fenced — JSON в блоке ```json с пояснением, broken — ответ не JSON.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AiAnalysisFormatterBenchmark {
+
+    private static final String ANALYSIS = """
+            {
+              "summary": "Бухгалтерия хостинга направила счёт № 4561 за октябрь на 12 400 рублей. Оплатить нужно до 25 октября. Реквизиты в личном кабинете.",
+              "intent": "Запрос на оплату счёта",
+              "tone": "Нейтральная, официальная",
+              "priority": "Высокий — срок оплаты через 10 дней",
+              "action": "Оплатить счёт до 25 октября или переслать в бухгалтерию"
+            }""";
+
+    @Param({"clean", "fenced", "broken"})
+    public String response;
+
+    private String json;
+    private EmailMessage email;
+    private AiAnalysisFormatter formatter;
+
+    @Setup
+    public void setUp() {
+        json = switch (response) {
+            case "clean" -> ANALYSIS;
+            case "fenced" -> "Вот анализ письма:\n```json\n" + ANALYSIS + "\n```\nЕсли нужно, могу составить ответ.";
+            default -> "К сожалению, не удалось проанализировать письмо: текст пустой или повреждён.";
+        };
+        email = new EmailMessage();
+        email.setAiAnalysis(json);
+        formatter = new AiAnalysisFormatter(MailMetrics.noop());
+    }
+
+    @Benchmark
+    public String formatAnalysis() {
+        return formatter.formatAnalysis(json);
+    }
+
+    @Benchmark
+    public String extractPriority() {
+        return formatter.extractPriority(json);
+    }
+
+    /**
+     * Путь окна и SSE: ответ уже разобран в EmailAnalysis при setAiAnalysis
+     */
+    @Benchmark
+    public String formatParsed() {
+        return formatter.format(email);
+    }
+}
@@ -0,0 +1,109 @@
+package normalno.load;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Замкнутая нагрузка: concurrency потоков подряд отправляют запросы, пока не будет отправлено requests штук.
+ * Задержка считается от отправки запроса до получения всего тела ответа.
+ */
+public class LoadDriver {
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private final Duration requestTimeout;
+
+    public LoadDriver(Duration requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Результат одного прогона; задержки в миллисекундах
+     */
+    public record Report(String scenario, int concurrency, int requests, int failed, double seconds,
+                         double p50, double p90, double p99, double max, double llmCallsPerRequest) {
+
+        public double requestsPerSecond() {
+            return seconds == 0 ? 0 : requests / seconds;
+        }
+
+        public static String header() {
+            return String.format("%-28s %5s %7s %6s %9s %9s %9s %9s %9s %9s",
+                    "scenario", "conc", "reqs", "fail", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "llm/req");
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-28s %5d %7d %6d %9.1f %9.1f %9.1f %9.1f %9.1f %9.2f",
+                    scenario, concurrency, requests, failed, requestsPerSecond(), p50, p90, p99, max, llmCallsPerRequest);
+        }
+    }
+
+    /**
+     * target получает номер запроса и возвращает адрес: так сценарий может, например, листать разные страницы
+     */
+    public Report run(String scenario, int concurrency, int requests, IntFunction<URI> target,
+                      StubChatModel model) throws Exception {
+        long[] latencies = new long[requests];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long callsBefore = model.calls();
+
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long started = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < concurrency; w++) {
+                futures.add(workers.submit(() -> {
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests) {
+                        latencies[i] = send(target.apply(i), failed);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        Arrays.sort(latencies);
+        return new Report(scenario, concurrency, requests, failed.get(), seconds,
+                percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                latencies[requests - 1] / 1e6, (double) (model.calls() - callsBefore) / requests);
+    }
+
+    private long send(URI uri, AtomicInteger failed) {
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(requestTimeout).GET().build();
+        long started = System.nanoTime();
+        try {
+            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() >= 400) {
+                failed.incrementAndGet();
+            }
+        } catch (Exception e) {
+            failed.incrementAndGet();
+        }
+        return System.nanoTime() - started;
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
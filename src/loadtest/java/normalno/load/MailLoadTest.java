@@ -0,0 +1,186 @@
+package normalno.load;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.DummySSLSocketFactory;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.net.URI;
+import java.security.Security;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Нагрузочный прогон всего приложения: настоящий IMAP (GreenMail) с тысячами писем и модель-заглушка
+ * с задаваемыми задержкой и долей ошибок. Для каждого уровня параллельности печатает req/s,
+ * перцентили задержки и число обращений к модели на запрос — базовую линию для сравнения изменений.
+ * Запускается только профилем: ./mvnw -P loadtest test
+ * Параметры (-D...): load.messages, load.concurrency, load.requests, load.llm.latency,
+ * load.llm.latency-p99, load.llm.error-rate (доля 503), load.llm.throttle-rate (доля 429).
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class MailLoadTest {
+
+    private static final String USER = "load@localhost";
+    private static final String PASSWORD = "load-password";
+
+    private static final int MESSAGES = Integer.getInteger("load.messages", 2000);
+    private static final int REQUESTS = Integer.getInteger("load.requests", 200);
+    private static final int[] CONCURRENCY = Arrays.stream(System.getProperty("load.concurrency", "1,4,16").split(","))
+            .mapToInt(level -> Integer.parseInt(level.trim()))
+            .toArray();
+
+    static {
+        // Сертификат GreenMail самоподписанный: доверяем ему до первого SSL-подключения в JVM
+        Security.setProperty("ssl.SocketFactory.provider", DummySSLSocketFactory.class.getName());
+    }
+
+    @RegisterExtension
+    static final GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.IMAPS.dynamicPort())
+            .withConfiguration(GreenMailConfiguration.aConfig().withUser(USER, USER, PASSWORD))
+            .withPerMethodLifecycle(false);
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private StubChatModel chatModel;
+
+    @TestConfiguration
+    static class StubModelConfiguration {
+
+        @Bean
+        StubChatModel stubChatModel() {
+            return new StubChatModel(
+                    Duration.parse("PT" + System.getProperty("load.llm.latency", "0.2S")),
+                    Duration.parse("PT" + System.getProperty("load.llm.latency-p99", "1.5S")),
+                    Double.parseDouble(System.getProperty("load.llm.error-rate", "0.02")),
+                    Double.parseDouble(System.getProperty("load.llm.throttle-rate", "0.02")));
+        }
+
+        @Bean
+        ChatClient.Builder chatClientBuilder(StubChatModel stubChatModel) {
+            return ChatClient.builder(stubChatModel);
+        }
+    }
+
+    @DynamicPropertySource
+    static void mailProperties(DynamicPropertyRegistry registry) {
+        registry.add("mail.user", () -> USER);
+        registry.add("mail.password", () -> PASSWORD);
+        registry.add("mail.imap.host", () -> "127.0.0.1");
+        registry.add("mail.imap.port", () -> greenMail.getImaps().getPort());
+        registry.add("mail.imap.pool.lease-timeout", () -> "60s");
+        // Страница / рендерится на сервере с письмами, а не пустой оболочкой для потока
+        registry.add("mail.web.streaming", () -> "false");
+        // Кэш анализа и хранилище писем только в памяти: каждый прогон начинается с одинакового состояния
+        registry.add("mail.analysis.cache.dir", () -> "");
+        registry.add("mail.store.dir", () -> "");
+        registry.add("spring.ai.gigachat.enabled", () -> "false");
+    }
+
+    @BeforeAll
+    static void seedMailbox() throws Exception {
+        GreenMailUser user = greenMail.getUserManager().getUser(USER);
+        Session session = Session.getInstance(new Properties());
+        Instant start = Instant.now().minus(Duration.ofDays(MESSAGES / 50 + 1));
+        for (int i = 0; i < MESSAGES; i++) {
+            user.deliver(message(session, i, Date.from(start.plus(Duration.ofMinutes(30L * i)))));
+        }
+        System.out.println("В ящик загружено писем: " + MESSAGES);
+    }
+
+    @Test
+    void reportThroughputAndLatency() throws Exception {
+        LoadDriver driver = new LoadDriver(Duration.ofMinutes(2));
+        String base = "http://localhost:" + port;
+        List<LoadDriver.Report> reports = new ArrayList<>();
+
+        // Прогрев: первое окно — полная синхронизация и анализ
+        driver.run("warmup /mails", 1, 1, i -> URI.create(base + "/mails"), chatModel);
+
+        for (int concurrency : CONCURRENCY) {
+            reports.add(driver.run("GET /mails", concurrency, REQUESTS,
+                    i -> URI.create(base + "/mails"), chatModel));
+            // Случайные страницы истории: письма ещё не анализировались, каждая страница идёт в модель
+            reports.add(driver.run("GET /mails?before=<random>", concurrency, REQUESTS,
+                    i -> URI.create(base + "/mails?size=10&before=" + randomCursor()), chatModel));
+            reports.add(driver.run("GET /", concurrency, REQUESTS,
+                    i -> URI.create(base + "/"), chatModel));
+        }
+
+        System.out.println();
+        System.out.println("Писем в ящике: " + MESSAGES + ", обращений к модели: " + chatModel.calls()
+                + ", из них ошибок 503: " + chatModel.errors() + ", 429: " + chatModel.throttled());
+        System.out.println(LoadDriver.Report.header());
+        reports.forEach(System.out::println);
+
+        assertThat(reports).allSatisfy(report -> assertThat(report.failed()).isZero());
+    }
+
+    private static long randomCursor() {
+        return ThreadLocalRandom.current().nextLong(11, MESSAGES + 1);
+    }
+
+    /**
+     * Смесь писем как в обычном ящике: личная переписка, HTML-письма с цитатой и рассылки
+     */
+    private static MimeMessage message(Session session, int i, Date date) throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("sender" + (i % 97) + "@example.org"));
+        message.setRecipients(MimeMessage.RecipientType.TO, USER);
+        message.setSentDate(date);
+        String text = "Добрый день!\n\nПо задаче №" + i + " нужно подтвердить сроки и прислать акт до пятницы. "
+                + "Если есть вопросы по смете, давайте созвонимся завтра после обеда.\n\n--\nС уважением,\nОтправитель "
+                + (i % 97) + "\n";
+        switch (i % 10) {
+            case 0 -> {
+                message.setSubject("Новости магазина: скидки недели №" + i, "UTF-8");
+                message.setHeader("List-Unsubscribe", "<https://shop.example.com/unsubscribe?id=" + i + ">");
+                message.setHeader("Precedence", "bulk");
+                message.setText("<html><body><h1>Скидки недели</h1><p>Только до воскресенья.</p>"
+                        + "<a href=\"https://shop.example.com/unsubscribe\">Отписаться</a></body></html>", "UTF-8", "html");
+            }
+            case 1, 2 -> {
+                message.setSubject("Re: Задача №" + i, "UTF-8");
+                MimeBodyPart plain = new MimeBodyPart();
+                plain.setText(text + "\n> Предыдущее сообщение по задаче №" + i + "\n", "UTF-8");
+                MimeBodyPart html = new MimeBodyPart();
+                html.setText("<div>" + text.replace("\n", "<br>") + "</div><blockquote>Предыдущее сообщение по задаче №"
+                        + i + "</blockquote>", "UTF-8", "html");
+                message.setContent(new MimeMultipart("alternative", plain, html));
+            }
+            default -> {
+                message.setSubject("Задача №" + i, "UTF-8");
+                message.setText(text, "UTF-8");
+            }
+        }
+        message.saveChanges();
+        return message;
+    }
+}
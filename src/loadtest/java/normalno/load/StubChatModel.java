@@ -0,0 +1,123 @@
+package normalno.load;
+
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Модель-заглушка для нагрузочного теста: отвечает валидным анализом с задержкой
+ * из логнормального распределения (задаются медиана и p99) и с заданными долями ответов 503 и 429.
+ * Ошибки несут HTTP-статус, как у настоящего клиента модели: ModelCallGuard повторяет 503,
+ * а на 429 уменьшает параллельность.
+ * На пакетный промпт отвечает JSON-массивом с элементом на каждое письмо.
+ */
+public class StubChatModel implements ChatModel {
+
+    private static final String ANALYSIS = """
+            {"summary": "Отправитель просит подтвердить сроки и прислать документы до пятницы.",
+             "intent": "Запрос", "tone": "Нейтральная", "priority": "Средний",
+             "action": "Ответить до пятницы"}""";
+
+    // z-оценка 99-го перцентиля стандартного нормального распределения
+    private static final double Z_99 = 2.326;
+
+    private static final Pattern BATCH_EMAIL = Pattern.compile("Письмо #(\\d+):");
+
+    private final Duration medianLatency;
+    private final double sigma;
+    private final double errorRate;
+    private final double throttleRate;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    public StubChatModel(Duration medianLatency, Duration p99Latency, double errorRate, double throttleRate) {
+        this.medianLatency = medianLatency;
+        this.sigma = medianLatency.isZero() || p99Latency.compareTo(medianLatency) <= 0 ? 0
+                : Math.log((double) p99Latency.toNanos() / medianLatency.toNanos()) / Z_99;
+        this.errorRate = errorRate;
+        this.throttleRate = throttleRate;
+    }
+
+    @Override
+    public ChatResponse call(Prompt prompt) {
+        calls.incrementAndGet();
+        sleep(sampleLatency());
+        double outcome = ThreadLocalRandom.current().nextDouble();
+        if (outcome < errorRate) {
+            errors.incrementAndGet();
+            throw HttpServerErrorException.create(HttpStatus.SERVICE_UNAVAILABLE, "Заглушка модели: 503",
+                    HttpHeaders.EMPTY, null, null);
+        }
+        if (outcome < errorRate + throttleRate) {
+            throttled.incrementAndGet();
+            throw HttpClientErrorException.create(HttpStatus.TOO_MANY_REQUESTS, "Заглушка модели: 429",
+                    HttpHeaders.EMPTY, null, null);
+        }
+        return new ChatResponse(List.of(new Generation(new AssistantMessage(respond(prompt.getContents())))));
+    }
+
+    @Override
+    public Flux<ChatResponse> stream(Prompt prompt) {
+        return Mono.fromCallable(() -> call(prompt)).flux();
+    }
+
+    public long calls() {
+        return calls.get();
+    }
+
+    public long errors() {
+        return errors.get();
+    }
+
+    public long throttled() {
+        return throttled.get();
+    }
+
+    private static String respond(String prompt) {
+        Matcher batch = BATCH_EMAIL.matcher(prompt);
+        if (!batch.find()) {
+            return ANALYSIS;
+        }
+        StringBuilder array = new StringBuilder("[");
+        do {
+            if (array.length() > 1) {
+                array.append(',');
+            }
+            array.append("{\"index\": ").append(batch.group(1)).append(", ").append(ANALYSIS.substring(1));
+        } while (batch.find());
+        return array.append(']').toString();
+    }
+
+    private Duration sampleLatency() {
+        if (medianLatency.isZero()) {
+            return Duration.ZERO;
+        }
+        double factor = Math.exp(sigma * ThreadLocalRandom.current().nextGaussian());
+        return Duration.ofNanos((long) (medianLatency.toNanos() * factor));
+    }
+
+    private static void sleep(Duration latency) {
+        try {
+            Thread.sleep(latency.toMillis(), latency.toNanosPart() % 1_000_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
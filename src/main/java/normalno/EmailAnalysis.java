@@ -0,0 +1,117 @@
+package normalno;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Разобранный ответ модели. priorityLabel — приоритет в формулировке модели
+ * («высокий», «High»), priority — он же, приведённый к одному из уровней.
+ * thread — обновлённое краткое содержание переписки; есть только у ответа, проанализированного вместе с ней.
+ * degraded — оценка выдана локальными правилами, пока модель была недоступна.
+ */
+public record EmailAnalysis(String summary, String intent, String tone,
+                            Priority priority, String priorityLabel, String action, String thread,
+                            boolean degraded) {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public enum Priority {
+        HIGH("высокий"), MEDIUM("средний"), LOW("низкий"), UNKNOWN("неизвестен");
+
+        private final String label;
+
+        Priority(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Код для CSS-класса бейджа и API: high, medium, low или unknown
+         */
+        public String code() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        public String label() {
+            return label;
+        }
+
+        public static Priority fromText(String text) {
+            if (text == null) {
+                return UNKNOWN;
+            }
+            String value = text.trim().toLowerCase(Locale.ROOT);
+            if (value.startsWith("высок") || value.startsWith("high") || value.startsWith("срочн")
+                    || value.startsWith("urgent") || value.startsWith("критич") || value.startsWith("critical")) {
+                return HIGH;
+            }
+            if (value.startsWith("средн") || value.startsWith("medium") || value.startsWith("normal")
+                    || value.startsWith("обычн")) {
+                return MEDIUM;
+            }
+            if (value.startsWith("низк") || value.startsWith("low")) {
+                return LOW;
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Разбирает JSON-ответ модели одним проходом потокового парсера, без построения дерева.
+     * Ответ может быть обёрнут в ```json ... ``` или окружён текстом — берётся первый объект.
+     * Возвращает null, если в ответе нет JSON-объекта с полями анализа (например, это сообщение об ошибке).
+     */
+    public static EmailAnalysis parse(String json) {
+        if (json == null) {
+            return null;
+        }
+        int start = json.indexOf('{');
+        if (start < 0) {
+            return null;
+        }
+
+        String summary = null;
+        String intent = null;
+        String tone = null;
+        String priority = null;
+        String action = null;
+        String thread = null;
+        boolean degraded = false;
+        try (JsonParser parser = JSON_FACTORY.createParser(json.substring(start))) {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (field.equals("degraded")) {
+                    degraded = value == JsonToken.VALUE_TRUE;
+                    continue;
+                }
+                String text = value == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+                switch (field) {
+                    case "summary" -> summary = text;
+                    case "intent" -> intent = text;
+                    case "tone" -> tone = text;
+                    case "priority" -> priority = text;
+                    case "action" -> action = text;
+                    case "thread" -> thread = text;
+                    default -> {
+                    }
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (summary == null && intent == null && tone == null && priority == null && action == null) {
+            return null;
+        }
+        return new EmailAnalysis(summary, intent, tone, Priority.fromText(priority), priority, action, thread,
+                degraded);
+    }
+}
@@ -1,13 +1,80 @@
 package normalno;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Setter;
+
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
 
 @Data
 public class EmailMessage {
+    private Long uid;
+    private String account;
+    private String folder;
+    private Instant receivedDate;
+    private String messageId;
     private String from;
     private String to;
     private String subject;
     private String body;
+    // С сервера прочитано только начало текста, полный текст — GET /mails/{uid}/body
+    private boolean bodyTruncated;
     private String aiAnalysis;
+    // Переписка, к которой относится письмо (см. ConversationIndex)
+    private String threadId;
+
+    // Тот же анализ, разобранный один раз при записи aiAnalysis; null, если это не ответ модели
+    @JsonIgnore
+    @Setter(AccessLevel.NONE)
+    private EmailAnalysis analysis;
+
+    // Служебные заголовки письма (List-Unsubscribe, Precedence и т.п.), имена в нижнем регистре
+    @JsonIgnore
+    private Map<String, String> headers = Map.of();
+
+    // Краткое содержание переписки до этого письма: ответ анализируется относительно него, а не с нуля
+    @JsonIgnore
+    private String threadSummary;
+
+    /**
+     * Поверхностная копия, чтобы вызывающий код мог менять поля, не трогая закэшированное письмо
+     */
+    public EmailMessage copy() {
+        EmailMessage copy = new EmailMessage();
+        copy.setUid(uid);
+        copy.setAccount(account);
+        copy.setFolder(folder);
+        copy.setReceivedDate(receivedDate);
+        copy.setMessageId(messageId);
+        copy.setFrom(from);
+        copy.setTo(to);
+        copy.setSubject(subject);
+        copy.setBody(body);
+        copy.setBodyTruncated(bodyTruncated);
+        copy.aiAnalysis = aiAnalysis;
+        copy.analysis = analysis;
+        copy.setHeaders(headers);
+        copy.setThreadId(threadId);
+        copy.setThreadSummary(threadSummary);
+        return copy;
+    }
+
+    /**
+     * Записывает ответ модели и сразу разбирает его в {@link EmailAnalysis}
+     */
+    public void setAiAnalysis(String aiAnalysis) {
+        this.aiAnalysis = aiAnalysis;
+        this.analysis = EmailAnalysis.parse(aiAnalysis);
+    }
+
+    /**
+     * Значение заголовка без учёта регистра имени или null, если заголовка нет
+     */
+    public String header(String name) {
+        return headers == null ? null : headers.get(name.toLowerCase(Locale.ROOT));
+    }
 }
 
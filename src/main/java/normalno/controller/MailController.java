@@ -1,24 +1,123 @@
 package normalno.controller;
 
 import normalno.EmailMessage;
+import normalno.service.ConversationIndex;
+import normalno.service.InboxSnapshot;
+import normalno.service.MailPage;
+import normalno.service.MailRefreshService;
+import normalno.service.MailSearchIndex;
 import normalno.service.MailService;
 
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 @RestController
 public class MailController {
 
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
     private final MailService mailService;
+    private final ObjectProvider<MailRefreshService> refreshService;
+    private final MailSearchIndex searchIndex;
+    private final ConversationIndex conversations;
 
-    public MailController(MailService mailService) {
+    public MailController(MailService mailService, ObjectProvider<MailRefreshService> refreshService,
+                          MailSearchIndex searchIndex, ConversationIndex conversations) {
         this.mailService = mailService;
+        this.refreshService = refreshService;
+        this.searchIndex = searchIndex;
+        this.conversations = conversations;
     }
 
+    /**
+     * Без параметров возвращает окно последних писем всех ящиков. С before, size, account или folder —
+     * страницу истории одной папки: UID для следующей страницы приходит в заголовке X-Next-Cursor.
+     * При mail.refresh.enabled=true окно берётся из свежего снимка фонового обновления.
+     */
     @GetMapping("/mails")
-    public List<EmailMessage> getMails(){
-        System.out.println("Получаю реальные письма...");
-        return mailService.fetchEmails();
+    public ResponseEntity<List<EmailMessage>> getMails(@RequestParam(required = false) Long before,
+                                                       @RequestParam(required = false) Integer size,
+                                                       @RequestParam(required = false) String account,
+                                                       @RequestParam(required = false) String folder){
+        if (before == null && size == null && account == null && folder == null) {
+            Optional<InboxSnapshot> snapshot = currentSnapshot(refreshService);
+            if (snapshot.isPresent()) {
+                return withCursor(snapshot.get().emails(), snapshot.get().nextCursor());
+            }
+            System.out.println("Получаю реальные письма...");
+            List<EmailMessage> emails = mailService.fetchEmails();
+            return withCursor(emails, MailService.windowCursor(emails));
+        }
+
+        System.out.println("Получаю страницу писем до UID " + before + "...");
+        MailPage page = mailService.fetchPage(account, folder, before, size);
+        return withCursor(page.emails(), page.nextCursor());
+    }
+
+    /**
+     * Поиск по уже полученным письмам и их анализу, без обращения к почтовому серверу.
+     * q — слова запроса; priority (high, medium, low, unknown), intent, account и folder — фильтры.
+     * Без q возвращаются последние письма, подходящие под фильтры.
+     */
+    @GetMapping("/mails/search")
+    public MailSearchIndex.SearchResult search(@RequestParam(required = false) String q,
+                                               @RequestParam(required = false) String priority,
+                                               @RequestParam(required = false) String intent,
+                                               @RequestParam(required = false) String account,
+                                               @RequestParam(required = false) String folder,
+                                               @RequestParam(required = false) Integer limit){
+        return searchIndex.search(q, priority, intent, account, folder, limit);
+    }
+
+    /**
+     * Переписки по одной строке, начиная с самой свежей: тема, участники, число писем
+     * и краткое содержание всей переписки. Строятся из уже полученных писем, без обращения к серверу.
+     */
+    @GetMapping("/mails/conversations")
+    public List<ConversationIndex.ConversationView> getConversations(@RequestParam(required = false) String account,
+                                                                     @RequestParam(required = false) Integer limit){
+        return conversations.conversations(account, limit);
+    }
+
+    /**
+     * Полный текст письма, если в окне пришло только его начало (bodyTruncated)
+     */
+    @GetMapping("/mails/{uid}/body")
+    public ResponseEntity<Map<String, Object>> getFullBody(@PathVariable long uid,
+                                                           @RequestParam(required = false) String account,
+                                                           @RequestParam(required = false) String folder){
+        System.out.println("Загружаю полный текст письма UID " + uid + "...");
+        return mailService.fetchFullBody(account, folder, uid)
+                .map(body -> {
+                    Map<String, Object> response = new LinkedHashMap<>();
+                    response.put("uid", uid);
+                    response.put("body", body);
+                    return ResponseEntity.ok(response);
+                })
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Свежий снимок окна, если фоновое обновление включено и успело его построить
+     */
+    static Optional<InboxSnapshot> currentSnapshot(ObjectProvider<MailRefreshService> refreshService){
+        MailRefreshService service = refreshService.getIfAvailable();
+        return service == null ? Optional.empty() : service.current();
+    }
+
+    private static ResponseEntity<List<EmailMessage>> withCursor(List<EmailMessage> emails, Long nextCursor){
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (nextCursor != null) {
+            response.header(NEXT_CURSOR_HEADER, String.valueOf(nextCursor));
+        }
+        return response.body(emails);
     }
 }
@@ -0,0 +1,186 @@
+package normalno.controller;
+
+import normalno.EmailMessage;
+import normalno.service.MailService;
+import normalno.service.MailStreamListener;
+import normalno.util.AiAnalysisFormatter;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Потоковая выдача писем через Server-Sent Events: заголовки и текст всех писем
+ * уходят клиенту сразу после чтения с сервера, а анализ каждого письма — как только
+ * модель ответит. События: email, analysis, token (при tokens=true) и done.
+ */
+@RestController
+public class MailStreamController {
+
+    private final MailService mailService;
+    private final AiAnalysisFormatter analysisFormatter;
+    private final ExecutorService executor;
+
+    @Value("${mail.stream.timeout:5m}")
+    private Duration timeout = Duration.ofMinutes(5);
+
+    public MailStreamController(MailService mailService, AiAnalysisFormatter analysisFormatter) {
+        this.mailService = mailService;
+        this.analysisFormatter = analysisFormatter;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "mail-stream-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @GetMapping(value = "/mails/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamMails(@RequestParam(defaultValue = "false") boolean tokens) {
+        System.out.println("Получаю письма потоком...");
+        SseEmitter emitter = new SseEmitter(timeout.toMillis());
+        SseMailListener listener = new SseMailListener(emitter, tokens);
+        Future<?> task = executor.submit(() -> {
+            try {
+                List<EmailMessage> emails = mailService.fetchEmails(listener);
+                Map<String, Object> done = new LinkedHashMap<>();
+                done.put("total", emails.size());
+                // Курсор для перехода к более старым письмам (см. /mails?before=)
+                done.put("nextCursor", MailService.windowCursor(emails));
+                listener.send("done", done);
+                emitter.complete();
+            } catch (Exception e) {
+                System.err.println("Ошибка потоковой выдачи писем: " + e.getMessage());
+                emitter.completeWithError(e);
+            }
+        });
+        //Клиент ушёл или поток истёк: чтение папок, которое ещё идёт, отменяется (см. MailService.fetchEmails)
+        Runnable cancel = () -> {
+            listener.close();
+            task.cancel(true);
+        };
+        emitter.onCompletion(cancel);
+        emitter.onTimeout(cancel);
+        emitter.onError(error -> cancel.run());
+        return emitter;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Переводит события получения и анализа писем в SSE-события.
+     * index — номер письма в порядке получения, по нему клиент сопоставляет анализ с письмом.
+     * Папки и ящики читаются параллельно, а общее окно сортируется по дате только в конце
+     * (см. MailService.fetchEmails), поэтому порядок показа задаёт sortKey — дата письма в миллисекундах,
+     * null у писем без даты (они идут первыми, как в /mails).
+     */
+    private final class SseMailListener implements MailStreamListener {
+
+        private final SseEmitter emitter;
+        private final boolean tokens;
+        private final Map<EmailMessage, Integer> indexes = new IdentityHashMap<>();
+        private volatile boolean closed;
+
+        private SseMailListener(SseEmitter emitter, boolean tokens) {
+            this.emitter = emitter;
+            this.tokens = tokens;
+        }
+
+        @Override
+        public void onFetched(List<EmailMessage> emails) {
+            for (EmailMessage email : emails) {
+                int index;
+                synchronized (indexes) {
+                    index = indexes.size();
+                    indexes.put(email, index);
+                }
+                Map<String, Object> event = new LinkedHashMap<>();
+                event.put("index", index);
+                event.put("sortKey", email.getReceivedDate() == null ? null : email.getReceivedDate().toEpochMilli());
+                event.put("receivedDate", email.getReceivedDate() == null ? null : email.getReceivedDate().toString());
+                event.put("uid", email.getUid());
+                event.put("account", email.getAccount());
+                event.put("folder", email.getFolder());
+                event.put("from", email.getFrom());
+                event.put("to", email.getTo());
+                event.put("subject", email.getSubject());
+                event.put("body", email.getBody());
+                event.put("bodyTruncated", email.isBodyTruncated());
+                putAnalysis(event, email);
+                send("email", event);
+            }
+        }
+
+        @Override
+        public void onAnalyzed(EmailMessage email) {
+            Integer index = indexOf(email);
+            if (index == null) {
+                //Письмо повторно анализировалось, но уже выпало из окна
+                return;
+            }
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("index", index);
+            putAnalysis(event, email);
+            send("analysis", event);
+        }
+
+        @Override
+        public void onToken(EmailMessage email, String token) {
+            Integer index = indexOf(email);
+            if (index != null) {
+                send("token", Map.of("index", index, "text", token));
+            }
+        }
+
+        @Override
+        public boolean streamTokens() {
+            return tokens && !closed;
+        }
+
+        private Integer indexOf(EmailMessage email) {
+            synchronized (indexes) {
+                return indexes.get(email);
+            }
+        }
+
+        private void putAnalysis(Map<String, Object> event, EmailMessage email) {
+            event.put("analysis", email.getAiAnalysis() == null ? null : analysisFormatter.format(email));
+            event.put("priority", analysisFormatter.priorityCode(email));
+            event.put("priorityLabel", analysisFormatter.priorityLabel(email));
+        }
+
+        private synchronized void send(String name, Object data) {
+            if (closed) {
+                return;
+            }
+            try {
+                emitter.send(SseEmitter.event().name(name).data(data, MediaType.APPLICATION_JSON));
+            } catch (IOException | IllegalStateException e) {
+                //Клиент ушёл: анализ доводим до конца ради кэша, но больше ничего не отправляем
+                closed = true;
+            }
+        }
+
+        private void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package normalno.controller;
+
+import normalno.service.AiService;
+import normalno.service.AnalysisCache;
+import normalno.service.ConversationIndex;
+import normalno.service.MailService;
+import normalno.service.MailSearchIndex;
+import normalno.service.MailStore;
+import normalno.service.ModelCallGuard;
+import normalno.service.NearDuplicateIndex;
+import normalno.service.RuleBasedClassifier;
+import normalno.util.EmailBodyPreprocessor;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+public class StatsController {
+
+    private final AnalysisCache analysisCache;
+    private final MailService mailService;
+    private final EmailBodyPreprocessor bodyPreprocessor;
+    private final RuleBasedClassifier classifier;
+    private final AiService aiService;
+    private final MailStore mailStore;
+    private final MailSearchIndex searchIndex;
+    private final NearDuplicateIndex nearDuplicates;
+    private final ConversationIndex conversations;
+
+    public StatsController(AnalysisCache analysisCache, MailService mailService,
+                           EmailBodyPreprocessor bodyPreprocessor, RuleBasedClassifier classifier,
+                           AiService aiService, MailStore mailStore, MailSearchIndex searchIndex,
+                           NearDuplicateIndex nearDuplicates, ConversationIndex conversations) {
+        this.analysisCache = analysisCache;
+        this.mailService = mailService;
+        this.bodyPreprocessor = bodyPreprocessor;
+        this.classifier = classifier;
+        this.aiService = aiService;
+        this.mailStore = mailStore;
+        this.searchIndex = searchIndex;
+        this.nearDuplicates = nearDuplicates;
+        this.conversations = conversations;
+    }
+
+    @GetMapping("/stats/cache")
+    public AnalysisCache.CacheStats getCacheStats() {
+        return analysisCache.stats();
+    }
+
+    @GetMapping("/stats/prompt")
+    public EmailBodyPreprocessor.PreprocessStats getPromptStats() {
+        return bodyPreprocessor.stats();
+    }
+
+    @GetMapping("/stats/classifier")
+    public RuleBasedClassifier.ClassifierStats getClassifierStats() {
+        return classifier.stats();
+    }
+
+    @GetMapping("/stats/ai")
+    public ModelCallGuard.GuardStats getAiStats() {
+        return aiService.guardStats();
+    }
+
+    @GetMapping("/stats/store")
+    public MailStore.StoreStats getStoreStats() {
+        return mailStore.stats();
+    }
+
+    @GetMapping("/stats/search")
+    public MailSearchIndex.IndexStats getSearchStats() {
+        return searchIndex.stats();
+    }
+
+    @GetMapping("/stats/near-duplicates")
+    public NearDuplicateIndex.NearDuplicateStats getNearDuplicateStats() {
+        return nearDuplicates.stats();
+    }
+
+    @GetMapping("/stats/conversations")
+    public ConversationIndex.ConversationStats getConversationStats() {
+        return conversations.stats();
+    }
+
+    @GetMapping("/stats/imap")
+    public Map<String, Object> getImapStats() {
+        return Map.of(
+                "lastRefreshRoundTrips", mailService.getLastRefreshRoundTrips(),
+                "connectionPool", mailService.getConnectionPoolStats(),
+                "connectionPools", mailService.getConnectionPoolStatsByAccount(),
+                "sources", mailService.getSourceStats());
+    }
+}
@@ -1,39 +1,77 @@
 package normalno.controller;
 
 import normalno.EmailMessage;
+import normalno.service.InboxSnapshot;
+import normalno.service.MailPage;
+import normalno.service.MailRefreshService;
 import normalno.service.MailService;
 import normalno.util.AiAnalysisFormatter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 
 import java.util.List;
+import java.util.Optional;
 
 @Controller
 public class WebMailController {
 
     private final MailService mailService;
     private final AiAnalysisFormatter analysisFormatter;
+    private final ObjectProvider<MailRefreshService> refreshService;
 
-    public WebMailController(MailService mailService, AiAnalysisFormatter analysisFormatter) {
+    @Value("${mail.web.streaming:true}")
+    private boolean streaming = true;
+
+    public WebMailController(MailService mailService, AiAnalysisFormatter analysisFormatter,
+                             ObjectProvider<MailRefreshService> refreshService) {
         this.mailService = mailService;
         this.analysisFormatter = analysisFormatter;
+        this.refreshService = refreshService;
     }
 
     @GetMapping("/")
-    public String index(Model model) {
-        List<EmailMessage> emails = mailService.fetchEmails();
+    public String index(@RequestParam(required = false) Long before, Model model) {
+        // Анализ форматируется в шаблоне из уже разобранного EmailAnalysis, письма не изменяются
+        model.addAttribute("analysisFormatter", analysisFormatter);
+        model.addAttribute("before", before);
+        // Готовый снимок фонового обновления рендерится сразу, без потока и без обращения к серверу
+        Optional<InboxSnapshot> snapshot = before == null
+                ? MailController.currentSnapshot(refreshService) : Optional.empty();
+        if (snapshot.isPresent()) {
+            model.addAttribute("streaming", false);
+            model.addAttribute("emails", snapshot.get().emails());
+            model.addAttribute("totalEmails", snapshot.get().emails().size());
+            model.addAttribute("nextCursor", snapshot.get().nextCursor());
+            return "index";
+        }
+        // Потоком отдаётся только первая страница, более старые рендерятся на сервере
+        model.addAttribute("streaming", streaming && before == null);
+        if (streaming && before == null) {
+            // Страница отдаётся сразу, письма и анализ подгружаются из /mails/stream
+            model.addAttribute("emails", List.of());
+            model.addAttribute("totalEmails", 0);
+            model.addAttribute("nextCursor", null);
+            return "index";
+        }
 
-        // Форматируем анализ для каждого письма
-        emails.forEach(email -> {
-            if (email.getAiAnalysis() != null) {
-                String formatted = analysisFormatter.formatAnalysis(email.getAiAnalysis());
-                email.setAiAnalysis(formatted);
-            }
-        });
+        List<EmailMessage> emails;
+        Long nextCursor;
+        if (before == null) {
+            emails = mailService.fetchEmails();
+            nextCursor = MailService.windowCursor(emails);
+        } else {
+            MailPage page = mailService.fetchPage(before, null);
+            emails = page.emails();
+            nextCursor = page.nextCursor();
+        }
 
         model.addAttribute("emails", emails);
         model.addAttribute("totalEmails", emails.size());
+        model.addAttribute("nextCursor", nextCursor);
         return "index";
     }
-}
\ No newline at end of file
+}
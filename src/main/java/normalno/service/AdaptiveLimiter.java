@@ -0,0 +1,123 @@
+package normalno.service;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Адаптивный лимит одновременных запросов к модели по схеме AIMD.
+ * Пока ответы быстрые и все разрешения заняты, лимит растёт примерно на единицу за «окно» запросов;
+ * медленный ответ уменьшает его на несколько процентов, ответ 429 — вдвое.
+ * Так число запросов само подстраивается под то, сколько провайдер готов принять сейчас.
+ */
+public class AdaptiveLimiter {
+
+    /**
+     * Чем закончился запрос: от этого зависит, как меняется лимит
+     */
+    public enum Outcome {
+        SUCCESS, THROTTLED, FAILED
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double latencyBackoff;
+    private final double throttleBackoff;
+    private final Duration acquireTimeout;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private double limit;
+    private int inFlight;
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, Duration latencyThreshold,
+                           double latencyBackoff, double throttleBackoff, Duration acquireTimeout) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.latencyThresholdNanos = latencyThreshold.toNanos();
+        this.latencyBackoff = latencyBackoff;
+        this.throttleBackoff = throttleBackoff;
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    /**
+     * Ждёт свободное разрешение не дольше acquireTimeout. Каждое полученное разрешение
+     * возвращается через {@link #release(Outcome, long)}.
+     */
+    public void acquire() throws InterruptedException {
+        long remaining = acquireTimeout.toNanos();
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                if (remaining <= 0) {
+                    timedOut.incrementAndGet();
+                    throw new ModelUnavailableException("Нет свободного слота для запроса к модели за "
+                            + acquireTimeout.toMillis() + " мс (лимит " + (int) limit + ")");
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(Outcome outcome, long latencyNanos) {
+        lock.lock();
+        try {
+            // Рост только при полной загрузке: простаивающий лимит не должен разрастаться впустую
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+            switch (outcome) {
+                case SUCCESS -> {
+                    if (latencyNanos > latencyThresholdNanos) {
+                        limit = Math.max(minLimit, limit * latencyBackoff);
+                    } else if (saturated) {
+                        limit = Math.min(maxLimit, limit + 1.0 / limit);
+                    }
+                }
+                case THROTTLED -> {
+                    throttled.incrementAndGet();
+                    limit = Math.max(minLimit, limit * throttleBackoff);
+                }
+                case FAILED -> {
+                }
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long throttled() {
+        return throttled.get();
+    }
+
+    public long timedOut() {
+        return timedOut.get();
+    }
+}
@@ -1,20 +1,184 @@
 package normalno.service;
 
 import normalno.EmailMessage;
+import normalno.util.MailMetrics;
+import normalno.util.TokenEstimator;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
 @Service
 public class AiService {
 
+    // Начало текста анализа, завершившегося ошибкой: одно на весь конвейер, по нему ошибки и распознаются
+    static final String ERROR_PREFIX = "Ошибка анализа письма: ";
+
+    private static final String BATCH_PROMPT_HEADER = """
+            Ты — интеллектуальный ассистент, анализирующий входящие письма.
+
+            Проанализируй каждое из писем ниже и сделай выводы по пунктам:
+            1. Краткое содержание письма (в 3 предложениях)
+            2. Основная цель письма (запрос, жалоба, предложение, реклама и т.д.)
+            3. Тональность письма (дружелюбная, нейтральная, раздражённая и т.д.)
+            4. Приоритет (высокий, средний, низкий)
+            5. Рекомендуемое действие (ответить, переслать, проигнорировать и т.п.)
+
+            Ответь строго JSON-массивом, по одному объекту на каждое письмо, где index — номер письма:
+            [
+              {
+                "index": 0,
+                "summary": "...",
+                "intent": "...",
+                "tone": "...",
+                "priority": "...",
+                "action": "..."
+              }
+            ]
+
+            Если для письма указана переписка до него, анализируй само письмо с учётом переписки
+            и добавь в его объект поле "thread" — краткое содержание всей переписки вместе с этим письмом
+            (до 3 предложений).
+            """;
+
+    private static final String BATCH_EMAIL_TEMPLATE = """
+
+            Письмо #%d:
+            - Отправитель: %s
+            - Получатель: %s
+            - Тема: %s
+            - Текст письма:
+            %s
+            """;
+
+    private static final String BATCH_THREAD_TEMPLATE = """
+            - Переписка до этого письма: %s
+            """;
+
+    // Краткое содержание переписки до ответа и инструкция обновить его (см. ConversationIndex)
+    private static final String THREAD_CONTEXT = """
+
+            Это ответ в переписке. Краткое содержание переписки до этого письма:
+            %s
+            Анализируй само письмо с учётом переписки. В поле "thread" верни краткое содержание
+            всей переписки вместе с этим письмом (до 3 предложений).
+            """;
+
+    // Примерный размер ответа модели на одно письмо: его тоже нужно уместить в бюджет
+    private static final int RESPONSE_TOKENS_PER_EMAIL = 200;
+
     private final ChatClient chatClient;
+    private final ModelCallGuard guard;
+    private final MailMetrics metrics;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${mail.analysis.batch.token-budget:6000}")
+    private int batchTokenBudget = 6000;
 
-    public AiService(ChatClient.Builder chatClientBuilder) {
+    @Value("${mail.analysis.batch.max-size:10}")
+    private int maxBatchSize = 10;
+
+    @Value("${mail.analysis.batch.retries:1}")
+    private int batchRetries = 1;
+
+    public AiService(ChatClient.Builder chatClientBuilder, ModelCallGuard guard, MailMetrics metrics) {
         this.chatClient = chatClientBuilder.build();
+        this.guard = guard;
+        this.metrics = metrics;
     }
 
     public String analyzeEmail(EmailMessage email) {
-        String text = String.format(
+        String prompt = timedPrompt("single", () -> buildPrompt(email));
+        long started = System.nanoTime();
+        try {
+            String response = guard.call("single", () -> chatClient.prompt(prompt).call().content(), () -> true);
+            recordCall("single", started, prompt, response);
+            return response;
+        } catch (Exception e) {
+            recordCallError("single", started, e);
+            return ERROR_PREFIX + e.getMessage();
+        }
+    }
+
+    /**
+     * То же, что analyzeEmail, но через потоковый API: каждый фрагмент ответа
+     * сразу передаётся в onToken, а в конце возвращается склеенный ответ целиком.
+     */
+    public String analyzeEmail(EmailMessage email, Consumer<String> onToken) {
+        String prompt = timedPrompt("stream", () -> buildPrompt(email));
+        long started = System.nanoTime();
+        StringBuilder response = new StringBuilder();
+        try {
+            // Повторять можно, только пока клиенту не ушло ни одного фрагмента ответа
+            guard.call("stream", () -> chatClient.prompt(prompt).stream().content()
+                    .doOnNext(token -> {
+                        response.append(token);
+                        onToken.accept(token);
+                    })
+                    .blockLast(), response::isEmpty);
+            recordCall("stream", started, prompt, response);
+            return response.toString();
+        } catch (Exception e) {
+            recordCallError("stream", started, e);
+            return ERROR_PREFIX + e.getMessage();
+        }
+    }
+
+    /**
+     * Провайдер сейчас считается неисправным (см. ModelCallGuard): вызовы отклоняются без обращения к модели
+     */
+    public boolean isDegraded() {
+        return guard.isDegraded();
+    }
+
+    public ModelCallGuard.GuardStats guardStats() {
+        return guard.stats();
+    }
+
+    private String timedPrompt(String mode, Supplier<String> builder) {
+        long started = System.nanoTime();
+        String prompt = builder.get();
+        metrics.recordSince(MailMetrics.PROMPT_BUILD, started, "mode", mode);
+        return prompt;
+    }
+
+    /**
+     * Время ответа модели и размер запроса и ответа в токенах. ChatClient.content() не отдаёт
+     * usage провайдера, поэтому токены оцениваются тем же TokenEstimator, что и бюджет пакета.
+     */
+    private void recordCall(String mode, long startedNanos, String prompt, CharSequence response) {
+        metrics.recordSince(MailMetrics.LLM_CALL, startedNanos, "mode", mode, "outcome", "success");
+        metrics.recordTokens("prompt", mode, TokenEstimator.estimate(prompt));
+        metrics.recordTokens("completion", mode, TokenEstimator.estimate(response));
+    }
+
+    private void recordCallError(String mode, long startedNanos, Exception e) {
+        metrics.recordError("llm", e);
+        if (e instanceof ModelUnavailableException) {
+            // Запрос не отправлялся: стек не нужен, а время ожидания не относится к задержке модели
+            System.err.println("Запрос к модели отклонён: " + e.getMessage());
+            return;
+        }
+        metrics.recordSince(MailMetrics.LLM_CALL, startedNanos, "mode", mode, "outcome", "error");
+        e.printStackTrace();
+    }
+
+    static String buildPrompt(EmailMessage email) {
+        return String.format(
                 """
                 Ты — интеллектуальный ассистент, анализирующий входящие письма.
 
@@ -31,25 +195,165 @@ public class AiService {
                 - Тема: %s
                 - Текст письма:
                 %s
-
+                %s
                 Ответь строго в формате JSON:
                 {
                   "summary": "...",
                   "intent": "...",
                   "tone": "...",
                   "priority": "...",
-                  "action": "..."
+                  "action": "..."%s
                 }
                 """,
-                email.getFrom(), email.getTo(), email.getSubject(), email.getBody()
+                email.getFrom(), email.getTo(), email.getSubject(), email.getBody(),
+                email.getThreadSummary() == null ? "" : THREAD_CONTEXT.formatted(email.getThreadSummary()),
+                email.getThreadSummary() == null ? "" : ",\n  \"thread\": \"...\""
         );
+    }
 
-        try {
-            return chatClient.prompt(text).call().content();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "Ошибка при анализе письма: " + e.getMessage();
+    /**
+     * Раскладывает письма по пакетам так, чтобы промпт вместе с ожидаемым ответом
+     * укладывался в mail.analysis.batch.token-budget. Письмо, которое само не влезает
+     * в бюджет, попадает в отдельный пакет.
+     */
+    public List<List<EmailMessage>> packBatches(List<EmailMessage> emails) {
+        int headerTokens = TokenEstimator.estimate(BATCH_PROMPT_HEADER);
+        List<List<EmailMessage>> batches = new ArrayList<>();
+        List<EmailMessage> current = new ArrayList<>();
+        int used = headerTokens;
+
+        for (EmailMessage email : emails) {
+            int cost = TokenEstimator.estimate(formatBatchEmail(current.size(), email)) + RESPONSE_TOKENS_PER_EMAIL;
+            if (!current.isEmpty() && (used + cost > batchTokenBudget || current.size() >= maxBatchSize)) {
+                batches.add(current);
+                current = new ArrayList<>();
+                used = headerTokens;
+            }
+            current.add(email);
+            used += cost;
         }
+        if (!current.isEmpty()) {
+            batches.add(current);
+        }
+        return batches;
     }
-}
 
+    /**
+     * Анализирует пакет писем одним запросом. Модель отвечает JSON-массивом с номерами писем;
+     * если ответ неполный или битый, повторно отправляются только письма без результата,
+     * а после исчерпания повторов — по одному. Результаты идут в порядке входного списка.
+     */
+    public List<String> analyzeBatch(List<EmailMessage> batch) {
+        String[] results = new String[batch.size()];
+        List<Integer> pending = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            pending.add(i);
+        }
+
+        for (int attempt = 0; attempt <= batchRetries && pending.size() > 1; attempt++) {
+            List<EmailMessage> subset = new ArrayList<>(pending.size());
+            for (int index : pending) {
+                subset.add(batch.get(index));
+            }
+
+            String prompt = timedPrompt("batch", () -> buildBatchPrompt(subset));
+            long started = System.nanoTime();
+            String response;
+            try {
+                response = guard.call("batch", () -> chatClient.prompt(prompt).call().content(), () -> true);
+                recordCall("batch", started, prompt, response);
+            } catch (Exception e) {
+                // Провайдер недоступен даже после повторов: повторять по одному письму бессмысленно
+                recordCallError("batch", started, e);
+                for (int index : pending) {
+                    results[index] = ERROR_PREFIX + e.getMessage();
+                }
+                return Arrays.asList(results);
+            }
+
+            Map<Integer, String> parsed = parseBatchResponse(response, subset.size());
+            List<Integer> missing = new ArrayList<>();
+            for (int j = 0; j < pending.size(); j++) {
+                String analysis = parsed.get(j);
+                if (analysis != null) {
+                    results[pending.get(j)] = analysis;
+                } else {
+                    missing.add(pending.get(j));
+                }
+            }
+            if (!missing.isEmpty()) {
+                System.out.println("Пакетный ответ неполный: нет результата для " + missing.size()
+                        + " из " + pending.size() + " писем");
+            }
+            pending = missing;
+        }
+
+        for (int index : pending) {
+            results[index] = analyzeEmail(batch.get(index));
+        }
+        return Arrays.asList(results);
+    }
+
+    private String buildBatchPrompt(List<EmailMessage> emails) {
+        StringBuilder prompt = new StringBuilder(BATCH_PROMPT_HEADER);
+        for (int i = 0; i < emails.size(); i++) {
+            prompt.append(formatBatchEmail(i, emails.get(i)));
+        }
+        return prompt.toString();
+    }
+
+    private static String formatBatchEmail(int index, EmailMessage email) {
+        String formatted = String.format(BATCH_EMAIL_TEMPLATE,
+                index, email.getFrom(), email.getTo(), email.getSubject(), email.getBody());
+        return email.getThreadSummary() == null ? formatted
+                : formatted + BATCH_THREAD_TEMPLATE.formatted(email.getThreadSummary());
+    }
+
+    /**
+     * Разбирает JSON-массив ответа потоково: если ответ обрезан, уже разобранные
+     * элементы сохраняются. Элементы без номера, с чужим номером или без summary пропускаются.
+     */
+    private Map<Integer, String> parseBatchResponse(String response, int size) {
+        Map<Integer, String> parsed = new HashMap<>();
+        if (response == null) {
+            return parsed;
+        }
+        int start = response.indexOf('[');
+        if (start < 0) {
+            return parsed;
+        }
+        int end = response.lastIndexOf(']');
+        String json = end > start ? response.substring(start, end + 1) : response.substring(start);
+
+        try (JsonParser parser = objectMapper.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return parsed;
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                JsonNode item = parser.readValueAsTree();
+                JsonNode index = item.get("index");
+                if (index == null || !index.canConvertToInt() || !item.hasNonNull("summary")) {
+                    continue;
+                }
+                int i = index.asInt();
+                if (i < 0 || i >= size || parsed.containsKey(i)) {
+                    continue;
+                }
+                ObjectNode analysis = ((ObjectNode) item).deepCopy();
+                analysis.remove("index");
+                parsed.put(i, objectMapper.writeValueAsString(analysis));
+            }
+        } catch (IOException e) {
+            metrics.recordError("batch-parse", e);
+            System.err.println("Пакетный ответ модели разобран частично: " + e.getMessage());
+        }
+        return parsed;
+    }
+
+    /**
+     * Проверяет, что строка — сообщение об ошибке, а не ответ модели
+     */
+    static boolean isError(String analysis) {
+        return analysis == null || analysis.startsWith(ERROR_PREFIX);
+    }
+}
@@ -0,0 +1,229 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Двухуровневый кэш результатов анализа: ограниченный LRU в памяти
+ * и каталог на диске, который переживает перезапуск приложения.
+ * На диске хранится не больше mail.analysis.cache.max-disk-entries файлов: при переполнении удаляются те,
+ * что дольше всех не читались и не записывались.
+ */
+@Component
+public class AnalysisCache {
+
+    private final int maxEntries;
+    private final Path directory;
+    private final Map<String, String> memory;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong diskEntries = new AtomicLong(-1);
+    private final Object evictionLock = new Object();
+
+    @Value("${mail.analysis.cache.max-disk-entries:100000}")
+    private int maxDiskEntries = 100000;
+
+    public AnalysisCache(@Value("${mail.analysis.cache.max-entries:1000}") int maxEntries,
+                         @Value("${mail.analysis.cache.dir:${user.home}/.mail-assistant/analysis-cache}") String directory) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.directory = directory == null || directory.isBlank() ? null : Path.of(directory);
+        // accessOrder = true: при каждом чтении запись переезжает в конец, вытесняется самая старая
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > AnalysisCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Ключ кэша: RFC Message-ID, а если его нет — хэш отправителя, темы и текста
+     */
+    public String keyOf(EmailMessage email) {
+        String messageId = email.getMessageId();
+        if (messageId != null && !messageId.isBlank()) {
+            return "mid:" + messageId.trim();
+        }
+        return "sha:" + sha256(email.getFrom() + "\u0000" + email.getSubject() + "\u0000" + email.getBody());
+    }
+
+    public String get(String key) {
+        String analysis;
+        synchronized (memory) {
+            analysis = memory.get(key);
+        }
+        if (analysis == null) {
+            analysis = readFromDisk(key);
+            if (analysis != null) {
+                synchronized (memory) {
+                    memory.put(key, analysis);
+                }
+            }
+        }
+
+        if (analysis != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return analysis;
+    }
+
+    public void put(String key, String analysis) {
+        synchronized (memory) {
+            memory.put(key, analysis);
+        }
+        writeToDisk(key, analysis);
+    }
+
+    public CacheStats stats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long total = hitCount + missCount;
+        int memorySize;
+        synchronized (memory) {
+            memorySize = memory.size();
+        }
+        return new CacheStats(hitCount, missCount, total == 0 ? 0.0 : (double) hitCount / total,
+                memorySize, countDiskEntries());
+    }
+
+    private String readFromDisk(String key) {
+        if (directory == null) {
+            return null;
+        }
+        Path file = fileFor(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            String analysis = Files.readString(file, StandardCharsets.UTF_8);
+            //Время изменения — время последнего использования: по нему вытесняются старые записи
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+            return analysis;
+        } catch (NoSuchFileException e) {
+            //Файл успели вытеснить между проверкой и чтением
+            return null;
+        } catch (IOException e) {
+            System.err.println("Не удалось прочитать кэш анализа: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, String analysis) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path file = fileFor(key);
+            boolean isNew = !Files.exists(file);
+            // Пишем во временный файл и переименовываем, чтобы не оставить наполовину записанную запись
+            Path tmp = Files.createTempFile(directory, "analysis", ".tmp");
+            Files.writeString(tmp, analysis, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (isNew && diskEntries.get() >= 0) {
+                diskEntries.incrementAndGet();
+            }
+            if (isNew && countDiskEntries() > maxDiskEntries) {
+                evictOldest();
+            }
+        } catch (IOException e) {
+            System.err.println("Не удалось сохранить кэш анализа: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Удаляет самые давние файлы, пока их не останется на десятую часть меньше лимита:
+     * так каталог перечитывается не при каждой записи, а раз в maxDiskEntries / 10 новых записей
+     */
+    private void evictOldest() {
+        synchronized (evictionLock) {
+            if (countDiskEntries() <= maxDiskEntries) {
+                return;
+            }
+            long target = Math.max(0, maxDiskEntries - maxDiskEntries / 10);
+            try (Stream<Path> files = Files.list(directory)) {
+                List<Path> entries = files.filter(file -> file.toString().endsWith(".json"))
+                        .sorted(Comparator.comparing(AnalysisCache::lastUsed))
+                        .toList();
+                long removed = 0;
+                for (int i = 0; i < entries.size() - target; i++) {
+                    if (Files.deleteIfExists(entries.get(i))) {
+                        removed++;
+                    }
+                }
+                diskEntries.set(entries.size() - removed);
+                System.out.println("Кэш анализа на диске: удалено старых записей " + removed);
+            } catch (IOException e) {
+                System.err.println("Не удалось очистить каталог кэша: " + e.getMessage());
+            }
+        }
+    }
+
+    private static FileTime lastUsed(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private long countDiskEntries() {
+        if (directory == null) {
+            return 0;
+        }
+        long count = diskEntries.get();
+        if (count < 0) {
+            // Считаем файлы один раз, дальше счётчик ведётся при записи
+            count = 0;
+            if (Files.isDirectory(directory)) {
+                try (Stream<Path> files = Files.list(directory)) {
+                    count = files.filter(file -> file.toString().endsWith(".json")).count();
+                } catch (IOException e) {
+                    System.err.println("Не удалось прочитать каталог кэша: " + e.getMessage());
+                }
+            }
+            diskEntries.compareAndSet(-1, count);
+            count = diskEntries.get();
+        }
+        return count;
+    }
+
+    private Path fileFor(String key) {
+        return directory.resolve(sha256(key) + ".json");
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public record CacheStats(long hits, long misses, double hitRatio, int memoryEntries, long diskEntries) {
+    }
+}
@@ -0,0 +1,306 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+import normalno.util.EmailBodyPreprocessor;
+import normalno.util.MailMetrics;
+import normalno.util.SingleFlight;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Service
+public class AnalysisPipeline {
+
+    private final AiService aiService;
+    private final AnalysisCache analysisCache;
+    private final EmailBodyPreprocessor bodyPreprocessor;
+    private final RuleBasedClassifier classifier;
+    private final NearDuplicateIndex nearDuplicates;
+    private final ConversationIndex conversations;
+    private final MailMetrics metrics;
+    private final ExecutorService executor;
+
+    //Одно и то же письмо (например, из двух папок или двух одновременных обновлений) уходит в модель один раз
+    private final SingleFlight<String, String> analysisFlights;
+
+    @Value("${mail.analysis.batch.enabled:false}")
+    private boolean batchEnabled;
+
+    public AnalysisPipeline(AiService aiService,
+                            AnalysisCache analysisCache,
+                            EmailBodyPreprocessor bodyPreprocessor,
+                            RuleBasedClassifier classifier,
+                            NearDuplicateIndex nearDuplicates,
+                            ConversationIndex conversations,
+                            @Value("${mail.analysis.max-in-flight:4}") int maxInFlight,
+                            MailMetrics metrics) {
+        this.aiService = aiService;
+        this.analysisCache = analysisCache;
+        this.bodyPreprocessor = bodyPreprocessor;
+        this.classifier = classifier;
+        this.nearDuplicates = nearDuplicates;
+        this.conversations = conversations;
+        this.metrics = metrics;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, maxInFlight), analysisThreadFactory());
+        this.analysisFlights = new SingleFlight<>(() -> metrics.increment(MailMetrics.COALESCED, "operation", "analysis"));
+    }
+
+    /**
+     * Анализирует письма параллельно: одновременно к модели уходит не больше
+     * mail.analysis.max-in-flight запросов. Результат записывается в само письмо,
+     * поэтому порядок списка сохраняется, а ошибка одного письма не влияет на остальные.
+     * Письма, уже проанализированные ранее, берутся из кэша без обращения к модели.
+     * Очевидные рассылки и уведомления размечаются локальным классификатором без модели.
+     * В модель уходит копия письма с очищенным и сокращённым текстом (см. EmailBodyPreprocessor).
+     * При mail.analysis.batch.enabled=true письма отправляются пакетами по несколько в одном промпте.
+     * Пока модель недоступна (см. ModelCallGuard), письма без кэша получают локальную оценку по правилам.
+     * Если то же письмо уже анализируется (в этом или в параллельном вызове), его результат используется повторно.
+     * Письмо, почти совпадающее с уже проанализированным (см. NearDuplicateIndex), получает его анализ без модели.
+     * Ответ в известной переписке уходит в модель вместе с её кратким содержанием (см. ConversationIndex),
+     * а анализ ответа обновляет это содержание.
+     */
+    public void analyzeAll(List<EmailMessage> emails) {
+        analyzeAll(emails, MailStreamListener.NONE);
+    }
+
+    /**
+     * То же, что analyzeAll(emails), но сообщает слушателю о каждом письме сразу
+     * по готовности, не дожидаясь остальных. Фрагменты ответа модели передаются
+     * только при анализе по одному письму: пакетный ответ разбирается целиком.
+     */
+    public void analyzeAll(List<EmailMessage> emails, MailStreamListener listener) {
+        emails.forEach(conversations::assign);
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        if (batchEnabled) {
+            //Письма без готового анализа упаковываются в пакеты, пакеты уходят в модель параллельно
+            //Повторы одного письма в списке не попадают в пакет и получают анализ первого экземпляра
+            Map<String, List<EmailMessage>> duplicates = new LinkedHashMap<>();
+            for (EmailMessage email : emails) {
+                if (applyCached(email) || applyLocal(email) || applySimilar(email)) {
+                    notifyAnalyzed(listener, email);
+                } else {
+                    duplicates.computeIfAbsent(analysisCache.keyOf(email), key -> new ArrayList<>()).add(email);
+                }
+            }
+            //Письма, которые уже анализирует параллельный вызов, в пакет не попадают и ждут его результата
+            Map<EmailMessage, String> keys = new IdentityHashMap<>();
+            Map<String, SingleFlight.Claim<String>> claims = new HashMap<>();
+            List<EmailMessage> prompts = new ArrayList<>();
+            for (Map.Entry<String, List<EmailMessage>> entry : duplicates.entrySet()) {
+                SingleFlight.Claim<String> claim = analysisFlights.claim(entry.getKey());
+                if (claim.leader()) {
+                    EmailMessage prompt = promptCopy(entry.getValue().get(0));
+                    keys.put(prompt, entry.getKey());
+                    claims.put(entry.getKey(), claim);
+                    prompts.add(prompt);
+                } else {
+                    //Ожидание без занятого потока: ведущий пакет может стоять в очереди того же пула
+                    futures.add(awaitShared(claim, entry.getValue(), listener));
+                }
+            }
+            try {
+                //Пакеты собираются уже по очищенному тексту, поэтому в бюджет помещается больше писем
+                for (List<EmailMessage> batch : prompts.isEmpty() ? List.<List<EmailMessage>>of() : aiService.packBatches(prompts)) {
+                    List<List<EmailMessage>> targets = batch.stream().map(prompt -> duplicates.get(keys.get(prompt))).toList();
+                    List<SingleFlight.Claim<String>> batchClaims = batch.stream().map(prompt -> claims.get(keys.get(prompt))).toList();
+                    futures.add(CompletableFuture.runAsync(() -> analyzeBatch(batch, targets, batchClaims, listener), executor));
+                }
+            } catch (RuntimeException e) {
+                //Иначе параллельные вызовы с этими письмами ждали бы вечно
+                claims.values().forEach(claim -> claim.fail(e));
+                throw e;
+            }
+        } else {
+            for (EmailMessage email : emails) {
+                futures.add(CompletableFuture.runAsync(() -> analyze(email, listener), executor));
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        restoreConversations(emails);
+    }
+
+    /**
+     * Учитывает в переписках уже проанализированные письма (например, из хранилища после перезапуска)
+     */
+    public void restoreConversations(List<EmailMessage> analyzed) {
+        //От старых писем к новым: содержание переписки наращивается по порядку
+        analyzed.stream()
+                .sorted(Comparator.comparing(EmailMessage::getReceivedDate, Comparator.nullsFirst(Comparator.naturalOrder())))
+                .forEach(conversations::record);
+    }
+
+    /**
+     * Учитывает в переписках одно проанализированное письмо; порядок писем может быть любым —
+     * более старое письмо не заменяет содержание, составленное по более новому
+     */
+    public void restoreConversation(EmailMessage analyzed) {
+        conversations.record(analyzed);
+    }
+
+    private void analyze(EmailMessage email, MailStreamListener listener) {
+        try {
+            if (!applyCached(email) && !applyLocal(email) && !applySimilar(email)) {
+                //Присоединившийся вызов получает готовый анализ без фрагментов ответа
+                email.setAiAnalysis(analysisFlights.execute(analysisCache.keyOf(email), () -> {
+                    EmailMessage prompt = promptCopy(email);
+                    String analysis = listener.streamTokens()
+                            ? aiService.analyzeEmail(prompt, token -> listener.onToken(email, token))
+                            : aiService.analyzeEmail(prompt);
+                    return complete(email, analysis);
+                }));
+            }
+        } catch (Exception e) {
+            email.setAiAnalysis(AiService.ERROR_PREFIX + e.getMessage());
+            e.printStackTrace();
+        }
+        notifyAnalyzed(listener, email);
+    }
+
+    /**
+     * targets.get(i) — письма, которые получают анализ prompts.get(i): само письмо и его повторы в списке.
+     * claims.get(i) завершается тем же анализом для параллельных вызовов с этим письмом.
+     */
+    private void analyzeBatch(List<EmailMessage> prompts, List<List<EmailMessage>> targets,
+                              List<SingleFlight.Claim<String>> claims, MailStreamListener listener) {
+        try {
+            List<String> results = aiService.analyzeBatch(prompts);
+            for (int i = 0; i < targets.size(); i++) {
+                String analysis = null;
+                for (EmailMessage email : targets.get(i)) {
+                    analysis = complete(email, results.get(i));
+                    email.setAiAnalysis(analysis);
+                }
+                claims.get(i).complete(analysis);
+            }
+        } catch (Exception e) {
+            targets.forEach(group -> group.forEach(email -> email.setAiAnalysis(AiService.ERROR_PREFIX + e.getMessage())));
+            claims.forEach(claim -> claim.fail(e));
+            e.printStackTrace();
+        }
+        targets.forEach(group -> group.forEach(email -> notifyAnalyzed(listener, email)));
+    }
+
+    /**
+     * Письма, анализ которых уже выполняет другой вызов, получают его результат по готовности
+     */
+    private CompletableFuture<?> awaitShared(SingleFlight.Claim<String> claim, List<EmailMessage> group,
+                                             MailStreamListener listener) {
+        return claim.result().handle((analysis, error) -> {
+            for (EmailMessage email : group) {
+                email.setAiAnalysis(error == null ? analysis : AiService.ERROR_PREFIX + error.getMessage());
+                notifyAnalyzed(listener, email);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Копия письма для промпта: в окне и в ответе API остаётся исходный текст
+     */
+    private EmailMessage promptCopy(EmailMessage email) {
+        EmailMessage prompt = email.copy();
+        prompt.setBody(bodyPreprocessor.prepare(email.getBody()));
+        return prompt;
+    }
+
+    private static void notifyAnalyzed(MailStreamListener listener, EmailMessage email) {
+        // Ошибка слушателя (например, клиент закрыл поток) не должна ломать анализ остальных писем
+        try {
+            listener.onAnalyzed(email);
+        } catch (Exception e) {
+            System.err.println("Ошибка слушателя анализа: " + e.getMessage());
+        }
+    }
+
+    private boolean applyCached(EmailMessage email) {
+        String cached = analysisCache.get(analysisCache.keyOf(email));
+        if (cached != null) {
+            email.setAiAnalysis(cached);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean applyLocal(EmailMessage email) {
+        Optional<String> local = classifier.classify(email);
+        local.ifPresent(email::setAiAnalysis);
+        return local.isPresent();
+    }
+
+    /**
+     * Анализ почти такого же письма; сохраняется в кэш и под ключом этого письма
+     */
+    private boolean applySimilar(EmailMessage email) {
+        //Анализ ответа зависит от переписки, чужой анализ ему не подходит
+        if (!nearDuplicates.isEnabled() || email.getThreadSummary() != null) {
+            return false;
+        }
+        String similar = nearDuplicates.findSimilar(email);
+        metrics.increment(MailMetrics.NEAR_DUPLICATE, "outcome", similar != null ? "reused" : "missed");
+        if (similar == null) {
+            return false;
+        }
+        analysisCache.put(analysisCache.keyOf(email), similar);
+        email.setAiAnalysis(similar);
+        return true;
+    }
+
+    /**
+     * Ответ модели кэшируется; если модель недоступна (цепь разомкнута), вместо ошибки
+     * письмо получает локальную оценку по правилам, которая не кэшируется
+     */
+    private String complete(EmailMessage email, String analysis) {
+        if (AiService.isError(analysis) && aiService.isDegraded()) {
+            return classifier.fallback(email);
+        }
+        return store(email, analysis);
+    }
+
+    private String store(EmailMessage email, String analysis) {
+        // Ошибки не кэшируем, иначе письмо так и останется без анализа
+        if (!AiService.isError(analysis)) {
+            analysisCache.put(analysisCache.keyOf(email), analysis);
+            if (email.getThreadSummary() == null) {
+                nearDuplicates.remember(email, analysis);
+            }
+        }
+        return analysis;
+    }
+
+    /**
+     * Письмо ещё не анализировалось, анализ завершился ошибкой или выдан правилами без модели
+     */
+    public static boolean isFailed(EmailMessage email) {
+        String analysis = email.getAiAnalysis();
+        return AiService.isError(analysis) || (email.getAnalysis() != null && email.getAnalysis().degraded());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static ThreadFactory analysisThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "ai-analysis-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
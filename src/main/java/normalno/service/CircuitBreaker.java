@@ -0,0 +1,137 @@
+package normalno.service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Предохранитель вызовов модели. Считает исходы последних window вызовов; когда доля сбоев
+ * (таймауты, 5xx, 429) достигает failureRate, цепь размыкается и вызовы сразу отклоняются
+ * на openDuration. Затем пропускается один пробный вызов: успех замыкает цепь, сбой снова размыкает.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int window;
+    private final int minCalls;
+    private final double failureRate;
+    private final Duration openDuration;
+    private final Clock clock;
+
+    // Кольцевой буфер исходов последних вызовов: true — сбой
+    private final boolean[] outcomes;
+    private int recorded;
+    private int next;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+
+    public CircuitBreaker(int window, int minCalls, double failureRate, Duration openDuration, Clock clock) {
+        this.window = Math.max(1, window);
+        this.minCalls = Math.max(1, Math.min(minCalls, this.window));
+        this.failureRate = failureRate;
+        this.openDuration = openDuration;
+        this.clock = clock;
+        this.outcomes = new boolean[this.window];
+    }
+
+    /**
+     * Можно ли сейчас обращаться к модели. В полуоткрытом состоянии разрешён только один пробный вызов
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && clock.millis() - openedAt >= openDuration.toMillis()) {
+            state = State.HALF_OPEN;
+            probeInFlight = false;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !probeInFlight) {
+            probeInFlight = true;
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            reset();
+            return;
+        }
+        record(false);
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        record(true);
+        if (state == State.CLOSED && recorded >= minCalls && failures >= failureRate * recorded) {
+            open();
+        }
+    }
+
+    /**
+     * Вызов завершился ошибкой, не связанной с состоянием провайдера (например, 400): пробу не засчитываем
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+        }
+    }
+
+    public synchronized State state() {
+        if (state == State.OPEN && clock.millis() - openedAt >= openDuration.toMillis()) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    public long opened() {
+        return opened.get();
+    }
+
+    private void record(boolean failure) {
+        if (recorded == window) {
+            if (outcomes[next]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        outcomes[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % window;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = clock.millis();
+        opened.incrementAndGet();
+        System.err.println("Модель недоступна: цепь разомкнута на " + openDuration.toSeconds() + " с");
+    }
+
+    private void reset() {
+        state = State.CLOSED;
+        recorded = 0;
+        next = 0;
+        failures = 0;
+        System.out.println("Модель снова отвечает: цепь замкнута");
+    }
+}
@@ -0,0 +1,293 @@
+package normalno.service;
+
+import normalno.EmailAnalysis;
+import normalno.EmailMessage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Переписки по заголовкам Message-ID, In-Reply-To и References: ответ попадает в переписку первого
+ * уже известного письма из своей цепочки, а если цепочка незнакома — в переписку её корня.
+ * У каждой переписки хранится краткое содержание, которое обновляется с каждым проанализированным ответом:
+ * ответ уходит в модель вместе с ним и анализируется относительно переписки, а не с нуля.
+ * Переписки живут в памяти; после перезапуска восстанавливаются из писем хранилища (см. MailService.warmStart).
+ */
+@Component
+public class ConversationIndex {
+
+    // Заголовки цепочки, которых нет в ENVELOPE: читаются тем же FETCH, что и служебные заголовки классификатора
+    public static final List<String> HEADERS = List.of("In-Reply-To", "References");
+
+    private static final Pattern MESSAGE_ID = Pattern.compile("<[^<>\\s]+>");
+    private static final Pattern SUBJECT_PREFIX = Pattern.compile(
+            "^\\s*((re|fwd?|aw|wg|ответ|отв|пересл)\\s*(\\[\\d+])?\\s*:\\s*)+",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    // Краткое содержание уходит в каждый промпт ответа, поэтому его длина ограничена
+    private static final int MAX_SUMMARY_CHARS = 1000;
+    private static final int MAX_PARTICIPANTS = 10;
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 100;
+
+    private final int maxConversations;
+
+    // Порядок доступа: вытесняются переписки, которых давно не касались
+    private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true);
+    // Message-ID (своё письмо или упомянутое в цепочке) → переписка
+    private final Map<String, String> threadOf = new HashMap<>();
+
+    private final AtomicLong withContext = new AtomicLong();
+
+    public ConversationIndex(@Value("${mail.threads.max-conversations:10000}") int maxConversations) {
+        this.maxConversations = Math.max(1, maxConversations);
+    }
+
+    private static final class Conversation {
+        final String id;
+        final String account;
+        String subject;
+        final Set<String> participants = new LinkedHashSet<>();
+        // Ключи писем переписки и все Message-ID, записанные в threadOf
+        final Set<String> messages = new HashSet<>();
+        final Set<String> ids = new HashSet<>();
+        Instant lastReceived;
+        String lastFrom;
+        String folder;
+        Long lastUid;
+        String priority;
+        String summary;
+        Instant summaryDate;
+        String summaryKey;
+
+        Conversation(String id, String account) {
+            this.id = id;
+            this.account = account;
+        }
+    }
+
+    /**
+     * Относит письмо к переписке (threadId) и, если это ответ в переписке с готовым кратким содержанием,
+     * передаёт это содержание для промпта (threadSummary)
+     */
+    public void assign(EmailMessage email) {
+        synchronized (conversations) {
+            Conversation conversation = join(email);
+            email.setThreadSummary(null);
+            if (conversation == null || conversation.summary == null || references(email).isEmpty()
+                    || messageKey(email).equals(conversation.summaryKey)) {
+                return;
+            }
+            // Содержание, в котором уже учтены более поздние письма, для старого ответа не подходит
+            if (conversation.summaryDate != null && email.getReceivedDate() != null
+                    && conversation.summaryDate.isAfter(email.getReceivedDate())) {
+                return;
+            }
+            email.setThreadSummary(conversation.summary);
+            withContext.incrementAndGet();
+        }
+    }
+
+    /**
+     * Учитывает анализ письма: обновляет краткое содержание переписки и её последний приоритет.
+     * Ошибки и оценки по правилам без модели содержание не меняют.
+     */
+    public void record(EmailMessage email) {
+        synchronized (conversations) {
+            Conversation conversation = join(email);
+            EmailAnalysis analysis = email.getAnalysis();
+            if (conversation == null || analysis == null || analysis.degraded()) {
+                return;
+            }
+            Instant received = email.getReceivedDate();
+            boolean newest = conversation.summaryDate == null || received == null
+                    || !received.isBefore(conversation.summaryDate);
+            if (newest) {
+                conversation.priority = analysis.priority().code();
+            }
+            String thread = analysis.thread();
+            // Ответ, проанализированный без переписки, описывает только себя: содержание переписки он не заменяет
+            String summary = thread != null ? thread : conversation.summary == null ? analysis.summary() : null;
+            if (summary == null || summary.isBlank() || !newest) {
+                return;
+            }
+            conversation.summary = summary.length() > MAX_SUMMARY_CHARS
+                    ? summary.substring(0, MAX_SUMMARY_CHARS) : summary;
+            conversation.summaryDate = received;
+            conversation.summaryKey = messageKey(email);
+        }
+    }
+
+    /**
+     * Переписки, начиная с самой свежей; account — фильтр по ящику
+     */
+    public List<ConversationView> conversations(String account, Integer limit) {
+        int size = limit == null ? DEFAULT_LIMIT : Math.max(1, Math.min(limit, MAX_LIMIT));
+        List<ConversationView> views = new ArrayList<>();
+        synchronized (conversations) {
+            for (Conversation conversation : conversations.values()) {
+                if (account == null || account.equals(conversation.account)) {
+                    views.add(new ConversationView(conversation.id, conversation.account, conversation.folder,
+                            conversation.subject, List.copyOf(conversation.participants),
+                            conversation.messages.size(), conversation.lastReceived, conversation.lastFrom,
+                            conversation.lastUid, conversation.priority, conversation.summary));
+                }
+            }
+        }
+        views.sort(Comparator.comparing(ConversationView::lastReceived,
+                Comparator.nullsLast(Comparator.reverseOrder())));
+        return views.size() > size ? List.copyOf(views.subList(0, size)) : views;
+    }
+
+    public ConversationStats stats() {
+        synchronized (conversations) {
+            long messages = conversations.values().stream().mapToLong(conversation -> conversation.messages.size()).sum();
+            return new ConversationStats(conversations.size(), messages, withContext.get());
+        }
+    }
+
+    /**
+     * Находит или создаёт переписку письма и добавляет в неё письмо; null, если письмо не опознать
+     * (нет ни Message-ID, ни UID)
+     */
+    private Conversation join(EmailMessage email) {
+        String own = normalize(email.getMessageId());
+        if (own == null && email.getUid() == null) {
+            return null;
+        }
+        List<String> chain = references(email);
+        String threadId = email.getThreadId();
+        if (threadId == null || !conversations.containsKey(threadId)) {
+            threadId = resolve(own, chain, email);
+        }
+        email.setThreadId(threadId);
+
+        Conversation conversation = conversations.computeIfAbsent(threadId, key -> new Conversation(key, email.getAccount()));
+        for (String reference : chain) {
+            link(conversation, reference);
+        }
+        if (own != null) {
+            link(conversation, own);
+        }
+        if (conversation.messages.add(messageKey(email))) {
+            if (conversation.subject == null || chain.isEmpty()) {
+                conversation.subject = cleanSubject(email.getSubject());
+            }
+            if (email.getFrom() != null && conversation.participants.size() < MAX_PARTICIPANTS) {
+                conversation.participants.add(email.getFrom());
+            }
+            Instant received = email.getReceivedDate();
+            if (conversation.lastReceived == null || (received != null && received.isAfter(conversation.lastReceived))) {
+                conversation.lastReceived = received;
+                conversation.lastFrom = email.getFrom();
+                conversation.folder = email.getFolder();
+                conversation.lastUid = email.getUid();
+            }
+        }
+        evict();
+        return conversation;
+    }
+
+    /**
+     * Первое известное письмо цепочки (от корня) определяет переписку; иначе переписка — корень цепочки
+     */
+    private String resolve(String own, List<String> chain, EmailMessage email) {
+        for (String reference : chain) {
+            String known = threadOf.get(reference);
+            if (known != null) {
+                return known;
+            }
+        }
+        if (own != null && threadOf.containsKey(own)) {
+            return threadOf.get(own);
+        }
+        if (!chain.isEmpty()) {
+            return chain.get(0);
+        }
+        return own != null ? own : "uid:" + email.getAccount() + "/" + email.getFolder() + "/" + email.getUid();
+    }
+
+    private void link(Conversation conversation, String messageId) {
+        if (threadOf.putIfAbsent(messageId, conversation.id) == null) {
+            conversation.ids.add(messageId);
+        }
+    }
+
+    private void evict() {
+        Iterator<Conversation> eldest = conversations.values().iterator();
+        while (conversations.size() > maxConversations && eldest.hasNext()) {
+            Conversation evicted = eldest.next();
+            eldest.remove();
+            evicted.ids.forEach(threadOf::remove);
+        }
+    }
+
+    /**
+     * Цепочка письма: References от корня и In-Reply-To, без повторов
+     */
+    static List<String> references(EmailMessage email) {
+        Set<String> chain = new LinkedHashSet<>();
+        addIds(chain, email.header("References"));
+        addIds(chain, email.header("In-Reply-To"));
+        String own = normalize(email.getMessageId());
+        if (own != null) {
+            chain.remove(own);
+        }
+        return new ArrayList<>(chain);
+    }
+
+    private static void addIds(Set<String> chain, String header) {
+        if (header == null) {
+            return;
+        }
+        Matcher matcher = MESSAGE_ID.matcher(header);
+        while (matcher.find()) {
+            chain.add(matcher.group());
+        }
+    }
+
+    private static String normalize(String messageId) {
+        if (messageId == null || messageId.isBlank()) {
+            return null;
+        }
+        Matcher matcher = MESSAGE_ID.matcher(messageId);
+        return matcher.find() ? matcher.group() : messageId.trim();
+    }
+
+    private static String messageKey(EmailMessage email) {
+        String own = normalize(email.getMessageId());
+        return own != null ? own : "uid:" + email.getAccount() + "/" + email.getFolder() + "/" + email.getUid();
+    }
+
+    static String cleanSubject(String subject) {
+        return subject == null ? "" : SUBJECT_PREFIX.matcher(subject).replaceFirst("").trim();
+    }
+
+    /**
+     * Одна строка списка переписок: последнее письмо, участники и краткое содержание всей переписки
+     */
+    public record ConversationView(String id, String account, String folder, String subject,
+                                   List<String> participants, int messages, Instant lastReceived,
+                                   String lastFrom, Long lastUid, String priority, String summary) {
+    }
+
+    /**
+     * repliesWithContext — ответы, которым при анализе передано краткое содержание переписки
+     */
+    public record ConversationStats(int conversations, long messages, long repliesWithContext) {
+    }
+}
@@ -0,0 +1,34 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Состояние инкрементальной синхронизации папки: UIDVALIDITY, последний
+ * увиденный UID и локальное окно последних писем в порядке возрастания UID.
+ */
+public record FolderSyncState(long uidValidity, long lastUid, List<EmailMessage> view) {
+
+    public FolderSyncState {
+        view = List.copyOf(view);
+    }
+
+    /**
+     * Возвращает новое состояние: к окну добавлены свежие письма, лишние старые отброшены
+     */
+    public FolderSyncState merge(List<EmailMessage> fresh, int windowSize) {
+        List<EmailMessage> merged = new ArrayList<>(view.size() + fresh.size());
+        merged.addAll(view);
+        long maxUid = lastUid;
+        for (EmailMessage email : fresh) {
+            merged.add(email);
+            if (email.getUid() != null) {
+                maxUid = Math.max(maxUid, email.getUid());
+            }
+        }
+        int from = Math.max(0, merged.size() - windowSize);
+        return new FolderSyncState(uidValidity, maxUid, merged.subList(from, merged.size()));
+    }
+}
@@ -0,0 +1,240 @@
+package normalno.service;
+
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Store;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул аутентифицированных IMAP-подключений. Папки остаются открытыми
+ * между запросами, поэтому повторный запрос не платит за SSL, LOGIN и SELECT.
+ * Подключение выдаётся одному вызывающему за раз и возвращается через {@link Lease#close()}.
+ */
+public class ImapConnectionPool implements AutoCloseable {
+
+    /**
+     * Открывает и аутентифицирует новое подключение к серверу
+     */
+    @FunctionalInterface
+    public interface StoreFactory {
+        Store connect() throws MessagingException;
+    }
+
+    private final StoreFactory storeFactory;
+    private final Semaphore permits;
+    private final Duration maxIdle;
+    private final Duration validateAfter;
+    private final Duration leaseTimeout;
+
+    // Самые свежие подключения в голове очереди, самые старые — в хвосте
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private volatile boolean closed;
+
+    public ImapConnectionPool(StoreFactory storeFactory, int maxSize, Duration maxIdle,
+                              Duration validateAfter, Duration leaseTimeout) {
+        this.storeFactory = storeFactory;
+        this.permits = new Semaphore(Math.max(1, maxSize), true);
+        this.maxIdle = maxIdle;
+        this.validateAfter = validateAfter;
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    public Lease lease() throws MessagingException {
+        if (closed) {
+            throw new MessagingException("Пул IMAP-подключений закрыт");
+        }
+        try {
+            if (!permits.tryAcquire(leaseTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new MessagingException("Нет свободных IMAP-подключений за " + leaseTimeout.toMillis() + " мс");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Ожидание IMAP-подключения прервано", e);
+        }
+
+        try {
+            PooledConnection connection;
+            while ((connection = pollIdle()) != null) {
+                if (isHealthy(connection)) {
+                    return new Lease(connection);
+                }
+                discard(connection);
+            }
+            return new Lease(newConnection());
+        } catch (MessagingException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public PoolStats stats() {
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        int total = openConnections.get();
+        return new PoolStats(total, idleCount, Math.max(0, total - idleCount));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        List<PooledConnection> toClose;
+        synchronized (idle) {
+            toClose = new ArrayList<>(idle);
+            idle.clear();
+        }
+        toClose.forEach(this::discard);
+    }
+
+    private PooledConnection newConnection() throws MessagingException {
+        Store store = storeFactory.connect();
+        if (store == null || !store.isConnected()) {
+            throw new MessagingException("Не удалось подключиться к почтовому серверу");
+        }
+        openConnections.incrementAndGet();
+        return new PooledConnection(store);
+    }
+
+    private PooledConnection pollIdle() {
+        List<PooledConnection> stale = new ArrayList<>();
+        PooledConnection connection;
+        synchronized (idle) {
+            long now = System.currentTimeMillis();
+            Iterator<PooledConnection> oldest = idle.descendingIterator();
+            while (oldest.hasNext()) {
+                PooledConnection candidate = oldest.next();
+                if (now - candidate.lastUsed <= maxIdle.toMillis()) {
+                    break;
+                }
+                oldest.remove();
+                stale.add(candidate);
+            }
+            connection = idle.pollFirst();
+        }
+        // Закрываем вне блокировки: закрытие ходит по сети
+        stale.forEach(this::discard);
+        return connection;
+    }
+
+    /**
+     * Давно не использованное подключение проверяем NOOP'ом (isConnected у IMAPStore шлёт NOOP)
+     */
+    private boolean isHealthy(PooledConnection connection) {
+        connection.folders.values().removeIf(folder -> !folder.isOpen());
+        if (System.currentTimeMillis() - connection.lastUsed < validateAfter.toMillis()) {
+            return true;
+        }
+        return connection.store.isConnected();
+    }
+
+    private void release(PooledConnection connection, boolean broken) {
+        try {
+            if (broken || closed) {
+                discard(connection);
+                return;
+            }
+            connection.lastUsed = System.currentTimeMillis();
+            synchronized (idle) {
+                idle.addFirst(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledConnection connection) {
+        for (Folder folder : connection.folders.values()) {
+            try {
+                if (folder.isOpen()) {
+                    folder.close(false);
+                }
+            } catch (MessagingException ignored) {
+            }
+        }
+        connection.folders.clear();
+        try {
+            connection.store.close();
+        } catch (MessagingException ignored) {
+        }
+        openConnections.decrementAndGet();
+    }
+
+    private static final class PooledConnection {
+        private final Store store;
+        private final Map<String, Folder> folders = new HashMap<>();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private PooledConnection(Store store) {
+            this.store = store;
+        }
+    }
+
+    /**
+     * Подключение, выданное вызывающему. Закрытие возвращает его в пул.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final PooledConnection connection;
+        private final Set<String> openedNow = new HashSet<>();
+        private boolean broken;
+        private boolean released;
+
+        private Lease(PooledConnection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Папка, открытая только для чтения. Повторно используется между арендами.
+         */
+        public Folder folder(String name) throws MessagingException {
+            Folder folder = connection.folders.get(name);
+            if (folder == null || !folder.isOpen()) {
+                folder = connection.store.getFolder(name);
+                folder.open(Folder.READ_ONLY);
+                connection.folders.put(name, folder);
+                openedNow.add(name);
+            }
+            return folder;
+        }
+
+        /**
+         * Папка была открыта (SELECT/EXAMINE) в рамках этой аренды, а не взята из пула
+         */
+        public boolean isFreshlyOpened(String name) {
+            return openedNow.contains(name);
+        }
+
+        /**
+         * Помечает подключение как сломанное: при возврате оно будет закрыто, а не вернётся в пул
+         */
+        public void invalidate() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(connection, broken);
+            }
+        }
+    }
+
+    public record PoolStats(int open, int idle, int leased) {
+    }
+}
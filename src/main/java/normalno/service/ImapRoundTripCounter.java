@@ -0,0 +1,80 @@
+package normalno.service;
+
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import org.eclipse.angus.mail.iap.Response;
+import org.eclipse.angus.mail.iap.ResponseHandler;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Считает IMAP-команды, выполненные на соединении открытой папки.
+ * Каждая команда завершается ровно одним тегированным ответом сервера,
+ * поэтому число таких ответов равно числу сетевых round trip'ов.
+ */
+class ImapRoundTripCounter implements ResponseHandler {
+
+    private final IMAPFolder folder;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private ImapRoundTripCounter(IMAPFolder folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Подключает счётчик к уже открытой папке. Для не-IMAP папок счётчик ничего не считает.
+     *
+     * @param openedNow папка только что открыта, и EXAMINE нужно учесть
+     */
+    static ImapRoundTripCounter attach(Folder folder, boolean openedNow) {
+        if (!(folder instanceof IMAPFolder imapFolder)) {
+            return new ImapRoundTripCounter(null);
+        }
+        ImapRoundTripCounter counter = new ImapRoundTripCounter(imapFolder);
+        try {
+            imapFolder.doCommand(protocol -> {
+                protocol.addResponseHandler(counter);
+                return null;
+            });
+            if (openedNow) {
+                // Открытие папки (EXAMINE) уже состоялось до подключения счётчика
+                counter.count.incrementAndGet();
+            }
+        } catch (MessagingException e) {
+            System.err.println("Не удалось подключить счётчик IMAP-запросов: " + e.getMessage());
+        }
+        return counter;
+    }
+
+    /**
+     * Отключает счётчик; вызывается до закрытия папки, пока соединение ещё принадлежит ей
+     */
+    void detach() {
+        if (folder == null || !folder.isOpen()) {
+            return;
+        }
+        try {
+            folder.doCommand(protocol -> {
+                protocol.removeResponseHandler(this);
+                return null;
+            });
+        } catch (MessagingException ignored) {
+        }
+    }
+
+    boolean isAvailable() {
+        return folder != null;
+    }
+
+    int count() {
+        return count.get();
+    }
+
+    @Override
+    public void handleResponse(Response response) {
+        if (response.isTagged()) {
+            count.incrementAndGet();
+        }
+    }
+}
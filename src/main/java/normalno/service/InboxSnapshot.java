@@ -0,0 +1,23 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Уже проанализированное окно писем всех ящиков и папок на момент refreshedAt.
+ * Снимок не меняется после создания: при обновлении целиком заменяется новым,
+ * поэтому письма из него нельзя изменять — только читать и отдавать клиенту.
+ */
+public record InboxSnapshot(List<EmailMessage> emails, Long nextCursor, Instant refreshedAt) {
+
+    public InboxSnapshot {
+        emails = List.copyOf(emails);
+    }
+
+    public Duration age(Instant now) {
+        return Duration.between(refreshedAt, now);
+    }
+}
@@ -0,0 +1,50 @@
+package normalno.service;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Store;
+
+import java.util.List;
+
+/**
+ * Подключённый почтовый ящик: свой пул IMAP-подключений и свои папки,
+ * поэтому медленный сервер одного ящика не занимает подключения других.
+ */
+public class MailAccount implements AutoCloseable {
+
+    private final String name;
+    private final List<String> folders;
+    private final ImapConnectionPool.StoreFactory storeFactory;
+    private final ImapConnectionPool connectionPool;
+
+    public MailAccount(String name, List<String> folders, ImapConnectionPool.StoreFactory storeFactory,
+                       ImapConnectionPool connectionPool) {
+        this.name = name;
+        this.folders = List.copyOf(folders);
+        this.storeFactory = storeFactory;
+        this.connectionPool = connectionPool;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getFolders() {
+        return folders;
+    }
+
+    public ImapConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Новое подключение вне пула (для долгоживущих соединений вроде IDLE)
+     */
+    public Store connect() throws MessagingException {
+        return storeFactory.connect();
+    }
+
+    @Override
+    public void close() {
+        connectionPool.close();
+    }
+}
@@ -0,0 +1,38 @@
+package normalno.service;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Список почтовых ящиков для мониторинга:
+ * <pre>
+ * mail.accounts[0].name=support
+ * mail.accounts[0].user=support@example.com
+ * mail.accounts[0].password=...
+ * mail.accounts[0].host=imap.example.com
+ * mail.accounts[0].folders=INBOX,Escalations
+ * mail.accounts[0].pool-size=2
+ * </pre>
+ * Если список пуст, используется один ящик из mail.user / mail.password / mail.imap.*.
+ */
+@Data
+@ConfigurationProperties(prefix = "mail")
+public class MailAccountProperties {
+
+    private List<Account> accounts = new ArrayList<>();
+
+    @Data
+    public static class Account {
+        private String name;
+        private String user;
+        private String password;
+        private String host;
+        private String port = "993";
+        private List<String> folders = new ArrayList<>(List.of("INBOX"));
+        // Собственный бюджет подключений ящика; по умолчанию mail.imap.pool.size
+        private Integer poolSize;
+    }
+}
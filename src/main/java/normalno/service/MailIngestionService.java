@@ -0,0 +1,192 @@
+package normalno.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Store;
+import jakarta.mail.event.MessageCountAdapter;
+import jakarta.mail.event.MessageCountEvent;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Фоновый приём почты: держит папку открытой в режиме IMAP IDLE
+ * (или опрашивает её NOOP'ом, если IDLE не поддерживается) и сразу
+ * прогоняет новые письма через разбор и анализ. Страница после этого
+ * читает уже готовое окно и не ждёт ни сервер, ни модель.
+ */
+@Service
+@ConditionalOnProperty(name = "mail.ingest.enabled", havingValue = "true")
+public class MailIngestionService {
+
+    private final MailService mailService;
+
+    @Value("${mail.ingest.folder:INBOX}")
+    private String folderName = "INBOX";
+
+    @Value("${mail.ingest.poll-interval:30s}")
+    private Duration pollInterval = Duration.ofSeconds(30);
+
+    @Value("${mail.ingest.keepalive:9m}")
+    private Duration keepaliveInterval = Duration.ofMinutes(9);
+
+    @Value("${mail.ingest.reconnect-delay:10s}")
+    private Duration reconnectDelay = Duration.ofSeconds(10);
+
+    private final AtomicBoolean newMail = new AtomicBoolean();
+    private volatile boolean running;
+    private volatile Folder folder;
+    private Thread worker;
+    private ScheduledExecutorService keepalive;
+
+    public MailIngestionService(MailService mailService) {
+        this.mailService = mailService;
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        worker = new Thread(this::run, "mail-ingest");
+        worker.setDaemon(true);
+        worker.start();
+
+        // Серверы обрывают IDLE примерно через 30 минут тишины, поэтому периодически будим соединение
+        keepalive = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mail-ingest-keepalive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = keepaliveInterval.toMillis();
+        keepalive.scheduleAtFixedRate(this::keepAlive, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        mailService.setPushIngestionActive(false);
+        if (keepalive != null) {
+            keepalive.shutdownNow();
+        }
+        closeQuietly(folder);
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            Folder opened = null;
+            try {
+                opened = mailService.openFolder(folderName);
+                folder = opened;
+                opened.addMessageCountListener(new MessageCountAdapter() {
+                    @Override
+                    public void messagesAdded(MessageCountEvent event) {
+                        newMail.set(true);
+                    }
+                });
+
+                // Первичная синхронизация: окно прогревается сразу после подключения
+                mailService.syncFolder(folderName, opened);
+                mailService.setPushIngestionActive(true);
+                System.out.println("Фоновый приём почты запущен для папки " + folderName);
+
+                listen(opened);
+            } catch (Exception e) {
+                if (running) {
+                    System.err.println("Ошибка фонового приёма почты: " + e.getMessage());
+                }
+            } finally {
+                mailService.setPushIngestionActive(false);
+                folder = null;
+                closeQuietly(opened);
+            }
+
+            if (running) {
+                sleep(reconnectDelay);
+            }
+        }
+    }
+
+    private void listen(Folder opened) throws Exception {
+        boolean idleSupported = opened instanceof IMAPFolder;
+        int knownCount = opened.getMessageCount();
+
+        while (running && opened.isOpen()) {
+            if (idleSupported) {
+                try {
+                    // Возвращается после первого уведомления сервера или после keepalive
+                    ((IMAPFolder) opened).idle(true);
+                } catch (MessagingException e) {
+                    if (!opened.isOpen()) {
+                        throw e;
+                    }
+                    System.out.println("Сервер не поддерживает IDLE, перехожу на опрос NOOP: " + e.getMessage());
+                    idleSupported = false;
+                }
+            } else {
+                sleep(pollInterval);
+            }
+
+            // На открытой IMAP-папке getMessageCount() отправляет NOOP и доставляет события о новых письмах.
+            // События приходят асинхронно, поэтому дополнительно сверяем число писем.
+            int count = opened.getMessageCount();
+            if (newMail.getAndSet(false) || count > knownCount) {
+                mailService.syncFolder(folderName, opened);
+            }
+            knownCount = count;
+        }
+    }
+
+    private void keepAlive() {
+        Folder current = folder;
+        if (current == null || !current.isOpen()) {
+            return;
+        }
+        try {
+            // Любая команда на папке прерывает IDLE, после чего цикл снова входит в него
+            current.getMessageCount();
+        } catch (MessagingException e) {
+            System.err.println("Keepalive IMAP не удался: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Закрывает папку и её отдельное подключение, открытое через {@link MailService#openFolder(String)}
+     */
+    private static void closeQuietly(Folder folder) {
+        if (folder == null) {
+            return;
+        }
+        try {
+            if (folder.isOpen()) {
+                folder.close(false);
+            }
+        } catch (MessagingException ignored) {
+        }
+        Store store = folder.getStore();
+        if (store != null) {
+            try {
+                store.close();
+            } catch (MessagingException ignored) {
+            }
+        }
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+
+import java.util.List;
+
+/**
+ * Страница истории папки. nextCursor передаётся в следующий запрос как before
+ * и равен null, когда более старых писем нет.
+ */
+public record MailPage(List<EmailMessage> emails, Long nextCursor) {
+}
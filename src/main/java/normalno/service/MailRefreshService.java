@@ -0,0 +1,114 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+import normalno.util.MailMetrics;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Фоновое обновление окна писем: раз в mail.refresh.interval читает все настроенные папки,
+ * анализирует новые письма и атомарно подменяет готовый снимок. Страница и /mails берут снимок
+ * за постоянное время и не ждут ни почтовый сервер, ни модель. Снимок старше mail.refresh.max-staleness
+ * не отдаётся: тогда запрос, как и без фонового обновления, читает почту сам.
+ */
+@Service
+@ConditionalOnProperty(name = "mail.refresh.enabled", havingValue = "true")
+public class MailRefreshService {
+
+    static final String SNAPSHOT_AGE = "mail.snapshot.age";
+
+    private final MailService mailService;
+    private final Clock clock;
+
+    @Value("${mail.refresh.interval:60s}")
+    private Duration interval = Duration.ofSeconds(60);
+
+    @Value("${mail.refresh.max-staleness:5m}")
+    private Duration maxStaleness = Duration.ofMinutes(5);
+
+    private final AtomicReference<InboxSnapshot> snapshot = new AtomicReference<>();
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public MailRefreshService(MailService mailService, MailMetrics metrics) {
+        this(mailService, metrics, Clock.systemUTC());
+    }
+
+    MailRefreshService(MailService mailService, MailMetrics metrics, Clock clock) {
+        this.mailService = mailService;
+        this.clock = clock;
+        // Возраст снимка в секундах; -1, пока первое обновление не завершилось
+        metrics.gauge(SNAPSHOT_AGE, snapshot, current -> current.get() == null
+                ? -1 : current.get().age(clock.instant()).toMillis() / 1000.0);
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mail-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Следующее обновление отсчитывается от конца предыдущего: медленный сервер не копит очередь
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Снимок, если он есть и не старше mail.refresh.max-staleness
+     */
+    public Optional<InboxSnapshot> current() {
+        InboxSnapshot current = snapshot.get();
+        if (current == null || current.age(clock.instant()).compareTo(maxStaleness) > 0) {
+            return Optional.empty();
+        }
+        return Optional.of(current);
+    }
+
+    /**
+     * Читает окно и подменяет снимок. Ошибки не выбрасываются: при сбое остаётся прежний снимок,
+     * пока он не устареет
+     */
+    void refresh() {
+        try {
+            long started = System.nanoTime();
+            List<EmailMessage> emails = mailService.fetchEmails();
+            InboxSnapshot previous = snapshot.get();
+            //Пустое окно при ошибке источника — скорее сбой сервера, чем пустой ящик: данные не затираем
+            if (emails.isEmpty() && previous != null && !previous.emails().isEmpty() && hasFailedSource()) {
+                System.err.println("Фоновое обновление не получило писем, оставляю снимок от " + previous.refreshedAt());
+                return;
+            }
+            snapshot.set(new InboxSnapshot(emails, MailService.windowCursor(emails), Instant.now(clock)));
+            System.out.println("Снимок окна обновлён: писем " + emails.size() + " за "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " мс");
+        } catch (Exception e) {
+            System.err.println("Ошибка фонового обновления почты: " + e.getMessage());
+        }
+    }
+
+    private boolean hasFailedSource() {
+        return mailService.getSourceStats().stream().anyMatch(stats -> stats.lastError() != null);
+    }
+}
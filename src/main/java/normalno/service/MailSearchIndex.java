@@ -0,0 +1,477 @@
+package normalno.service;
+
+import normalno.EmailAnalysis;
+import normalno.EmailMessage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Полнотекстовый поиск по уже полученным письмам без запросов IMAP SEARCH.
+ * Инвертированный индекс в памяти: для каждого слова — номера писем и взвешенная частота слова в письме
+ * (тема и краткое содержание весят больше текста). Ранжирование — BM25 по сумме полей.
+ * Письмо, проиндексированное повторно (например, после нового анализа), заменяет прежнюю версию:
+ * старая помечается удалённой, а удалённые номера вычищаются из индекса, когда их становится много.
+ * Хранится не больше mail.search.max-documents последних писем. Текст письма в индексе не хранится —
+ * его можно получить через GET /mails/{uid}/body.
+ */
+@Component
+public class MailSearchIndex {
+
+    static final int DEFAULT_LIMIT = 20;
+    static final int MAX_LIMIT = 100;
+
+    // Параметры BM25: насыщение частоты слова и влияние длины письма
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final float FROM_WEIGHT = 1.5f;
+    private static final float TO_WEIGHT = 1.0f;
+    private static final float SUBJECT_WEIGHT = 2.5f;
+    private static final float BODY_WEIGHT = 1.0f;
+    private static final float SUMMARY_WEIGHT = 2.0f;
+    private static final float INTENT_WEIGHT = 1.5f;
+
+    // Частые окончания русских слов: «договора», «договору» и «договор» ищутся одинаково
+    private static final String[] ENDINGS = {
+            "иями", "ями", "ами", "ого", "его", "ому", "ему", "ыми", "ими", "ией",
+            "ой", "ей", "ый", "ий", "ая", "яя", "ое", "ее", "ые", "ие", "ов", "ев", "ах", "ях", "ам", "ям",
+            "ом", "ем", "ию", "ия", "ии", "а", "я", "ы", "и", "е", "у", "ю", "о", "ь"};
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "и", "в", "во", "на", "не", "что", "по", "за", "от", "до", "из", "для", "это", "как", "но", "или",
+            "the", "and", "for", "to", "of", "in", "on", "is", "re", "fw", "fwd");
+
+    private final int maxDocuments;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<String, Integer> docByKey = new HashMap<>();
+    private final List<Document> documents = new ArrayList<>();
+    private float[] lengths = new float[1024];
+    // Приоритет письма (ordinal EmailAnalysis.Priority) рядом с длиной: фильтр не трогает сами письма
+    private byte[] priorities = new byte[1024];
+    private final BitSet deleted = new BitSet();
+    private int firstLive;
+    private int liveCount;
+    // Удалённые письма, номера которых ещё остаются в списках слов
+    private int unvacuumed;
+    private double totalLength;
+
+    public MailSearchIndex(@Value("${mail.search.max-documents:500000}") int maxDocuments) {
+        this.maxDocuments = Math.max(1, maxDocuments);
+    }
+
+    /**
+     * Письма одного слова: номера по возрастанию и взвешенная частота слова в каждом
+     */
+    private static final class Postings {
+        private int[] docs = new int[4];
+        private float[] frequencies = new float[4];
+        private int size;
+
+        private void add(int doc, float frequency) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            docs[size] = doc;
+            frequencies[size] = frequency;
+            size++;
+        }
+
+        /**
+         * Убирает удалённые письма и переводит номера на новые; remap[doc] < 0 — письмо удалено.
+         * Новые номера идут в том же порядке, поэтому список остаётся отсортированным
+         */
+        private void renumber(int[] remap) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int doc = remap[docs[i]];
+                if (doc >= 0) {
+                    docs[kept] = doc;
+                    frequencies[kept] = frequencies[i];
+                    kept++;
+                }
+            }
+            size = kept;
+            if (size > 4 && size < docs.length / 4) {
+                docs = Arrays.copyOf(docs, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+        }
+    }
+
+    /**
+     * Проход по списку одного слова запроса с его idf; удалённые письма пропускаются
+     */
+    private final class Cursor {
+        private final Postings list;
+        private final double idf;
+        private int position = -1;
+
+        private Cursor(Postings list, double idf) {
+            this.list = list;
+            this.idf = idf;
+            advance();
+        }
+
+        private int doc() {
+            return position < list.size ? list.docs[position] : Integer.MAX_VALUE;
+        }
+
+        private double score(double averageLength) {
+            double tf = list.frequencies[position];
+            double norm = K1 * (1 - B + B * lengths[list.docs[position]] / averageLength);
+            return idf * tf * (K1 + 1) / (tf + norm);
+        }
+
+        private void advance() {
+            do {
+                position++;
+            } while (position < list.size && deleted.get(list.docs[position]));
+        }
+    }
+
+    /**
+     * То, что возвращается в результатах поиска; null у удалённых
+     */
+    private record Document(String key, Hit hit) {
+    }
+
+    /**
+     * Найденное письмо. summary и intent — из анализа модели, priority — код уровня (high, medium, low, unknown)
+     */
+    public record Hit(String account, String folder, Long uid, String messageId, String from, String to,
+                      String subject, Instant receivedDate, String priority, String intent, String summary,
+                      double score) {
+
+        private Hit withScore(double newScore) {
+            return new Hit(account, folder, uid, messageId, from, to, subject, receivedDate, priority, intent,
+                    summary, newScore);
+        }
+    }
+
+    /**
+     * total — сколько писем подошло всего, hits — лучшие из них
+     */
+    public record SearchResult(int total, List<Hit> hits, long tookMicros) {
+    }
+
+    public record IndexStats(int documents, int terms, int deleted) {
+    }
+
+    /**
+     * Добавляет письма в индекс или заменяет их прежние версии. Письма без UID и Message-ID пропускаются
+     */
+    public void index(List<EmailMessage> emails) {
+        lock.writeLock().lock();
+        try {
+            for (EmailMessage email : emails) {
+                String key = keyOf(email);
+                if (key != null) {
+                    add(key, email);
+                }
+            }
+            while (liveCount > maxDocuments) {
+                int oldest = deleted.nextClearBit(firstLive);
+                delete(oldest);
+            }
+            // Удалённые номера только замедляют поиск: вычищаем, когда их больше, чем живых
+            if (unvacuumed > Math.max(1024, liveCount)) {
+                vacuum();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Ищет письма по словам запроса (любое слово, лучшие — с большим числом совпадений и более редкими словами).
+     * Пустой запрос возвращает последние письма, подходящие под фильтры.
+     * priority — код уровня (high, medium, low, unknown), intent — подстрока намерения из анализа.
+     */
+    public SearchResult search(String query, String priority, String intent, String account, String folder,
+                               Integer limit) {
+        long started = System.nanoTime();
+        int size = Math.max(1, Math.min(limit == null ? DEFAULT_LIMIT : limit, MAX_LIMIT));
+        String intentFilter = intent == null || intent.isBlank() ? null : intent.trim().toLowerCase(Locale.ROOT);
+        int priorityFilter = priorityOrdinal(priority);
+        List<String> terms = query == null ? List.of() : List.copyOf(tokenize(query).keySet());
+
+        lock.readLock().lock();
+        try {
+            PriorityQueue<Hit> best = new PriorityQueue<>(Comparator.comparingDouble(Hit::score));
+            int total = 0;
+            if (terms.isEmpty()) {
+                for (int doc = documents.size() - 1; doc >= firstLive; doc--) {
+                    Document document = documents.get(doc);
+                    if (document == null || (priorityFilter >= 0 && priorities[doc] != priorityFilter)
+                            || !matches(document.hit(), intentFilter, account, folder)) {
+                        continue;
+                    }
+                    total++;
+                    if (best.size() < size) {
+                        // Более новые письма получают больший номер и выше в выдаче
+                        best.add(document.hit().withScore(doc));
+                    }
+                }
+            } else {
+                List<Cursor> cursors = cursors(terms);
+                double averageLength = liveCount == 0 ? 1 : Math.max(1, totalLength / liveCount);
+                // Списки слов отсортированы по номеру: письма-кандидаты перебираются слиянием списков,
+                // и счёт каждого складывается сразу, без массива на все письма индекса
+                for (int doc = nextDoc(cursors); doc != Integer.MAX_VALUE; doc = nextDoc(cursors)) {
+                    double score = 0;
+                    for (Cursor cursor : cursors) {
+                        if (cursor.doc() == doc) {
+                            score += cursor.score(averageLength);
+                            cursor.advance();
+                        }
+                    }
+                    if (priorityFilter >= 0 && priorities[doc] != priorityFilter) {
+                        continue;
+                    }
+                    Document document = documents.get(doc);
+                    if (!matches(document.hit(), intentFilter, account, folder)) {
+                        continue;
+                    }
+                    total++;
+                    if (best.size() < size) {
+                        best.add(document.hit().withScore(score));
+                    } else if (best.peek().score() < score) {
+                        best.poll();
+                        best.add(document.hit().withScore(score));
+                    }
+                }
+            }
+            List<Hit> hits = new ArrayList<>(best);
+            hits.sort(Comparator.comparingDouble(Hit::score).reversed());
+            if (terms.isEmpty()) {
+                hits = hits.stream().map(hit -> hit.withScore(0)).toList();
+            }
+            return new SearchResult(total, hits, (System.nanoTime() - started) / 1000);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public IndexStats stats() {
+        lock.readLock().lock();
+        try {
+            return new IndexStats(liveCount, postings.size(), unvacuumed);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Курсоры по спискам слов запроса, которые есть в индексе
+     */
+    private List<Cursor> cursors(List<String> terms) {
+        List<Cursor> cursors = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            Postings list = postings.get(term);
+            if (list == null) {
+                continue;
+            }
+            // В размер списка входят ещё не вычищенные удалённые письма: для idf это несущественно
+            int frequency = Math.min(list.size, liveCount);
+            cursors.add(new Cursor(list, Math.log(1 + (liveCount - frequency + 0.5) / (frequency + 0.5))));
+        }
+        return cursors;
+    }
+
+    /**
+     * Наименьший номер письма, на котором стоят курсоры; Integer.MAX_VALUE, когда списки кончились
+     */
+    private static int nextDoc(List<Cursor> cursors) {
+        int doc = Integer.MAX_VALUE;
+        for (Cursor cursor : cursors) {
+            doc = Math.min(doc, cursor.doc());
+        }
+        return doc;
+    }
+
+    private static boolean matches(Hit hit, String intent, String account, String folder) {
+        if (intent != null && (hit.intent() == null || !hit.intent().toLowerCase(Locale.ROOT).contains(intent))) {
+            return false;
+        }
+        if (account != null && !account.equals(hit.account())) {
+            return false;
+        }
+        return folder == null || folder.equals(hit.folder());
+    }
+
+    private void add(String key, EmailMessage email) {
+        Integer previous = docByKey.get(key);
+        if (previous != null) {
+            delete(previous);
+        }
+
+        EmailAnalysis analysis = email.getAnalysis();
+        String summary = analysis == null ? null : analysis.summary();
+        String intent = analysis == null ? null : analysis.intent();
+        Map<String, Float> frequencies = new LinkedHashMap<>();
+        float length = 0;
+        length += addField(frequencies, email.getFrom(), FROM_WEIGHT);
+        length += addField(frequencies, email.getTo(), TO_WEIGHT);
+        length += addField(frequencies, email.getSubject(), SUBJECT_WEIGHT);
+        length += addField(frequencies, email.getBody(), BODY_WEIGHT);
+        length += addField(frequencies, summary, SUMMARY_WEIGHT);
+        length += addField(frequencies, intent, INTENT_WEIGHT);
+
+        int doc = documents.size();
+        Hit hit = new Hit(email.getAccount(), email.getFolder(), email.getUid(), email.getMessageId(),
+                email.getFrom(), email.getTo(), email.getSubject(), email.getReceivedDate(),
+                analysis == null ? EmailAnalysis.Priority.UNKNOWN.code() : analysis.priority().code(),
+                intent, summary, 0);
+        documents.add(new Document(key, hit));
+        if (doc == lengths.length) {
+            lengths = Arrays.copyOf(lengths, doc * 2);
+            priorities = Arrays.copyOf(priorities, doc * 2);
+        }
+        lengths[doc] = length;
+        priorities[doc] = (byte) (analysis == null ? EmailAnalysis.Priority.UNKNOWN : analysis.priority()).ordinal();
+        for (Map.Entry<String, Float> entry : frequencies.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), term -> new Postings()).add(doc, entry.getValue());
+        }
+        docByKey.put(key, doc);
+        liveCount++;
+        totalLength += length;
+    }
+
+    private static float addField(Map<String, Float> frequencies, String text, float weight) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        float length = 0;
+        for (Map.Entry<String, Integer> term : tokenize(text).entrySet()) {
+            frequencies.merge(term.getKey(), term.getValue() * weight, Float::sum);
+            length += term.getValue() * weight;
+        }
+        return length;
+    }
+
+    private void delete(int doc) {
+        if (deleted.get(doc)) {
+            return;
+        }
+        deleted.set(doc);
+        Document document = documents.get(doc);
+        docByKey.remove(document.key(), doc);
+        documents.set(doc, null);
+        liveCount--;
+        unvacuumed++;
+        totalLength -= lengths[doc];
+        while (firstLive < documents.size() && deleted.get(firstLive)) {
+            firstLive++;
+        }
+    }
+
+    /**
+     * Убирает удалённые письма из списков слов и сами пустые слова, а живые письма нумерует заново подряд,
+     * чтобы documents, lengths и priorities не росли вместе с числом когда-либо проиндексированных писем
+     */
+    private void vacuum() {
+        int[] remap = new int[documents.size()];
+        int live = 0;
+        for (int doc = 0; doc < documents.size(); doc++) {
+            if (deleted.get(doc)) {
+                remap[doc] = -1;
+                continue;
+            }
+            remap[doc] = live;
+            documents.set(live, documents.get(doc));
+            lengths[live] = lengths[doc];
+            priorities[live] = priorities[doc];
+            live++;
+        }
+        documents.subList(live, documents.size()).clear();
+        int capacity = Math.max(1024, Integer.highestOneBit(Math.max(1, live)) * 2);
+        if (capacity < lengths.length) {
+            lengths = Arrays.copyOf(lengths, capacity);
+            priorities = Arrays.copyOf(priorities, capacity);
+        }
+        docByKey.replaceAll((key, doc) -> remap[doc]);
+        postings.values().removeIf(list -> {
+            list.renumber(remap);
+            return list.size == 0;
+        });
+        deleted.clear();
+        firstLive = 0;
+        unvacuumed = 0;
+    }
+
+    /**
+     * Слова текста в нижнем регистре, без частых окончаний, с числом повторений
+     */
+    static Map<String, Integer> tokenize(String text) {
+        Map<String, Integer> terms = new LinkedHashMap<>();
+        StringBuilder word = new StringBuilder(32);
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c == 'ё' || c == 'Ё' ? 'е' : Character.toLowerCase(c));
+                continue;
+            }
+            if (word.length() > 0) {
+                String term = word.toString();
+                if (term.length() > 1 && !STOP_WORDS.contains(term)) {
+                    terms.merge(stem(term), 1, Integer::sum);
+                }
+                word.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * ordinal уровня по коду (high, medium, low, unknown); -1 — без фильтра, неизвестный код не совпадёт ни с чем
+     */
+    private static int priorityOrdinal(String code) {
+        if (code == null || code.isBlank()) {
+            return -1;
+        }
+        for (EmailAnalysis.Priority level : EmailAnalysis.Priority.values()) {
+            if (level.code().equals(code.trim().toLowerCase(Locale.ROOT))) {
+                return level.ordinal();
+            }
+        }
+        return Byte.MAX_VALUE;
+    }
+
+    private static String stem(String term) {
+        if (term.length() <= 4 || term.charAt(0) < 'а' || term.charAt(0) > 'я') {
+            return term;
+        }
+        for (String ending : ENDINGS) {
+            if (term.endsWith(ending) && term.length() - ending.length() >= 3) {
+                return term.substring(0, term.length() - ending.length());
+            }
+        }
+        return term;
+    }
+
+    private static String keyOf(EmailMessage email) {
+        if (email.getUid() != null) {
+            return email.getAccount() + "/" + email.getFolder() + "/" + email.getUid();
+        }
+        String messageId = email.getMessageId();
+        return messageId == null || messageId.isBlank() ? null : "mid:" + messageId.trim();
+    }
+}
@@ -1,147 +1,877 @@
 package normalno.service;
 
 import normalno.EmailMessage;
+import normalno.util.MailMetrics;
+import normalno.util.SingleFlight;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.mail.*;
 import jakarta.mail.internet.MimeMessage;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 public class MailService {
 
-    private final AiService aiService;
+    private final AnalysisPipeline analysisPipeline;
+    private final MailAccountProperties accountProperties;
+    private final MailMetrics metrics;
+    private final MailStore mailStore;
+    private final MailSearchIndex searchIndex;
 
-    @Value("${mail.user}")
+    //Одиночный ящик, если mail.accounts не задан
+    @Value("${mail.user:}")
     private String username;
 
-    @Value("${mail.password}")
+    @Value("${mail.password:}")
     private String password;
 
-    @Value("${mail.imap.host}")
+    @Value("${mail.imap.host:}")
     private String host;
 
-    @Value("${mail.imap.port}")
-    private String port;
+    @Value("${mail.imap.port:993}")
+    private String port = "993";
 
-    private Store store;
+    @Value("${mail.fetch.window-size:10}")
+    private int windowSize = 10;
 
-    public MailService(AiService aiService){
-        this.aiService = aiService;
+    @Value("${mail.fetch.body.lazy:true}")
+    private boolean lazyBody = true;
+
+    //Сколько байт текстовой части читать при получении окна; остальное — через fetchFullBody
+    @Value("${mail.fetch.body.preview-size:16KB}")
+    private DataSize bodyPreviewSize = DataSize.ofKilobytes(16);
+
+    @Value("${mail.fetch.source-timeout:30s}")
+    private Duration sourceTimeout = Duration.ofSeconds(30);
+
+    @Value("${mail.page.size:10}")
+    private int pageSize = 10;
+
+    @Value("${mail.page.max-size:50}")
+    private int maxPageSize = 50;
+
+    @Value("${mail.sync.incremental:true}")
+    private boolean incrementalSync = true;
+
+    private final Map<String, FolderSyncState> syncStates = new ConcurrentHashMap<>();
+    //Чтение нового и запись состояния источника: фоновый приём и обновление по запросу не теряют письма друг друга
+    private final Map<String, ReentrantLock> syncLocks = new ConcurrentHashMap<>();
+
+    private final Map<String, SourceStats> sourceStats = new ConcurrentHashMap<>();
+
+    private final AtomicInteger lastRefreshRoundTrips = new AtomicInteger(-1);
+
+    private volatile boolean pushIngestionActive;
+
+    //Папки ящика по умолчанию, которые держит актуальными фоновый приём почты
+    private final Set<String> pushSyncedFolders = ConcurrentHashMap.newKeySet();
+
+    @Value("${mail.imap.pool.size:4}")
+    private int poolSize = 4;
+
+    @Value("${mail.imap.pool.max-idle:5m}")
+    private Duration poolMaxIdle = Duration.ofMinutes(5);
+
+    @Value("${mail.imap.pool.validate-after:30s}")
+    private Duration poolValidateAfter = Duration.ofSeconds(30);
+
+    @Value("${mail.imap.pool.lease-timeout:10s}")
+    private Duration poolLeaseTimeout = Duration.ofSeconds(10);
+
+    private List<MailAccount> accounts = List.of();
+
+    private final ExecutorService executor;
+
+    //Одновременные обновления одного источника и запросы одной страницы выполняются один раз на всех
+    private final SingleFlight<String, SourceResult> sourceFlights;
+    private final SingleFlight<String, MailPage> pageFlights;
+
+    public MailService(AnalysisPipeline analysisPipeline, MailAccountProperties accountProperties,
+                       MailMetrics metrics, MailStore mailStore, MailSearchIndex searchIndex){
+        this.analysisPipeline = analysisPipeline;
+        this.accountProperties = accountProperties;
+        this.metrics = metrics;
+        this.mailStore = mailStore;
+        this.searchIndex = searchIndex;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "mail-fetch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sourceFlights = new SingleFlight<>(() -> metrics.increment(MailMetrics.COALESCED, "operation", "window"));
+        this.pageFlights = new SingleFlight<>(() -> metrics.increment(MailMetrics.COALESCED, "operation", "page"));
     }
 
     @PostConstruct
     public void init(){
-        System.out.println("Пытаюсь поключиться к почтовому серверу...");
-        connect();
+        List<MailAccount> created = new ArrayList<>();
+        for (MailAccountProperties.Account account : accountProperties.getAccounts()){
+            created.add(createAccount(account));
+        }
+        if (created.isEmpty()){
+            MailAccountProperties.Account legacy = new MailAccountProperties.Account();
+            legacy.setName(username == null || username.isBlank() ? "default" : username);
+            legacy.setUser(username);
+            legacy.setPassword(password);
+            legacy.setHost(host);
+            legacy.setPort(port);
+            created.add(createAccount(legacy));
+        }
+        accounts = List.copyOf(created);
+
+        warmStart();
+
+        System.out.println("Пытаюсь поключиться к почтовым серверам (ящиков: " + accounts.size() + ")...");
+        //Сразу открываем первое подключение каждого ящика, чтобы первый запрос не ждал SSL и LOGIN
+        for (MailAccount account : accounts){
+            executor.execute(() -> {
+                try (ImapConnectionPool.Lease lease = account.getConnectionPool().lease()) {
+                    lease.folder(account.getFolders().get(0));
+                } catch (Exception e) {
+                    System.err.println("Ошибка подключения к ящику " + account.getName() + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Окна папок из локального хранилища: первое обновление после перезапуска читает с сервера только новые UID
+     * и не отправляет в модель уже проанализированные письма. Все сохранённые письма попадают в поисковый индекс
+     * и в переписки.
+     */
+    void warmStart(){
+        //Письма читаются из журнала по одному: хранилище целиком в памяти не собирается
+        mailStore.forEach(email -> {
+            searchIndex.index(List.of(email));
+            analysisPipeline.restoreConversation(email);
+        });
+        if (!incrementalSync){
+            return;
+        }
+        for (MailAccount account : accounts){
+            for (String folder : account.getFolders()){
+                Source source = new Source(account, folder);
+                mailStore.load(account.getName(), folder, windowSize).ifPresent(state -> {
+                    analysisPipeline.restoreConversations(state.view());
+                    syncStates.put(source.key(), state);
+                });
+            }
+        }
     }
 
-    private void connect(){
-        Properties properties = new Properties();
-        properties.put("mail.store.protocol", "imaps");
-        properties.put("mail.imap.host", host);
-        properties.put("mail.imap.port", port);
-        properties.put("mail.imap.ssl.enable", "true");
-        properties.put("mail.imap.auth", "true");
-        properties.put("mail.imap.timeout", "5000");
-        properties.put("mail.imap.connectiontimeout", "5000");
+    @PreDestroy
+    public void shutdown(){
+        executor.shutdownNow();
+        accounts.forEach(MailAccount::close);
+    }
+
+    private MailAccount createAccount(MailAccountProperties.Account properties){
+        Properties sessionProperties = new Properties();
+        sessionProperties.put("mail.store.protocol", "imaps");
+        sessionProperties.put("mail.imap.host", properties.getHost());
+        sessionProperties.put("mail.imap.port", properties.getPort());
+        sessionProperties.put("mail.imap.ssl.enable", "true");
+        sessionProperties.put("mail.imap.auth", "true");
+        sessionProperties.put("mail.imap.timeout", "5000");
+        sessionProperties.put("mail.imap.connectiontimeout", "5000");
+        Session session = Session.getInstance(sessionProperties, null);
+
+        String name = properties.getName() == null ? properties.getUser() : properties.getName();
+        ImapConnectionPool.StoreFactory storeFactory = () -> {
+            long started = System.nanoTime();
+            try {
+                Store store = session.getStore("imaps");
+                //Порт передаётся явно: хранилище imaps читает mail.imaps.*, а не mail.imap.port
+                store.connect(properties.getHost(), port(properties), properties.getUser(), properties.getPassword());
+                metrics.recordSince(MailMetrics.IMAP_CONNECT, started, "account", name);
+                System.out.println("Успешно подключился к почтовому серверу ящика " + name + "!");
+                return store;
+            } catch (MessagingException e) {
+                metrics.recordError("connect", e);
+                throw e;
+            }
+        };
+        int size = properties.getPoolSize() == null ? poolSize : properties.getPoolSize();
+        ImapConnectionPool pool = new ImapConnectionPool(storeFactory, size, poolMaxIdle,
+                poolValidateAfter, poolLeaseTimeout);
+        List<String> folders = properties.getFolders() == null || properties.getFolders().isEmpty()
+                ? List.of("INBOX") : properties.getFolders();
+        return new MailAccount(name, folders, storeFactory, pool);
+    }
 
+    private static int port(MailAccountProperties.Account properties){
+        return properties.getPort() == null || properties.getPort().isBlank()
+                ? -1 : Integer.parseInt(properties.getPort().trim());
+    }
+
+    public List<EmailMessage> fetchEmails(){
+        return fetchEmails(MailStreamListener.NONE);
+    }
+
+    /**
+     * Получает окна писем всех ящиков и папок, сообщая слушателю о прочитанных письмах до начала анализа
+     * и о каждом анализе по мере готовности. Источники читаются параллельно: ошибка или зависание
+     * одного ящика не задерживает остальные дольше mail.fetch.source-timeout.
+     * Письма нескольких источников упорядочены по дате получения.
+     * Если тот же источник уже обновляется для другого запроса, вызов ждёт его результата
+     * и не читает папку и не анализирует письма повторно.
+     */
+    public List<EmailMessage> fetchEmails(MailStreamListener listener){
+        List<Source> sources = new ArrayList<>();
+        for (MailAccount account : accounts){
+            for (String folder : account.getFolders()){
+                sources.add(new Source(account, folder));
+            }
+        }
+
+        Map<Source, Future<SourceResult>> futures = new LinkedHashMap<>();
+        for (Source source : sources){
+            futures.put(source, executor.submit(() -> fetchShared(source, listener)));
+        }
+
+        long deadline = System.nanoTime() + sourceTimeout.toNanos();
+        List<EmailMessage> emails = new ArrayList<>();
+        int roundTrips = -1;
+        for (Map.Entry<Source, Future<SourceResult>> entry : futures.entrySet()){
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                SourceResult result = entry.getValue().get(remaining, TimeUnit.NANOSECONDS);
+                emails.addAll(result.emails());
+                if (result.roundTrips() >= 0){
+                    roundTrips = Math.max(roundTrips, 0) + result.roundTrips();
+                }
+            } catch (TimeoutException e) {
+                //Поток чтения не прерываем: он может уже анализировать письма и писать хранилище
+                entry.getKey().cancelled().set(true);
+                entry.getValue().cancel(false);
+                System.err.println("Источник " + entry.getKey().key() + " не ответил за " + sourceTimeout);
+                metrics.recordError("fetch", e);
+                recordFailure(entry.getKey(), "timeout", 0);
+            } catch (InterruptedException e) {
+                //Вызывающий отменён (например, клиент закрыл поток): остальные папки дочитывать не нужно
+                futures.forEach((source, future) -> {
+                    source.cancelled().set(true);
+                    future.cancel(false);
+                });
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                //fetchSource сам перехватывает ошибки источника, сюда попадают только непредвиденные
+                System.err.println("Ошибка источника " + entry.getKey().key() + ": " + e.getCause());
+            }
+        }
+        if (roundTrips >= 0){
+            lastRefreshRoundTrips.set(roundTrips);
+        }
+
+        if (sources.size() > 1){
+            //Сортировка стабильная: письма без даты остаются в порядке своего окна
+            emails.sort(Comparator.comparing(EmailMessage::getReceivedDate,
+                    Comparator.nullsFirst(Comparator.naturalOrder())));
+        }
+        return emails;
+    }
+
+    /**
+     * Окно источника через sourceFlights. Присоединившийся вызов получает копии писем,
+     * а его слушатель — те же события, что и у выполнившего обновление, только разом по завершении.
+     */
+    private SourceResult fetchShared(Source source, MailStreamListener listener){
+        boolean[] executed = new boolean[1];
+        SourceResult result = sourceFlights.execute(source.key(), () -> {
+            executed[0] = true;
+            return fetchSource(source, listener);
+        });
+        if (executed[0]){
+            return result;
+        }
+        List<EmailMessage> emails = copiesOf(result.emails());
+        listener.onFetched(emails);
+        emails.forEach(listener::onAnalyzed);
+        //Этот вызов к серверу не обращался
+        return new SourceResult(emails, 0);
+    }
+
+    /**
+     * Читает и анализирует окно одного источника; ошибки не выбрасываются, а попадают в статистику источника
+     */
+    private SourceResult fetchSource(Source source, MailStreamListener listener){
+        long started = System.nanoTime();
+        String key = source.key();
+
+        if (pushIngestionActive && source.account() == defaultAccount() && pushSyncedFolders.contains(source.folder())){
+            FolderSyncState state = syncStates.get(key);
+            if (state != null){
+                //Письма окна меняет фоновый приём, поэтому наружу уходят только копии
+                List<EmailMessage> emails = copiesOf(state.view());
+                listener.onFetched(emails);
+                recordSuccess(source, started, 0);
+                return new SourceResult(emails, 0);
+            }
+        }
+
+        ReentrantLock syncLock = syncLock(key);
+        syncLock.lock();
         try {
-            Session session = Session.getInstance(properties, null);
-            store = session.getStore("imaps");
-            store.connect(host, username, password);
-            System.out.println("Успешно подключился к почтовому серверу!");
+            return readSource(source, listener, started);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private ReentrantLock syncLock(String key){
+        return syncLocks.computeIfAbsent(key, k -> new ReentrantLock());
+    }
+
+    private SourceResult readSource(Source source, MailStreamListener listener, long started){
+        String key = source.key();
+        List<EmailMessage> emails = new ArrayList<>();
+        PendingSync pending = null;
+        int roundTripCount = -1;
+        try (ImapConnectionPool.Lease lease = source.account().getConnectionPool().lease()) {
+            // Папка открыта только для чтения и остаётся открытой в пуле между запросами
+            Folder folder = leaseFolder(lease, source);
+            ImapRoundTripCounter roundTrips = ImapRoundTripCounter.attach(folder,
+                    lease.isFreshlyOpened(source.folder()));
+            long fetchStarted = System.nanoTime();
+            try {
+                if (incrementalSync && folder instanceof UIDFolder uidFolder){
+                    pending = readNewMessages(source, folder, uidFolder);
+                } else {
+                    //Получаем последние письма
+                    Message[] messages = folder.getMessages();
+                    int start = Math.max(0, messages.length - windowSize);
+                    parseMessages(source, folder, Arrays.copyOfRange(messages, start, messages.length), null, emails);
+                    System.out.println("Получено писем из " + key + ": " + emails.size());
+                }
+            } catch (MessagingException e) {
+                //Подключение могло умереть: не возвращаем его в пул
+                lease.invalidate();
+                throw e;
+            } finally {
+                metrics.recordSince(MailMetrics.MESSAGE_FETCH, fetchStarted,
+                        "account", source.account().getName(), "operation", "window");
+                roundTripCount = reportRoundTrips(key, roundTrips);
+            }
         } catch (Exception e) {
-            System.err.println("Ошибка подключения: " + e.getMessage());
+            System.err.println("Ошибка при получении писем из " + key + ": " + e.getMessage());
             e.printStackTrace();
+            metrics.recordError("fetch", e);
+            recordFailure(source, e.getMessage(), started);
+            return new SourceResult(emails, roundTripCount);
         }
+
+        if (pending != null){
+            emails = completeSync(pending, listener);
+        } else {
+            //Анализируем уже после возврата подключения в пул: запросы к модели идут параллельно
+            listener.onFetched(emails);
+            analysisPipeline.analyzeAll(emails, listener);
+            searchIndex.index(emails);
+        }
+        recordSuccess(source, started, roundTripCount);
+        return new SourceResult(emails, roundTripCount);
     }
 
-    public List<EmailMessage> fetchEmails(){
+    /**
+     * Страница истории папки INBOX ящика по умолчанию, см. {@link #fetchPage(String, String, Long, Integer)}
+     */
+    public MailPage fetchPage(Long beforeUid, Integer size){
+        return fetchPage(null, null, beforeUid, size);
+    }
+
+    /**
+     * Страница истории папки: size писем с UID меньше beforeUid (или самые новые, если beforeUid == null)
+     * в порядке возрастания UID. С сервера читается и анализируется только эта страница.
+     * nextCursor — UID самого старого письма страницы или null, если старше писем нет.
+     * При size == null используется mail.page.size; без accountName и folderName — первая папка
+     * первого ящика. UID имеют смысл только внутри одной папки, поэтому курсор всегда относится к ней.
+     * Одинаковые одновременные запросы страницы читают и анализируют её один раз.
+     */
+    public MailPage fetchPage(String accountName, String folderName, Long beforeUid, Integer size){
+        Source source = resolveSource(accountName, folderName);
+        int limit = Math.max(1, Math.min(size == null ? pageSize : size, maxPageSize));
+        boolean[] executed = new boolean[1];
+        MailPage page = pageFlights.execute(source.key() + "?before=" + beforeUid + "&size=" + limit, () -> {
+            executed[0] = true;
+            return readPage(source, beforeUid, limit);
+        });
+        return executed[0] ? page : new MailPage(copiesOf(page.emails()), page.nextCursor());
+    }
+
+    private MailPage readPage(Source source, Long beforeUid, int limit){
         List<EmailMessage> emails = new ArrayList<>();
+        Long nextCursor = null;
+
+        try (ImapConnectionPool.Lease lease = source.account().getConnectionPool().lease()) {
+            Folder folder = leaseFolder(lease, source);
+            if (!(folder instanceof UIDFolder uidFolder)){
+                throw new MessagingException("Папка " + source.folder() + " не поддерживает UID");
+            }
+            long fetchStarted = System.nanoTime();
+            ImapRoundTripCounter roundTrips = ImapRoundTripCounter.attach(folder,
+                    lease.isFreshlyOpened(source.folder()));
+            try {
+                Message[] page = pageMessages(folder, uidFolder, beforeUid, limit);
+                parseMessages(source, folder, page, uidFolder, emails);
+                if (page.length > 0 && page[0].getMessageNumber() > 1){
+                    nextCursor = uidFolder.getUID(page[0]);
+                }
+                System.out.println("Получена страница писем " + source.key() + ": " + emails.size()
+                        + " (до UID " + beforeUid + ")");
+            } catch (MessagingException e) {
+                lease.invalidate();
+                throw e;
+            } finally {
+                metrics.recordSince(MailMetrics.MESSAGE_FETCH, fetchStarted,
+                        "account", source.account().getName(), "operation", "page");
+                int count = reportRoundTrips(source.key(), roundTrips);
+                if (count >= 0){
+                    lastRefreshRoundTrips.set(count);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Ошибка при получении страницы писем: " + e.getMessage());
+            e.printStackTrace();
+            metrics.recordError("fetch", e);
+        }
+
+        analysisPipeline.analyzeAll(emails);
+        searchIndex.index(emails);
+        return new MailPage(emails, nextCursor);
+    }
 
-        if (store == null || !store.isConnected()){
-            System.out.println("Нет подключения к почте. Переподключаюсь...");
-            connect();
-            if (store == null || !store.isConnected()){
-                System.out.println("Не удалось подключиться. Возвращаю пустой список.");
-                return emails;
+    /**
+     * Полный текст письма по UID для писем, у которых в окне только начало текста (bodyTruncated).
+     * Загружается только текстовая часть, вложения не скачиваются. Пусто, если письма уже нет.
+     */
+    public Optional<String> fetchFullBody(String accountName, String folderName, long uid){
+        Source source = resolveSource(accountName, folderName);
+        try (ImapConnectionPool.Lease lease = source.account().getConnectionPool().lease()) {
+            Folder folder = leaseFolder(lease, source);
+            if (!(folder instanceof UIDFolder uidFolder)){
+                throw new MessagingException("Папка " + source.folder() + " не поддерживает UID");
             }
+            long fetchStarted = System.nanoTime();
+            try {
+                Message message = uidFolder.getMessageByUID(uid);
+                if (!(message instanceof MimeMessage mimeMessage)){
+                    return Optional.empty();
+                }
+                FetchProfile profile = new FetchProfile();
+                profile.add(FetchProfile.Item.CONTENT_INFO);
+                folder.fetch(new Message[]{message}, profile);
+                return Optional.ofNullable(new MessageBodyReader(MessageBodyReader.NO_LIMIT).readFull(mimeMessage));
+            } catch (MessagingException e) {
+                lease.invalidate();
+                throw e;
+            } finally {
+                metrics.recordSince(MailMetrics.MESSAGE_FETCH, fetchStarted,
+                        "account", source.account().getName(), "operation", "body");
+            }
+        } catch (MessagingException | IOException e) {
+            metrics.recordError("fetch", e);
+            throw new IllegalStateException("Не удалось загрузить текст письма " + uid + ": " + e.getMessage(), e);
         }
+    }
 
+    /**
+     * Папка из подключения пула; время SELECT/EXAMINE пишется, только если папку пришлось открыть
+     */
+    private Folder leaseFolder(ImapConnectionPool.Lease lease, Source source) throws MessagingException {
+        long started = System.nanoTime();
+        Folder folder = lease.folder(source.folder());
+        if (lease.isFreshlyOpened(source.folder())){
+            metrics.recordSince(MailMetrics.FOLDER_OPEN, started, "account", source.account().getName());
+        }
+        return folder;
+    }
+
+    private Source resolveSource(String accountName, String folderName){
+        MailAccount account = defaultAccount();
+        if (accountName != null){
+            account = accounts.stream()
+                    .filter(candidate -> candidate.getName().equals(accountName))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Неизвестный почтовый ящик: " + accountName));
+        }
+        return new Source(account, folderName == null ? account.getFolders().get(0) : folderName);
+    }
+
+    /**
+     * Курсор окна для перехода к более старым письмам: UID первого письма, если все письма
+     * из одной папки одного ящика. Для смешанного окна курсора нет — UID разных папок несравнимы.
+     */
+    public static Long windowCursor(List<EmailMessage> emails){
+        if (emails.isEmpty()){
+            return null;
+        }
+        EmailMessage first = emails.get(0);
+        for (EmailMessage email : emails){
+            if (!Objects.equals(email.getAccount(), first.getAccount())
+                    || !Objects.equals(email.getFolder(), first.getFolder())){
+                return null;
+            }
+        }
+        return first.getUid();
+    }
+
+    /**
+     * Находит номера писем страницы: курсор переводится в порядковый номер одним UID FETCH,
+     * после чего страница забирается диапазоном номеров без перебора всего ящика.
+     */
+    private Message[] pageMessages(Folder folder, UIDFolder uidFolder, Long beforeUid, int limit)
+            throws MessagingException {
+        int end;
+        if (beforeUid == null){
+            end = folder.getMessageCount();
+        } else if (beforeUid <= 1){
+            return new Message[0];
+        } else {
+            Message cursor = uidFolder.getMessageByUID(beforeUid);
+            if (cursor != null){
+                end = cursor.getMessageNumber() - 1;
+            } else {
+                //Письмо-курсор удалено: берём UID всех писем старше него (ответ содержит только UID)
+                Message[] older = uidFolder.getMessagesByUID(1, beforeUid - 1);
+                return Arrays.copyOfRange(older, Math.max(0, older.length - limit), older.length);
+            }
+        }
+        if (end < 1){
+            return new Message[0];
+        }
+        return folder.getMessages(Math.max(1, end - limit + 1), end);
+    }
+
+    /**
+     * Досинхронизирует уже открытую папку ящика по умолчанию, не закрывая её.
+     * Используется фоновым приёмом почты, который держит папку открытой.
+     */
+    public void syncFolder(String folderName, Folder folder) throws MessagingException, IOException {
+        if (!(folder instanceof UIDFolder uidFolder)){
+            throw new MessagingException("Папка " + folderName + " не поддерживает UID");
+        }
+        Source source = new Source(defaultAccount(), folderName);
+        ReentrantLock syncLock = syncLock(source.key());
+        syncLock.lock();
         try {
-            // Открываем папку INBOX (входящие) только для чтения
-            Folder inbox = store.getFolder("INBOX");
-            inbox.open(Folder.READ_ONLY);
-
-            //Получаем последние 10 писем
-            Message[] messages = inbox.getMessages();
-            int start = Math.max(0, messages.length - 10);
-            int end = messages.length;
-
-            for (int i = start; i < end; i++) {
-                Message message = messages[i];
-                if (message instanceof MimeMessage mimeMessage){
-
-                    //Создаем наш объект EmailMessage из письма
-                    EmailMessage email = new EmailMessage();
-
-                    //Преобразуем адреса в строки
-                    Address[] fromAddresses = mimeMessage.getFrom();
-                    if (fromAddresses != null && fromAddresses.length > 0){
-                        email.setFrom(fromAddresses[0].toString());
-                    }else {
-                        email.setFrom("Неизвестный отправитель");
-                    }
-
-                    Address[] toAddresses = mimeMessage.getRecipients(Message.RecipientType.TO);
-                    if (toAddresses != null && toAddresses.length > 0){
-                        email.setTo(toAddresses[0].toString());
-                    }else {
-                        email.setTo("Неизвестный получатель");
-                    }
-
-                    email.setSubject(mimeMessage.getSubject());
-
-                    //Получаем текст письма
-                    Object content = mimeMessage.getContent();
-                    if (content instanceof String){
-                        email.setBody((String) content);
-                    } else if(content instanceof Multipart multipart){
-                        //Если письмо состоит из нескольких частей(текст + вложения)
-                        for (int j = 0; j < multipart.getCount(); j++) {
-                            BodyPart bodyPart = multipart.getBodyPart(j);
-                            if (bodyPart.getContentType().toLowerCase().contains("text/plain")){
-                                email.setBody(bodyPart.getContent().toString());
-                                break;
-                            }
-                        }
-                    }
-
-                    try {
-                        String analysis = aiService.analyzeEmail(email);
-                        email.setAiAnalysis(analysis);
-                    } catch (Exception e) {
-                        email.setAiAnalysis("Ошибка анализа письма: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-
-                    emails.add(email);
+            completeSync(readNewMessages(source, folder, uidFolder), MailStreamListener.NONE);
+        } finally {
+            syncLock.unlock();
+        }
+        pushSyncedFolders.add(folderName);
+    }
+
+    /**
+     * Открывает папку ящика по умолчанию только для чтения на отдельном подключении вне пула.
+     * Для IDLE нужно собственное долгоживущее соединение, поэтому вызывающий
+     * сам закрывает и папку, и её Store.
+     */
+    public Folder openFolder(String folderName) throws MessagingException {
+        Store store = defaultAccount().connect();
+        try {
+            Folder folder = store.getFolder(folderName);
+            folder.open(Folder.READ_ONLY);
+            return folder;
+        } catch (MessagingException e) {
+            store.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Включается фоновым приёмом почты: пока он жив, окно его папки всегда актуально
+     * и fetchEmails() отдаёт уже проанализированные письма этой папки, не обращаясь к серверу.
+     */
+    public void setPushIngestionActive(boolean active){
+        this.pushIngestionActive = active;
+    }
+
+    private MailAccount defaultAccount(){
+        return accounts.get(0);
+    }
+
+    private PendingSync readNewMessages(Source source, Folder folder, UIDFolder uidFolder)
+            throws MessagingException, IOException {
+        FolderSyncState state = syncStates.get(source.key());
+        long uidValidity = uidFolder.getUIDValidity();
+
+        List<EmailMessage> fresh = new ArrayList<>();
+        List<EmailMessage> retained = new ArrayList<>();
+        List<EmailMessage> retry = new ArrayList<>();
+        long lastUid = 0;
+
+        if (state == null || state.uidValidity() != uidValidity){
+            //UID из старого состояния больше ничего не значат — берём окно заново
+            System.out.println("Полная синхронизация папки " + source.key() + " (UIDVALIDITY " + uidValidity + ")");
+            int count = folder.getMessageCount();
+            if (count > 0){
+                parseMessages(source, folder, folder.getMessages(Math.max(1, count - windowSize + 1), count),
+                        uidFolder, fresh);
+            }
+        } else {
+            lastUid = state.lastUid();
+            //UID FETCH n:* возвращает последнее письмо, даже если его UID меньше n, поэтому фильтруем
+            List<Message> newMessages = new ArrayList<>();
+            for (Message message : uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID)){
+                if (message != null && uidFolder.getUID(message) > lastUid){
+                    newMessages.add(message);
                 }
             }
+            int start = Math.max(0, newMessages.size() - windowSize);
+            parseMessages(source, folder, newMessages.subList(start, newMessages.size()).toArray(new Message[0]),
+                    uidFolder, fresh);
 
-            inbox.close(false);//закрываем папку без удаления писем
-            System.out.println("Получено писем: " + emails.size());
-        } catch (Exception e) {
-            System.err.println("Ошибка при получении писем: " + e.getMessage());
-            e.printStackTrace();
+            //Письма, анализ которых не удался, отправляем в модель повторно
+            for (EmailMessage email : state.view()){
+                if (AnalysisPipeline.isFailed(email)){
+                    email = email.copy();
+                    retry.add(email);
+                }
+                retained.add(email);
+            }
         }
+        return new PendingSync(source, new FolderSyncState(uidValidity, lastUid, retained), fresh, retry);
+    }
 
+    private List<EmailMessage> completeSync(PendingSync pending, MailStreamListener listener){
+        //Окно собираем до анализа, чтобы слушатель сразу получил заголовки всех писем
+        FolderSyncState updated = pending.base().merge(pending.fresh(), windowSize);
+        List<EmailMessage> toAnalyze = new ArrayList<>(pending.retry());
+        toAnalyze.addAll(pending.fresh());
+        //Письма этой синхронизации слушатель получает как есть (onAnalyzed придёт для тех же объектов),
+        //остальные письма окна принадлежат общему состоянию и отдаются копиями
+        Set<EmailMessage> own = Collections.newSetFromMap(new IdentityHashMap<>());
+        own.addAll(toAnalyze);
+        listener.onFetched(updated.view().stream()
+                .map(email -> own.contains(email) ? email : email.copy())
+                .toList());
+
+        analysisPipeline.analyzeAll(toAnalyze, listener);
+        searchIndex.index(toAnalyze);
+
+        String key = pending.source().key();
+        syncStates.put(key, updated);
+        mailStore.save(pending.source().account().getName(), pending.source().folder(),
+                updated.uidValidity(), toAnalyze);
+        System.out.println("Синхронизация " + key + ": новых писем " + pending.fresh().size()
+                + ", в окне " + updated.view().size());
+        return copiesOf(updated.view());
+    }
+
+    private static List<EmailMessage> copiesOf(List<EmailMessage> view){
+        List<EmailMessage> emails = new ArrayList<>(view.size());
+        for (EmailMessage email : view){
+            emails.add(email.copy());
+        }
         return emails;
     }
+
+    /**
+     * Папка конкретного ящика; ключ используется для состояния синхронизации и статистики.
+     * cancelled выставляет вызывающий, которому результат больше не нужен: чтение прерывается
+     * между письмами и возвращает подключение в пул
+     */
+    private record Source(MailAccount account, String folder, AtomicBoolean cancelled) {
+        Source(MailAccount account, String folder){
+            this(account, folder, new AtomicBoolean());
+        }
+
+        String key(){
+            return account.getName() + "/" + folder;
+        }
+    }
+
+    private record SourceResult(List<EmailMessage> emails, int roundTrips) {
+    }
+
+    /**
+     * Прочитанные с сервера, но ещё не проанализированные изменения папки
+     */
+    private record PendingSync(Source source, FolderSyncState base,
+                               List<EmailMessage> fresh, List<EmailMessage> retry) {
+    }
+
+    /**
+     * Состояние источника после последнего обновления: время чтения, число IMAP-команд и последняя ошибка
+     */
+    public record SourceStats(String account, String folder, long lastFetchMillis, int lastRoundTrips,
+                              String lastError, Instant lastSuccess, long failures) {
+    }
+
+    private void recordSuccess(Source source, long startedNanos, int roundTrips){
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+        sourceStats.compute(source.key(), (key, previous) -> new SourceStats(source.account().getName(),
+                source.folder(), millis, roundTrips, null, Instant.now(),
+                previous == null ? 0 : previous.failures()));
+    }
+
+    private void recordFailure(Source source, String error, long startedNanos){
+        long millis = startedNanos == 0 ? sourceTimeout.toMillis()
+                : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+        sourceStats.compute(source.key(), (key, previous) -> new SourceStats(source.account().getName(),
+                source.folder(), millis, -1, error, previous == null ? null : previous.lastSuccess(),
+                previous == null ? 1 : previous.failures() + 1));
+    }
+
+    private static int reportRoundTrips(String key, ImapRoundTripCounter roundTrips){
+        roundTrips.detach();
+        if (!roundTrips.isAvailable()){
+            return -1;
+        }
+        System.out.println("IMAP-запросов за обновление " + key + ": " + roundTrips.count());
+        return roundTrips.count();
+    }
+
+    /**
+     * Количество IMAP-команд (round trip'ов), выполненных при последнем обновлении (сумма по всем источникам)
+     */
+    public int getLastRefreshRoundTrips(){
+        return lastRefreshRoundTrips.get();
+    }
+
+    /**
+     * Пул подключений ящика по умолчанию
+     */
+    public ImapConnectionPool.PoolStats getConnectionPoolStats(){
+        return defaultAccount().getConnectionPool().stats();
+    }
+
+    public Map<String, ImapConnectionPool.PoolStats> getConnectionPoolStatsByAccount(){
+        Map<String, ImapConnectionPool.PoolStats> stats = new LinkedHashMap<>();
+        for (MailAccount account : accounts){
+            stats.put(account.getName(), account.getConnectionPool().stats());
+        }
+        return stats;
+    }
+
+    public List<SourceStats> getSourceStats(){
+        return List.copyOf(sourceStats.values());
+    }
+
+    private void parseMessages(Source source, Folder folder, Message[] messages, UIDFolder uidFolder,
+                               List<EmailMessage> emails) throws MessagingException, IOException {
+        if (messages.length > 0){
+            //Одним FETCH забираем конверты, флаги и BODYSTRUCTURE всего окна,
+            //иначе каждый getFrom()/getSubject()/getContent() ходит на сервер отдельно
+            folder.fetch(messages, prefetchProfile());
+        }
+        MessageBodyReader bodyReader = new MessageBodyReader(
+                lazyBody ? (int) bodyPreviewSize.toBytes() : MessageBodyReader.NO_LIMIT);
+        for (Message message : messages) {
+            if (source.cancelled().get()){
+                //Подключение между командами исправно и возвращается в пул
+                throw new InterruptedIOException("Чтение " + source.key() + " отменено");
+            }
+            if (message instanceof MimeMessage mimeMessage){
+                //Разбор включает чтение текстовой части: для большой части это отдельный BODY.PEEK
+                long started = System.nanoTime();
+                EmailMessage email = parseMessage(folder, mimeMessage, bodyReader);
+                metrics.recordSince(MailMetrics.MIME_PARSE, started, "account", source.account().getName());
+                if (uidFolder != null){
+                    email.setUid(uidFolder.getUID(mimeMessage));
+                }
+                email.setAccount(source.account().getName());
+                email.setFolder(source.folder());
+                emails.add(email);
+            }
+        }
+    }
+
+    private static FetchProfile prefetchProfile(){
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(FetchProfile.Item.FLAGS);
+        profile.add(FetchProfile.Item.CONTENT_INFO);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        //Служебные заголовки для локального классификатора и заголовки цепочки переписки приходят в том же FETCH
+        RuleBasedClassifier.HEADERS.forEach(profile::add);
+        ConversationIndex.HEADERS.forEach(profile::add);
+        return profile;
+    }
+
+    private static Map<String, String> readHeaders(MimeMessage mimeMessage) throws MessagingException {
+        Map<String, String> headers = new HashMap<>();
+        for (List<String> names : List.of(RuleBasedClassifier.HEADERS, ConversationIndex.HEADERS)){
+            for (String name : names){
+                String value = mimeMessage.getHeader(name, ",");
+                if (value != null){
+                    headers.put(name.toLowerCase(Locale.ROOT), value);
+                }
+            }
+        }
+        return headers;
+    }
+
+    private EmailMessage parseMessage(Folder folder, MimeMessage mimeMessage, MessageBodyReader bodyReader)
+            throws MessagingException, IOException {
+        //Создаем наш объект EmailMessage из письма
+        EmailMessage email = new EmailMessage();
+        email.setMessageId(mimeMessage.getMessageID());
+
+        //Дата нужна для слияния окон нескольких ящиков; INTERNALDATE приходит в ENVELOPE-запросе
+        Date received = mimeMessage.getReceivedDate();
+        if (received == null){
+            received = mimeMessage.getSentDate();
+        }
+        email.setReceivedDate(received == null ? null : received.toInstant());
+
+        //Преобразуем адреса в строки
+        Address[] fromAddresses = mimeMessage.getFrom();
+        if (fromAddresses != null && fromAddresses.length > 0){
+            email.setFrom(fromAddresses[0].toString());
+        }else {
+            email.setFrom("Неизвестный отправитель");
+        }
+
+        Address[] toAddresses = mimeMessage.getRecipients(Message.RecipientType.TO);
+        if (toAddresses != null && toAddresses.length > 0){
+            email.setTo(toAddresses[0].toString());
+        }else {
+            email.setTo("Неизвестный получатель");
+        }
+
+        email.setSubject(mimeMessage.getSubject());
+        email.setHeaders(readHeaders(mimeMessage));
+
+        //Получаем текст письма: вложения не скачиваются, большая текстовая часть — только начало
+        MessageBodyReader.Body body = bodyReader.readPreview(folder, mimeMessage);
+        email.setBody(body.text());
+        email.setBodyTruncated(body.truncated());
+        return email;
+    }
 }
@@ -0,0 +1,424 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Локальное хранилище разобранных писем и их анализа, которое переживает перезапуск.
+ * Записи дописываются в конец журнала (одна JSON-строка на письмо, последняя запись письма главнее),
+ * а в памяти держится только индекс: ящик/папка → UIDVALIDITY → UID → смещение записи в файле.
+ * Индекс строится одним проходом по журналу при первом обращении, письма читаются по смещению,
+ * только когда нужны. В каждой папке хранится не больше mail.store.max-messages-per-folder последних писем;
+ * когда вытесненных и перезаписанных записей становится больше живых, журнал переписывается заново.
+ */
+@Component
+public class MailStore {
+
+    static final String LOG_FILE = "messages.log";
+
+    // Меньше этого числа мёртвых записей журнал не переписываем: выигрыш не стоит записи файла
+    private static final int MIN_DEAD_TO_COMPACT = 64;
+
+    private final Path directory;
+    private final int maxMessagesPerFolder;
+    private final ObjectMapper mapper = new ObjectMapper()
+            .findAndRegisterModules()
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+    private final Map<String, FolderIndex> folders = new HashMap<>();
+    private boolean loaded;
+    private long liveRecords;
+    private long deadRecords;
+    private long logSize;
+
+    public MailStore(@Value("${mail.store.dir:${user.home}/.mail-assistant/store}") String directory,
+                     @Value("${mail.store.max-messages-per-folder:1000}") int maxMessagesPerFolder) {
+        this.directory = directory == null || directory.isBlank() ? null : Path.of(directory);
+        this.maxMessagesPerFolder = Math.max(1, maxMessagesPerFolder);
+    }
+
+    /**
+     * Запись в журнале. Ключевые поля идут первыми, чтобы индекс строился без разбора всего письма
+     */
+    private record StoredEmail(String account, String folder, long uidValidity, long uid,
+                               Instant receivedDate, String messageId, String from, String to, String subject,
+                               String body, boolean bodyTruncated, String aiAnalysis, Map<String, String> headers) {
+    }
+
+    /**
+     * Письма одной папки при текущем UIDVALIDITY: UID → смещение записи
+     */
+    private static final class FolderIndex {
+        private final long uidValidity;
+        private final NavigableMap<Long, Long> offsets = new TreeMap<>();
+
+        private FolderIndex(long uidValidity) {
+            this.uidValidity = uidValidity;
+        }
+    }
+
+    /**
+     * Состояние синхронизации папки из хранилища: последние windowSize писем и наибольший UID.
+     * Пусто, если хранилище выключено или по папке ничего не сохранено.
+     */
+    public synchronized Optional<FolderSyncState> load(String account, String folder, int windowSize) {
+        if (directory == null) {
+            return Optional.empty();
+        }
+        ensureLoaded();
+        FolderIndex index = folders.get(sourceKey(account, folder));
+        if (index == null || index.offsets.isEmpty()) {
+            return Optional.empty();
+        }
+        List<EmailMessage> view = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(logFile().toFile(), "r")) {
+            Iterator<Long> offsets = index.offsets.descendingMap().values().iterator();
+            while (offsets.hasNext() && view.size() < windowSize) {
+                EmailMessage email = readEmail(file, offsets.next());
+                if (email == null) {
+                    offsets.remove();
+                    forget(1);
+                    continue;
+                }
+                view.add(0, email);
+            }
+        } catch (IOException e) {
+            System.err.println("Не удалось прочитать хранилище писем: " + e.getMessage());
+            return Optional.empty();
+        }
+        if (index.offsets.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(new FolderSyncState(index.uidValidity, index.offsets.lastKey(), view));
+    }
+
+    /**
+     * Дописывает письма папки (с их текущим анализом). Письма без UID не сохраняются.
+     * Новый UIDVALIDITY делает все прежние записи папки недействительными.
+     */
+    public synchronized void save(String account, String folder, long uidValidity, List<EmailMessage> emails) {
+        if (directory == null || emails.isEmpty()) {
+            return;
+        }
+        ensureLoaded();
+        String key = sourceKey(account, folder);
+        FolderIndex index = folders.get(key);
+        if (index == null || index.uidValidity != uidValidity) {
+            if (index != null) {
+                forget(index.offsets.size());
+            }
+            index = new FolderIndex(uidValidity);
+            folders.put(key, index);
+        }
+
+        try {
+            Files.createDirectories(directory);
+            try (OutputStream out = Files.newOutputStream(logFile(), StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND)) {
+                for (EmailMessage email : emails) {
+                    if (email.getUid() == null) {
+                        continue;
+                    }
+                    byte[] line = toLine(account, folder, uidValidity, email);
+                    out.write(line);
+                    if (index.offsets.put(email.getUid(), logSize) != null) {
+                        forget(1);
+                    }
+                    liveRecords++;
+                    logSize += line.length;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Не удалось сохранить письма в хранилище: " + e.getMessage());
+            return;
+        }
+
+        // Самые старые письма папки сверх лимита больше не нужны
+        while (index.offsets.size() > maxMessagesPerFolder) {
+            index.offsets.pollFirstEntry();
+            forget(1);
+        }
+        //Мёртвые записи, накопленные и до перезапуска, убираются при первой записи
+        if (deadRecords >= MIN_DEAD_TO_COMPACT && deadRecords > liveRecords) {
+            compact();
+        }
+    }
+
+    /**
+     * Передаёт все сохранённые письма, папка за папкой в порядке UID; например, для построения поискового индекса
+     */
+    public synchronized void forEach(Consumer<EmailMessage> consumer) {
+        if (directory == null) {
+            return;
+        }
+        ensureLoaded();
+        try (RandomAccessFile file = new RandomAccessFile(logFile().toFile(), "r")) {
+            for (FolderIndex index : folders.values()) {
+                Iterator<Long> offsets = index.offsets.values().iterator();
+                while (offsets.hasNext()) {
+                    EmailMessage email = readEmail(file, offsets.next());
+                    if (email == null) {
+                        offsets.remove();
+                        forget(1);
+                        continue;
+                    }
+                    consumer.accept(email);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Не удалось прочитать хранилище писем: " + e.getMessage());
+        }
+    }
+
+    public synchronized StoreStats stats() {
+        if (directory == null) {
+            return new StoreStats(0, 0, 0, 0);
+        }
+        ensureLoaded();
+        return new StoreStats(folders.size(), liveRecords, deadRecords, logSize);
+    }
+
+    /**
+     * Переписывает журнал, оставляя только живые записи, и подменяет файл атомарным переименованием
+     */
+    synchronized void compact() {
+        Path log = logFile();
+        if (!Files.exists(log)) {
+            return;
+        }
+        try {
+            Path tmp = Files.createTempFile(directory, "messages", ".tmp");
+            long size = 0;
+            try (RandomAccessFile in = new RandomAccessFile(log.toFile(), "r");
+                 OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (FolderIndex index : folders.values()) {
+                    for (Map.Entry<Long, Long> entry : index.offsets.entrySet()) {
+                        byte[] line = readLine(in, entry.getValue());
+                        out.write(line);
+                        out.write('\n');
+                        entry.setValue(size);
+                        size += line.length + 1;
+                    }
+                }
+            }
+            Files.move(tmp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Хранилище писем сжато: " + logSize + " → " + size + " байт");
+            logSize = size;
+            deadRecords = 0;
+        } catch (IOException e) {
+            //Индекс мог частично указать на новый файл: перечитываем журнал, который остался на месте
+            System.err.println("Не удалось сжать хранилище писем: " + e.getMessage());
+            folders.clear();
+            loaded = false;
+            ensureLoaded();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        liveRecords = 0;
+        deadRecords = 0;
+        logSize = 0;
+        Path log = logFile();
+        if (!Files.exists(log)) {
+            return;
+        }
+        long started = System.nanoTime();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(log), 64 * 1024)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+            long offset = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                //Повреждённая строка в середине журнала пропускается и уйдёт при сжатии; записи после неё целы
+                if (!indexLine(line.toByteArray(), offset)) {
+                    deadRecords++;
+                }
+                offset += line.size() + 1;
+                line.reset();
+            }
+            logSize = offset;
+        } catch (IOException e) {
+            System.err.println("Не удалось прочитать хранилище писем: " + e.getMessage());
+        }
+        try {
+            //Хвост без перевода строки, недописанный при аварийной остановке, отрезаем,
+            //иначе следующая запись приклеится к нему
+            if (Files.size(log) > logSize) {
+                try (RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+                    file.setLength(logSize);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Не удалось восстановить журнал хранилища: " + e.getMessage());
+        }
+        for (FolderIndex index : folders.values()) {
+            while (index.offsets.size() > maxMessagesPerFolder) {
+                index.offsets.pollFirstEntry();
+                forget(1);
+            }
+        }
+        System.out.println("Хранилище писем загружено: " + liveRecords + " писем, папок " + folders.size()
+                + ", " + (System.nanoTime() - started) / 1_000_000 + " мс");
+    }
+
+    /**
+     * Добавляет запись в индекс, читая только ключевые поля. false — запись повреждена
+     */
+    private boolean indexLine(byte[] line, long offset) {
+        String account = null;
+        String folder = null;
+        long uidValidity = -1;
+        long uid = -1;
+        try (JsonParser parser = mapper.getFactory().createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return false;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME && uid < 0) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "account" -> account = parser.getValueAsString();
+                    case "folder" -> folder = parser.getValueAsString();
+                    case "uidValidity" -> uidValidity = parser.getLongValue();
+                    case "uid" -> uid = parser.getLongValue();
+                    default -> parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        if (uid < 0 || line.length == 0 || line[line.length - 1] != '}') {
+            return false;
+        }
+
+        String key = sourceKey(account, folder);
+        FolderIndex index = folders.get(key);
+        if (index == null || index.uidValidity != uidValidity) {
+            if (index != null) {
+                forget(index.offsets.size());
+            }
+            index = new FolderIndex(uidValidity);
+            folders.put(key, index);
+        }
+        if (index.offsets.put(uid, offset) != null) {
+            forget(1);
+        }
+        liveRecords++;
+        return true;
+    }
+
+    private void forget(int records) {
+        liveRecords -= records;
+        deadRecords += records;
+    }
+
+    private byte[] toLine(String account, String folder, long uidValidity, EmailMessage email) throws IOException {
+        StoredEmail stored = new StoredEmail(account, folder, uidValidity, email.getUid(), email.getReceivedDate(),
+                email.getMessageId(), email.getFrom(), email.getTo(), email.getSubject(), email.getBody(),
+                email.isBodyTruncated(), email.getAiAnalysis(), email.getHeaders());
+        byte[] json = mapper.writeValueAsBytes(stored);
+        byte[] line = new byte[json.length + 1];
+        System.arraycopy(json, 0, line, 0, json.length);
+        line[json.length] = '\n';
+        return line;
+    }
+
+    private static EmailMessage toEmail(StoredEmail stored) {
+        EmailMessage email = new EmailMessage();
+        email.setUid(stored.uid());
+        email.setAccount(stored.account());
+        email.setFolder(stored.folder());
+        email.setReceivedDate(stored.receivedDate());
+        email.setMessageId(stored.messageId());
+        email.setFrom(stored.from());
+        email.setTo(stored.to());
+        email.setSubject(stored.subject());
+        email.setBody(stored.body());
+        email.setBodyTruncated(stored.bodyTruncated());
+        if (stored.aiAnalysis() != null) {
+            email.setAiAnalysis(stored.aiAnalysis());
+        }
+        email.setHeaders(stored.headers() == null ? Map.of() : Map.copyOf(stored.headers()));
+        return email;
+    }
+
+    /**
+     * Строка журнала по смещению, без завершающего перевода строки
+     */
+    /**
+     * Письмо из записи журнала или null, если запись — корректный JSON, но не письмо (например, чужой формат даты).
+     * Такая запись, как и повреждённая строка при загрузке, считается мёртвой и уходит при сжатии.
+     */
+    private EmailMessage readEmail(RandomAccessFile file, long offset) throws IOException {
+        byte[] line = readLine(file, offset);
+        try {
+            return toEmail(mapper.readValue(line, StoredEmail.class));
+        } catch (JsonProcessingException | RuntimeException e) {
+            System.err.println("Пропущена повреждённая запись хранилища писем: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static byte[] readLine(RandomAccessFile file, long offset) throws IOException {
+        file.seek(offset);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = file.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    line.write(buffer, 0, i);
+                    return line.toByteArray();
+                }
+            }
+            line.write(buffer, 0, read);
+        }
+        return line.toByteArray();
+    }
+
+    private Path logFile() {
+        return directory.resolve(LOG_FILE);
+    }
+
+    private static String sourceKey(String account, String folder) {
+        return account + "/" + folder;
+    }
+
+    public record StoreStats(int folders, long messages, long deadRecords, long logBytes) {
+    }
+}
@@ -0,0 +1,42 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+
+import java.util.List;
+
+/**
+ * Получает письма по мере готовности: сначала всё окно сразу после чтения
+ * с сервера, затем каждый анализ, как только он завершится. Методы вызываются
+ * из потоков анализа, поэтому реализация должна быть потокобезопасной.
+ */
+public interface MailStreamListener {
+
+    MailStreamListener NONE = new MailStreamListener() {
+    };
+
+    /**
+     * Окно писем прочитано. Часть писем может быть уже проанализирована
+     * (кэш или предыдущая синхронизация). Письма изменять нельзя.
+     */
+    default void onFetched(List<EmailMessage> emails) {
+    }
+
+    /**
+     * Анализ письма завершён (успешно или с ошибкой). Передаётся тот же объект, что и в onFetched.
+     */
+    default void onAnalyzed(EmailMessage email) {
+    }
+
+    /**
+     * Очередной фрагмент ответа модели. Вызывается, только если streamTokens() возвращает true.
+     */
+    default void onToken(EmailMessage email, String token) {
+    }
+
+    /**
+     * Нужно ли получать ответ модели по кусочкам через потоковый API
+     */
+    default boolean streamTokens() {
+        return false;
+    }
+}
@@ -0,0 +1,208 @@
+package normalno.service;
+
+import normalno.util.HtmlTextConverter;
+
+import jakarta.mail.BodyPart;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimePart;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.ParseException;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.protocol.BODY;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Читает текст письма, не скачивая вложения. Структура письма уже известна из BODYSTRUCTURE
+ * (см. prefetch в MailService): обход вложенных multipart идёт по ней, части-вложения
+ * пропускаются без загрузки и декодирования. Из найденных частей берётся text/plain,
+ * а если его нет — text/html, который потоково переводится в текст.
+ * У большой текстовой части с сервера забирается только начало: BODY.PEEK[section]&lt;0.previewBytes&gt;.
+ * Полный текст той же части загружается отдельно через {@link #readFull(MimeMessage)}.
+ */
+class MessageBodyReader {
+
+    // Частичная загрузка выключена: текстовая часть читается целиком, как раньше
+    static final int NO_LIMIT = 0;
+
+    // Потолок полного текста: письмо-«простыня» не должно занимать всю память
+    static final int MAX_FULL_BODY_CHARS = 1_000_000;
+
+    private static final int READ_BUFFER_CHARS = 4096;
+
+    private final int previewBytes;
+
+    MessageBodyReader(int previewBytes) {
+        this.previewBytes = previewBytes;
+    }
+
+    /**
+     * Текст письма; truncated — прочитано только начало текстовой части
+     */
+    record Body(String text, boolean truncated) {
+    }
+
+    /**
+     * Текстовая часть письма и её номер секции в IMAP (TEXT для однокомпонентного письма, «1.2» для вложенной)
+     */
+    private record TextPart(Part part, String section, boolean html) {
+    }
+
+    Body readPreview(Folder folder, MimeMessage message) throws MessagingException, IOException {
+        return read(folder, message, previewBytes);
+    }
+
+    /**
+     * Текстовая часть целиком (до MAX_FULL_BODY_CHARS символов); вложения по-прежнему не загружаются
+     */
+    String readFull(MimeMessage message) throws MessagingException, IOException {
+        return read(null, message, NO_LIMIT).text();
+    }
+
+    private Body read(Folder folder, MimeMessage message, int limit) throws MessagingException, IOException {
+        TextPart text = findText(message, null);
+        if (text == null) {
+            return new Body(null, false);
+        }
+
+        if (limit > NO_LIMIT && text.part().getSize() > limit) {
+            byte[] bytes = peekSection(folder, message, text.section(), limit);
+            if (bytes != null) {
+                try (InputStream decoded = decodePrefix(bytes, text.part())) {
+                    return new Body(readText(decoded, text, NO_LIMIT).text(), true);
+                }
+            }
+        }
+
+        //Часть читается потоком уже декодированной, без промежуточной строки всего содержимого
+        try (InputStream stream = text.part().getInputStream()) {
+            return readText(stream, text, limit > NO_LIMIT ? limit : MAX_FULL_BODY_CHARS);
+        }
+    }
+
+    /**
+     * Обход дерева MIME в глубину. В multipart/alternative и multipart/mixed выигрывает первый text/plain,
+     * иначе первый text/html. Вложения и пересланные письма (message/rfc822) не рассматриваются.
+     */
+    private static TextPart findText(Part part, String section) throws MessagingException, IOException {
+        ContentType type = contentTypeOf(part);
+        if (type.match("multipart/*")) {
+            //Для IMAP-письма части строятся по BODYSTRUCTURE, содержимое при этом не загружается
+            if (!(part.getContent() instanceof Multipart multipart)) {
+                return null;
+            }
+            TextPart html = null;
+            for (int j = 0; j < multipart.getCount(); j++) {
+                BodyPart child = multipart.getBodyPart(j);
+                String childSection = section == null ? String.valueOf(j + 1) : section + "." + (j + 1);
+                TextPart found = findText(child, childSection);
+                if (found != null && !found.html()) {
+                    return found;
+                }
+                if (html == null) {
+                    html = found;
+                }
+            }
+            return html;
+        }
+        if (isAttachment(part)) {
+            return null;
+        }
+        String textSection = section == null ? "TEXT" : section;
+        if (type.match("text/plain")) {
+            return new TextPart(part, textSection, false);
+        }
+        if (type.match("text/html")) {
+            return new TextPart(part, textSection, true);
+        }
+        return null;
+    }
+
+    private static boolean isAttachment(Part part) throws MessagingException {
+        return Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()) || part.getFileName() != null;
+    }
+
+    private static ContentType contentTypeOf(Part part) throws MessagingException {
+        String contentType = part.getContentType();
+        try {
+            //Без Content-Type часть по RFC 2045 считается text/plain
+            return new ContentType(contentType == null ? "text/plain" : contentType);
+        } catch (ParseException e) {
+            return new ContentType("text", "plain", null);
+        }
+    }
+
+    private static Body readText(InputStream stream, TextPart text, int maxChars) throws IOException {
+        if (stream == null) {
+            return new Body(null, false);
+        }
+        Reader reader = new InputStreamReader(stream, charsetOf(text.part()));
+        StringBuilder out = new StringBuilder(Math.min(maxChars > 0 ? maxChars : READ_BUFFER_CHARS, 64 * 1024));
+        boolean complete;
+        if (text.html()) {
+            complete = HtmlTextConverter.convert(reader, out, maxChars);
+        } else {
+            complete = copy(reader, out, maxChars);
+        }
+        return new Body(out.toString(), !complete);
+    }
+
+    private static boolean copy(Reader reader, StringBuilder out, int maxChars) throws IOException {
+        char[] buffer = new char[READ_BUFFER_CHARS];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            if (maxChars > 0 && out.length() + read > maxChars) {
+                out.append(buffer, 0, maxChars - out.length());
+                return false;
+            }
+            out.append(buffer, 0, read);
+        }
+        return true;
+    }
+
+    /**
+     * Начало секции письма без установки флага \Seen. null, если папка не IMAP
+     */
+    byte[] peekSection(Folder folder, Message message, String section, int size) throws MessagingException {
+        if (!(folder instanceof IMAPFolder imapFolder)) {
+            return null;
+        }
+        int number = message.getMessageNumber();
+        Object body = imapFolder.doCommand(protocol -> protocol.peekBody(number, section, 0, size));
+        return body instanceof BODY fetched ? fetched.getByteArrayInputStream().readAllBytes() : null;
+    }
+
+    private static InputStream decodePrefix(byte[] bytes, Part part) throws MessagingException {
+        //Последняя строка могла оборваться посреди base64-квартета, =XX или многобайтового символа
+        int end = bytes.length;
+        for (int i = bytes.length - 1; i > 0; i--) {
+            if (bytes[i] == '\n') {
+                end = i + 1;
+                break;
+            }
+        }
+        String encoding = part instanceof MimePart mimePart ? mimePart.getEncoding() : null;
+        return MimeUtility.decode(new ByteArrayInputStream(bytes, 0, end), encoding == null ? "7bit" : encoding);
+    }
+
+    private static Charset charsetOf(Part part) {
+        try {
+            String charset = contentTypeOf(part).getParameter("charset");
+            return charset == null ? StandardCharsets.UTF_8 : Charset.forName(MimeUtility.javaCharset(charset));
+        } catch (Exception e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+}
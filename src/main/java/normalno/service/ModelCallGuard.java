@@ -0,0 +1,217 @@
+package normalno.service;
+
+import normalno.util.MailMetrics;
+
+import org.springframework.http.HttpStatusCode;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientResponseException;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Обёртка каждого запроса к модели: предохранитель, адаптивный лимит одновременных запросов
+ * и повторы с экспоненциальной задержкой и разбросом. Повторяются только временные сбои
+ * (таймауты, обрывы, 5xx) и 429; ошибка в самом запросе (400, битый промпт) возвращается сразу.
+ */
+@Component
+public class ModelCallGuard {
+
+    /**
+     * Вид сбоя: THROTTLED — провайдер просит снизить нагрузку, TRANSIENT — стоит повторить,
+     * PERMANENT — повтор не поможет и о здоровье провайдера ничего не говорит
+     */
+    enum Failure {
+        THROTTLED, TRANSIENT, PERMANENT
+    }
+
+    static final String LIMITER_LIMIT = "mail.ai.limiter.limit";
+    static final String LIMITER_IN_FLIGHT = "mail.ai.limiter.in-flight";
+    static final String BREAKER_STATE = "mail.ai.breaker.state";
+    static final String RETRIES = "mail.ai.retries";
+    static final String REJECTED = "mail.ai.rejected";
+    static final String ATTEMPT = "mail.ai.attempt";
+
+    private final AdaptiveLimiter limiter;
+    private final CircuitBreaker breaker;
+    private final ModelResilienceProperties.Retry retry;
+    private final MailMetrics metrics;
+
+    private final AtomicLong retries = new AtomicLong();
+
+    public ModelCallGuard(ModelResilienceProperties properties, MailMetrics metrics) {
+        ModelResilienceProperties.Limiter limits = properties.getLimiter();
+        this.limiter = new AdaptiveLimiter(limits.getInitial(), limits.getMin(), limits.getMax(),
+                limits.getLatencyThreshold(), limits.getLatencyBackoff(), limits.getThrottleBackoff(),
+                limits.getAcquireTimeout());
+        ModelResilienceProperties.Breaker breakerProperties = properties.getBreaker();
+        this.breaker = new CircuitBreaker(breakerProperties.getWindow(), breakerProperties.getMinCalls(),
+                breakerProperties.getFailureRate(), breakerProperties.getOpenDuration(), Clock.systemUTC());
+        this.retry = properties.getRetry();
+        this.metrics = metrics;
+
+        metrics.gauge(LIMITER_LIMIT, limiter, AdaptiveLimiter::limit);
+        metrics.gauge(LIMITER_IN_FLIGHT, limiter, AdaptiveLimiter::inFlight);
+        // 0 — замкнута, 1 — разомкнута, 2 — пробный вызов
+        metrics.gauge(BREAKER_STATE, breaker, guarded -> guarded.state().ordinal());
+    }
+
+    /**
+     * Выполняет запрос к модели. retryable проверяется перед повтором: например, потоковый ответ,
+     * часть которого уже ушла клиенту, повторять нельзя.
+     *
+     * @throws ModelUnavailableException цепь разомкнута или не дождались слота лимита — запрос не отправлялся
+     */
+    public <T> T call(String mode, Supplier<T> call, BooleanSupplier retryable) {
+        for (int attempt = 1; ; attempt++) {
+            if (!breaker.tryAcquire()) {
+                metrics.increment(REJECTED, "reason", "circuit-open");
+                throw new ModelUnavailableException("Модель временно недоступна: слишком много ошибок подряд");
+            }
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                breaker.onIgnored();
+                throw new ModelUnavailableException("Ожидание слота для запроса к модели прервано");
+            } catch (ModelUnavailableException e) {
+                breaker.onIgnored();
+                metrics.increment(REJECTED, "reason", "limiter-timeout");
+                throw e;
+            }
+
+            long started = System.nanoTime();
+            RuntimeException error;
+            Failure failure;
+            AdaptiveLimiter.Outcome outcome = AdaptiveLimiter.Outcome.FAILED;
+            try {
+                T result = call.get();
+                outcome = AdaptiveLimiter.Outcome.SUCCESS;
+                breaker.onSuccess();
+                return result;
+            } catch (RuntimeException e) {
+                error = e;
+                failure = classify(e);
+                if (failure == Failure.THROTTLED) {
+                    outcome = AdaptiveLimiter.Outcome.THROTTLED;
+                }
+                if (failure == Failure.PERMANENT) {
+                    breaker.onIgnored();
+                } else {
+                    breaker.onFailure();
+                }
+            } finally {
+                long latency = System.nanoTime() - started;
+                limiter.release(outcome, latency);
+                metrics.recordSince(ATTEMPT, started, "mode", mode,
+                        "outcome", outcome.name().toLowerCase(Locale.ROOT));
+            }
+
+            if (failure == Failure.PERMANENT || attempt >= retry.getMaxAttempts() || !retryable.getAsBoolean()) {
+                throw error;
+            }
+            retries.incrementAndGet();
+            metrics.increment(RETRIES, "mode", mode, "reason", failure.name().toLowerCase(Locale.ROOT));
+            System.out.println("Повтор запроса к модели (" + failure + ", попытка " + (attempt + 1) + "): "
+                    + error.getMessage());
+            if (!sleep(backoff(attempt))) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Провайдер сейчас считается неисправным: вызовы отклоняются или идёт пробный вызов
+     */
+    public boolean isDegraded() {
+        return breaker.state() != CircuitBreaker.State.CLOSED;
+    }
+
+    public GuardStats stats() {
+        return new GuardStats(limiter.limit(), limiter.inFlight(), breaker.state().name(), limiter.throttled(),
+                retries.get(), breaker.rejected(), limiter.timedOut(), breaker.opened());
+    }
+
+    /**
+     * Задержка перед повтором attempt + 1: экспонента с половинным разбросом («equal jitter»),
+     * чтобы параллельные запросы не возвращались к провайдеру одновременно
+     */
+    Duration backoff(int attempt) {
+        long base = retry.getInitialBackoff().toMillis();
+        long capped = Math.min(retry.getMaxBackoff().toMillis(), base << Math.min(attempt - 1, 20));
+        long half = capped / 2;
+        return Duration.ofMillis(half + ThreadLocalRandom.current().nextLong(half + 1));
+    }
+
+    /**
+     * Вид сбоя по типу исключения и HTTP-статусу в цепочке причин. Текст сообщений не учитывается:
+     * формулировки провайдера и локализация не должны менять поведение повторов.
+     */
+    static Failure classify(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            Integer status = statusOf(cause);
+            if (status != null) {
+                if (status == 429) {
+                    return Failure.THROTTLED;
+                }
+                return status >= 500 || status == 408 ? Failure.TRANSIENT : Failure.PERMANENT;
+            }
+            if (cause instanceof IOException || cause instanceof TimeoutException) {
+                return Failure.TRANSIENT;
+            }
+            // Исключения Spring AI из spring-ai-retry узнаём по имени, не завися от модуля напрямую
+            String type = cause.getClass().getSimpleName();
+            if (type.equals("TransientAiException")) {
+                return Failure.TRANSIENT;
+            }
+            if (type.equals("NonTransientAiException")) {
+                return Failure.PERMANENT;
+            }
+        }
+        return Failure.PERMANENT;
+    }
+
+    /**
+     * HTTP-статус ответа провайдера: RestClient или WebClient (потоковые ответы); null, если это не ответ сервера
+     */
+    private static Integer statusOf(Throwable cause) {
+        if (cause instanceof RestClientResponseException response) {
+            return response.getStatusCode().value();
+        }
+        // WebClient из spring-webflux узнаём по имени, как и исключения Spring AI
+        if (cause.getClass().getSimpleName().equals("WebClientResponseException")) {
+            try {
+                if (cause.getClass().getMethod("getStatusCode").invoke(cause) instanceof HttpStatusCode code) {
+                    return code.value();
+                }
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean sleep(Duration delay) {
+        try {
+            Thread.sleep(delay.toMillis());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Состояние защиты для /stats/ai
+     */
+    public record GuardStats(int limit, int inFlight, String breakerState, long throttled, long retries,
+                             long rejected, long limiterTimeouts, long breakerOpened) {
+    }
+}
@@ -0,0 +1,54 @@
+package normalno.service;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Настройки защиты вызовов модели:
+ * <pre>
+ * mail.ai.limiter.initial=4           # стартовый лимит одновременных запросов
+ * mail.ai.limiter.max=16              # выше mail.analysis.max-in-flight лимит всё равно не поднимется
+ * mail.ai.limiter.latency-threshold=15s
+ * mail.ai.retry.max-attempts=3
+ * mail.ai.breaker.failure-rate=0.5
+ * mail.ai.breaker.open-duration=30s
+ * </pre>
+ */
+@Data
+@ConfigurationProperties(prefix = "mail.ai")
+public class ModelResilienceProperties {
+
+    private Limiter limiter = new Limiter();
+    private Retry retry = new Retry();
+    private Breaker breaker = new Breaker();
+
+    @Data
+    public static class Limiter {
+        private int initial = 4;
+        private int min = 1;
+        private int max = 16;
+        // Ответ дольше этого считается признаком перегрузки провайдера
+        private Duration latencyThreshold = Duration.ofSeconds(15);
+        private double latencyBackoff = 0.9;
+        private double throttleBackoff = 0.5;
+        private Duration acquireTimeout = Duration.ofSeconds(60);
+    }
+
+    @Data
+    public static class Retry {
+        // Всего попыток, включая первую
+        private int maxAttempts = 3;
+        private Duration initialBackoff = Duration.ofMillis(500);
+        private Duration maxBackoff = Duration.ofSeconds(8);
+    }
+
+    @Data
+    public static class Breaker {
+        private int window = 20;
+        private int minCalls = 5;
+        private double failureRate = 0.5;
+        private Duration openDuration = Duration.ofSeconds(30);
+    }
+}
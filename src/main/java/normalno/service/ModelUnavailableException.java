@@ -0,0 +1,11 @@
+package normalno.service;
+
+/**
+ * Запрос к модели не отправлялся: цепь разомкнута или не дождались свободного слота лимита
+ */
+public class ModelUnavailableException extends RuntimeException {
+
+    public ModelUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,258 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Поиск почти одинаковых писем: уведомлений, алертов и рассылок по шаблону, которые отличаются
+ * только именем, номером или датой. Для темы и текста считается 64-битный SimHash по словам и парам слов
+ * (числа отбрасываются); у похожих текстов отпечатки отличаются в нескольких битах.
+ * Отпечаток делится на maxDistance + 1 полос: если отпечатки отличаются не больше чем в maxDistance битах,
+ * хотя бы одна полоса совпадает целиком, поэтому кандидаты ищутся по полосам (LSH), без перебора всех писем.
+ * Анализ берётся только у письма с того же адреса: одинаковый шаблон от разных систем или разных людей
+ * одного домена значит разное. Выключен по умолчанию, включается mail.analysis.near-duplicate.enabled=true.
+ */
+@Component
+public class NearDuplicateIndex {
+
+    private final int maxDistance;
+    private final int maxEntries;
+    private final int minFeatures;
+    private final int bands;
+    private final int bandBits;
+
+    // Отпечаток → запись; порядок доступа нужен для вытеснения самых давних
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Ключ полосы (номер полосы и её биты) → отпечатки с такой полосой
+    private final Map<Long, List<Long>> buckets = new HashMap<>();
+
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong();
+
+    public NearDuplicateIndex(@Value("${mail.analysis.near-duplicate.enabled:false}") boolean enabled,
+                              @Value("${mail.analysis.near-duplicate.max-distance:3}") int maxDistance,
+                              @Value("${mail.analysis.near-duplicate.max-entries:10000}") int maxEntries,
+                              @Value("${mail.analysis.near-duplicate.min-words:8}") int minFeatures) {
+        this.maxDistance = enabled ? Math.min(maxDistance, 15) : -1;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.minFeatures = minFeatures;
+        this.bands = Math.max(1, this.maxDistance + 1);
+        this.bandBits = 64 / bands;
+    }
+
+    /**
+     * Выключенный индекс: ничего не находит и не запоминает
+     */
+    public static NearDuplicateIndex disabled() {
+        return new NearDuplicateIndex(false, 3, 1, 0);
+    }
+
+    private record Entry(long fingerprint, String sender, String analysis) {
+    }
+
+    /**
+     * Отпечаток письма и адрес отправителя; fingerprint не вычислен, если слов слишком мало
+     */
+    record Fingerprint(long value, String sender, boolean usable) {
+    }
+
+    public boolean isEnabled() {
+        return maxDistance >= 0;
+    }
+
+    /**
+     * Анализ почти такого же письма того же отправителя или null.
+     * Учитывается в доле повторно использованных анализов.
+     */
+    public String findSimilar(EmailMessage email) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Fingerprint fingerprint = fingerprint(email);
+        String analysis = fingerprint.usable() ? lookup(fingerprint) : null;
+        (analysis == null ? missed : reused).incrementAndGet();
+        return analysis;
+    }
+
+    /**
+     * Запоминает анализ письма, чтобы отдавать его похожим письмам
+     */
+    public void remember(EmailMessage email, String analysis) {
+        if (!isEnabled()) {
+            return;
+        }
+        Fingerprint fingerprint = fingerprint(email);
+        if (!fingerprint.usable()) {
+            return;
+        }
+        synchronized (entries) {
+            Entry previous = entries.put(fingerprint.value(), new Entry(fingerprint.value(), fingerprint.sender(), analysis));
+            if (previous == null) {
+                for (int band = 0; band < bands; band++) {
+                    buckets.computeIfAbsent(bandKey(fingerprint.value(), band), key -> new ArrayList<>(2))
+                            .add(fingerprint.value());
+                }
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                unlink(evicted.fingerprint());
+            }
+        }
+    }
+
+    public NearDuplicateStats stats() {
+        long reusedCount = reused.get();
+        long total = reusedCount + missed.get();
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new NearDuplicateStats(reusedCount, total - reusedCount,
+                total == 0 ? 0.0 : (double) reusedCount / total, size);
+    }
+
+    private String lookup(Fingerprint fingerprint) {
+        synchronized (entries) {
+            Entry best = null;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int band = 0; band < bands; band++) {
+                List<Long> candidates = buckets.get(bandKey(fingerprint.value(), band));
+                if (candidates == null) {
+                    continue;
+                }
+                for (long candidate : candidates) {
+                    int distance = Long.bitCount(candidate ^ fingerprint.value());
+                    if (distance < bestDistance && distance <= maxDistance) {
+                        Entry entry = entries.get(candidate);
+                        if (entry != null && entry.sender().equals(fingerprint.sender())) {
+                            best = entry;
+                            bestDistance = distance;
+                        }
+                    }
+                }
+            }
+            return best == null ? null : best.analysis();
+        }
+    }
+
+    private void unlink(long fingerprint) {
+        for (int band = 0; band < bands; band++) {
+            long key = bandKey(fingerprint, band);
+            List<Long> bucket = buckets.get(key);
+            if (bucket != null) {
+                bucket.remove(fingerprint);
+                if (bucket.isEmpty()) {
+                    buckets.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ключ полосы: номер полосы в старших битах, сами биты полосы — в младших
+     */
+    private long bandKey(long fingerprint, int band) {
+        // Последняя полоса забирает оставшиеся биты, если 64 не делится на число полос
+        int bits = band == bands - 1 ? 64 - bandBits * band : bandBits;
+        long mask = bits == 64 ? -1L : (1L << bits) - 1;
+        return ((long) band << 58) ^ ((fingerprint >>> (band * bandBits)) & mask);
+    }
+
+    Fingerprint fingerprint(EmailMessage email) {
+        List<String> words = words(email.getSubject());
+        words.addAll(words(email.getBody()));
+        int[] weights = new int[64];
+        for (int i = 0; i < words.size(); i++) {
+            add(weights, hash(words.get(i)));
+            if (i + 1 < words.size()) {
+                add(weights, hash(words.get(i) + ' ' + words.get(i + 1)));
+            }
+        }
+        long value = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                value |= 1L << bit;
+            }
+        }
+        return new Fingerprint(value, senderAddress(email.getFrom()), words.size() >= minFeatures);
+    }
+
+    private static void add(int[] weights, long hash) {
+        for (int bit = 0; bit < 64; bit++) {
+            weights[bit] += ((hash >>> bit) & 1) == 1 ? 1 : -1;
+        }
+    }
+
+    /**
+     * Слова в нижнем регистре; слова с цифрами (номера, даты, суммы) пропускаются — в шаблонах они меняются
+     */
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        StringBuilder word = new StringBuilder();
+        boolean digits = false;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                digits |= Character.isDigit(c);
+                word.append(Character.toLowerCase(c));
+                continue;
+            }
+            if (word.length() > 1 && !digits) {
+                words.add(word.toString());
+            }
+            word.setLength(0);
+            digits = false;
+        }
+        return words;
+    }
+
+    /**
+     * 64-битный FNV-1a с перемешиванием в конце, чтобы биты короткого слова не были похожи
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Адрес отправителя в нижнем регистре без имени: «Магазин <Orders@Shop.example>» → orders@shop.example
+     */
+    private static String senderAddress(String from) {
+        if (from == null) {
+            return "";
+        }
+        String address = from.toLowerCase(Locale.ROOT);
+        int start = address.lastIndexOf('<');
+        int end = address.indexOf('>', start + 1);
+        if (start >= 0 && end > start) {
+            address = address.substring(start + 1, end);
+        }
+        return address.trim();
+    }
+
+    public record NearDuplicateStats(long reused, long missed, double reuseRate, int entries) {
+    }
+}
@@ -0,0 +1,233 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Локальный классификатор массовых писем: рассылки, уведомления и рекламу
+ * распознаёт по заголовкам, отправителю и ключевым словам и сразу выдаёт анализ
+ * в том же JSON-формате, что и модель. Сомнительные письма уходят в модель как обычно.
+ * Без признака массовой рассылки (List-Unsubscribe, List-Id, Precedence или домен рассыльщика) письмо
+ * не классифицируется: одиночные автоматические письма — алерты, упавшие сборки, уведомления безопасности —
+ * часто важны. Письма с признаками срочности тоже всегда уходят в модель.
+ */
+@Component
+public class RuleBasedClassifier {
+
+    /**
+     * Заголовки, которые нужно прочитать с сервера вместе с конвертом письма
+     */
+    public static final List<String> HEADERS = List.of("List-Unsubscribe", "List-Id", "Precedence", "Auto-Submitted");
+
+    static final String RULE_LIST_UNSUBSCRIBE = "list-unsubscribe";
+    static final String RULE_LIST_ID = "list-id";
+    static final String RULE_PRECEDENCE = "precedence-bulk";
+    static final String RULE_AUTO_SUBMITTED = "auto-submitted";
+    static final String RULE_NOREPLY_SENDER = "noreply-sender";
+    static final String RULE_BULK_DOMAIN = "bulk-sender-domain";
+    static final String RULE_PROMO_KEYWORDS = "promo-keywords";
+
+    // info@ и news@ здесь нет: с таких адресов пишут и живые люди, например владельцы небольших компаний
+    private static final Pattern NOREPLY_SENDER = Pattern.compile(
+            "(no-?reply|do-?not-?reply|notifications?|mailer-daemon|postmaster|newsletter|robot)@",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern SENDER_DOMAIN = Pattern.compile("@([A-Za-z0-9.-]+)");
+
+    // Ключевое слово должно начинать слово: «акци» не должно находиться в «транзакции»
+    private static final List<Pattern> PROMO_KEYWORDS = Stream.of(
+                    "скидк", "распродаж", "акци", "промокод", "спецпредложени", "выгодн", "кешбэк", "бесплатн",
+                    "рассылк", "подписк", "вебинар", "sale", "discount", "% off", "promo", "newsletter",
+                    "limited offer", "free shipping", "unsubscribe", "отписаться")
+            .map(keyword -> Pattern.compile("(?<!\\p{L})" + Pattern.quote(keyword),
+                    Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE))
+            .toList();
+    // Больше этого числа ключевых слов не учитываем, чтобы длинный текст не набирал балл одними словами
+    private static final int MAX_KEYWORD_SCORE = 3;
+
+    private static final Pattern URGENT_KEYWORDS = Pattern.compile(
+            "(?<!\\p{L})(срочно|срочн|urgent|asap|важно|немедленно|сегодня до|дедлайн|deadline)",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${mail.classifier.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${mail.classifier.threshold:4}")
+    private int threshold = 4;
+
+    @Value("${mail.classifier.bulk-domains:mailchimp.com,mcsv.net,sendgrid.net,mailgun.org,amazonses.com,sendpulse.com,unisender.com,mindbox.ru,esputnik.com}")
+    private Set<String> bulkDomains = Set.of("mailchimp.com", "mcsv.net", "sendgrid.net", "mailgun.org",
+            "amazonses.com", "sendpulse.com", "unisender.com", "mindbox.ru", "esputnik.com");
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong classified = new AtomicLong();
+    private final Map<String, AtomicLong> ruleHits = new ConcurrentHashMap<>();
+
+    /**
+     * Возвращает готовый анализ, если письмо очевидно массовое, иначе пусто
+     */
+    public Optional<String> classify(EmailMessage email) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        checked.incrementAndGet();
+
+        List<String> matched = new ArrayList<>();
+        int score = 0;
+
+        if (email.header("List-Unsubscribe") != null) {
+            matched.add(RULE_LIST_UNSUBSCRIBE);
+            score += 3;
+        }
+        if (email.header("List-Id") != null) {
+            matched.add(RULE_LIST_ID);
+            score += 2;
+        }
+        String precedence = email.header("Precedence");
+        if (precedence != null && precedence.trim().toLowerCase(Locale.ROOT).matches("bulk|list|junk")) {
+            matched.add(RULE_PRECEDENCE);
+            score += 3;
+        }
+        String autoSubmitted = email.header("Auto-Submitted");
+        boolean automatic = autoSubmitted != null && !autoSubmitted.trim().equalsIgnoreCase("no");
+        if (automatic) {
+            matched.add(RULE_AUTO_SUBMITTED);
+            score += 4;
+        }
+
+        String from = email.getFrom() == null ? "" : email.getFrom();
+        boolean noreply = NOREPLY_SENDER.matcher(from).find();
+        if (noreply) {
+            matched.add(RULE_NOREPLY_SENDER);
+            score += 2;
+        }
+        boolean bulkDomain = isBulkDomain(from);
+        if (bulkDomain) {
+            matched.add(RULE_BULK_DOMAIN);
+            score += 2;
+        }
+        boolean bulk = matched.contains(RULE_LIST_UNSUBSCRIBE) || matched.contains(RULE_LIST_ID)
+                || matched.contains(RULE_PRECEDENCE) || bulkDomain;
+
+        int keywords = countKeywords(email);
+        if (keywords > 0) {
+            matched.add(RULE_PROMO_KEYWORDS);
+            score += Math.min(keywords, MAX_KEYWORD_SCORE);
+        }
+
+        matched.forEach(rule -> ruleHits.computeIfAbsent(rule, key -> new AtomicLong()).incrementAndGet());
+        if (score < threshold || !bulk || URGENT_KEYWORDS.matcher(text(email)).find()) {
+            return Optional.empty();
+        }
+        classified.incrementAndGet();
+        return Optional.of(buildAnalysis(email, automatic || (noreply && keywords < 2), keywords >= 2));
+    }
+
+    /**
+     * Оценка письма без модели, пока та недоступна: только тема и признаки срочности.
+     * Помечена degraded: в кэш не попадает, и при следующем обновлении письмо снова уйдёт в модель.
+     */
+    public String fallback(EmailMessage email) {
+        String subject = email.getSubject() == null ? "без темы" : "«" + email.getSubject() + "»";
+        boolean urgent = URGENT_KEYWORDS.matcher(text(email)).find();
+
+        ObjectNode analysis = objectMapper.createObjectNode();
+        analysis.put("summary", "Модель временно недоступна. Письмо с темой " + subject
+                + " будет проанализировано при следующем обновлении.");
+        analysis.put("intent", "неизвестно");
+        analysis.put("tone", "неизвестно");
+        analysis.put("priority", urgent ? "высокий" : "неизвестен");
+        analysis.put("action", urgent ? "прочитать сейчас: в письме есть признаки срочности" : "прочитать");
+        analysis.put("degraded", true);
+        return analysis.toString();
+    }
+
+    public ClassifierStats stats() {
+        Map<String, Long> hits = new LinkedHashMap<>();
+        ruleHits.forEach((rule, counter) -> hits.put(rule, counter.get()));
+        long total = checked.get();
+        long local = classified.get();
+        return new ClassifierStats(total, local, total == 0 ? 0.0 : (double) local / total, hits);
+    }
+
+    private boolean isBulkDomain(String from) {
+        var matcher = SENDER_DOMAIN.matcher(from);
+        if (!matcher.find()) {
+            return false;
+        }
+        String domain = matcher.group(1).toLowerCase(Locale.ROOT);
+        for (String bulk : bulkDomains) {
+            String normalized = bulk.trim().toLowerCase(Locale.ROOT);
+            if (!normalized.isEmpty() && (domain.equals(normalized) || domain.endsWith("." + normalized))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countKeywords(EmailMessage email) {
+        String text = text(email);
+        int count = 0;
+        for (Pattern keyword : PROMO_KEYWORDS) {
+            if (keyword.matcher(text).find()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String text(EmailMessage email) {
+        return (email.getSubject() == null ? "" : email.getSubject()) + "\n"
+                + (email.getBody() == null ? "" : email.getBody());
+    }
+
+    private String buildAnalysis(EmailMessage email, boolean notification, boolean advertising) {
+        String sender = email.getFrom() == null ? "неизвестного отправителя" : email.getFrom();
+        String subject = email.getSubject() == null ? "без темы" : "«" + email.getSubject() + "»";
+
+        String kind;
+        String intent;
+        String action;
+        if (notification) {
+            kind = "Автоматическое уведомление";
+            intent = "уведомление";
+            action = "прочитать при необходимости";
+        } else if (advertising) {
+            kind = "Рекламная рассылка";
+            intent = "реклама";
+            action = "проигнорировать";
+        } else {
+            kind = "Информационная рассылка";
+            intent = "рассылка";
+            action = "проигнорировать";
+        }
+
+        ObjectNode analysis = objectMapper.createObjectNode();
+        analysis.put("summary", kind + " от " + sender + " с темой " + subject + ".");
+        analysis.put("intent", intent);
+        analysis.put("tone", "нейтральная");
+        analysis.put("priority", "низкий");
+        analysis.put("action", action);
+        return analysis.toString();
+    }
+
+    public record ClassifierStats(long checked, long classified, double bypassRatio, Map<String, Long> ruleHits) {
+    }
+}
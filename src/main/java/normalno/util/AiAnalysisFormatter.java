@@ -1,13 +1,34 @@
 package normalno.util;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import normalno.EmailAnalysis;
+import normalno.EmailMessage;
+
 import org.springframework.stereotype.Component;
 
 @Component
 public class AiAnalysisFormatter {
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final MailMetrics metrics;
+
+    public AiAnalysisFormatter(MailMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Форматирует анализ письма в читаемый вид, используя уже разобранный ответ модели.
+     * Если ответ не разобрался (ошибка анализа, не-JSON), показывает его как есть.
+     */
+    public String format(EmailMessage email) {
+        long started = System.nanoTime();
+        try {
+            if (email.getAnalysis() != null) {
+                return formatParsed(email.getAnalysis());
+            }
+            return formatAnalysis(email.getAiAnalysis());
+        } finally {
+            metrics.recordSince(MailMetrics.FORMAT, started);
+        }
+    }
 
     /**
      * Форматирует JSON-ответ от AI в читаемый вид
@@ -17,53 +38,57 @@ public class AiAnalysisFormatter {
             return "Анализ недоступен";
         }
 
-        try {
-            JsonNode root = objectMapper.readTree(jsonAnalysis);
-
-            StringBuilder formatted = new StringBuilder();
+        EmailAnalysis analysis = EmailAnalysis.parse(jsonAnalysis);
+        // Если не удалось распарсить JSON, возвращаем как есть
+        return analysis == null ? jsonAnalysis : formatParsed(analysis);
+    }
 
-            addField(formatted, "📝 Краткое содержание", root, "summary");
-            addField(formatted, "🎯 Цель письма", root, "intent");
-            addField(formatted, "😊 Тональность", root, "tone");
-            addField(formatted, "⚡ Приоритет", root, "priority");
-            addField(formatted, "✅ Рекомендация", root, "action");
+    private String formatParsed(EmailAnalysis analysis) {
+        StringBuilder formatted = new StringBuilder();
 
-            return formatted.toString();
+        addField(formatted, "📝 Краткое содержание", analysis.summary());
+        addField(formatted, "🎯 Цель письма", analysis.intent());
+        addField(formatted, "😊 Тональность", analysis.tone());
+        addField(formatted, "⚡ Приоритет", analysis.priorityLabel());
+        addField(formatted, "✅ Рекомендация", analysis.action());
 
-        } catch (Exception e) {
-            // Если не удалось распарсить JSON, возвращаем как есть
-            return jsonAnalysis;
-        }
+        return formatted.toString();
     }
 
-    private void addField(StringBuilder sb, String label, JsonNode root, String fieldName) {
-        if (root.has(fieldName)) {
-            String value = root.get(fieldName).asText();
-            if (!value.isBlank()) {
-                if (sb.length() > 0) {
-                    sb.append("\n\n");
-                }
-                sb.append(label).append(":\n").append(value);
+    private void addField(StringBuilder sb, String label, String value) {
+        if (value != null && !value.isBlank()) {
+            if (sb.length() > 0) {
+                sb.append("\n\n");
             }
+            sb.append(label).append(":\n").append(value);
         }
     }
 
+    /**
+     * Код приоритета для бейджа: high, medium, low или unknown
+     */
+    public String priorityCode(EmailMessage email) {
+        return email.getAnalysis() == null ? EmailAnalysis.Priority.UNKNOWN.code()
+                : email.getAnalysis().priority().code();
+    }
+
     /**
      * Извлекает приоритет из JSON для отображения бейджа
      */
     public String extractPriority(String jsonAnalysis) {
-        if (jsonAnalysis == null || jsonAnalysis.isBlank()) {
-            return "unknown";
-        }
+        EmailAnalysis analysis = EmailAnalysis.parse(jsonAnalysis);
+        return analysis == null ? EmailAnalysis.Priority.UNKNOWN.code() : analysis.priority().code();
+    }
 
-        try {
-            JsonNode root = objectMapper.readTree(jsonAnalysis);
-            if (root.has("priority")) {
-                return root.get("priority").asText().toLowerCase();
-            }
-        } catch (Exception ignored) {
+    /**
+     * Подпись бейджа: приоритет так, как его сформулировала модель
+     */
+    public String priorityLabel(EmailMessage email) {
+        EmailAnalysis analysis = email.getAnalysis();
+        if (analysis == null) {
+            return null;
         }
-
-        return "unknown";
+        return analysis.priorityLabel() == null || analysis.priorityLabel().isBlank()
+                ? analysis.priority().label() : analysis.priorityLabel();
     }
-}
\ No newline at end of file
+}
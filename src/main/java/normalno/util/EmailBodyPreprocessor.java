@@ -0,0 +1,224 @@
+package normalno.util;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Готовит текст письма для промпта: убирает HTML-разметку, цитаты предыдущих
+ * писем, подпись и типовые дисклеймеры, а затем обрезает результат до бюджета токенов.
+ * Само письмо не меняется — очищенный текст уходит только в модель.
+ */
+@Component
+public class EmailBodyPreprocessor {
+
+    static final String TRUNCATION_MARK = "\n[...текст сокращён]";
+
+    private static final Pattern HTML_MARKERS = Pattern.compile(
+            "<(html|body|div|p|br|table|span|blockquote)\\b", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+
+    // Дата и время из заголовка цитаты: «12.03.2024, 10:15», «2024-03-12 10:15», «12 марта 2024 г. в 10:15»
+    private static final String QUOTE_DATE_TIME =
+            "(\\d{1,2}[./]\\d{1,2}[./]\\d{2,4}|\\d{4}-\\d{2}-\\d{2}|\\d{1,2}\\s+\\p{L}+\\.?\\s+\\d{4}).{0,20}?\\d{1,2}:\\d{2}";
+    // Строки, с которых начинается цитата предыдущего письма. Русский заголовок почтовых клиентов —
+    // дата, время и адрес перед «пишет:»; просто «Клиент пишет:» в тексте письма цитатой не считается
+    private static final Pattern REPLY_HEADER = Pattern.compile(
+            "^(On .{0,200} wrote:"
+                    + "|.{0,40}" + QUOTE_DATE_TIME + ".{0,100}<?[^\\s<>@]+@[^\\s<>@]+>?\\s*(пишет|написал|написала|написал\\(а\\)):"
+                    + "|-{2,}\\s*(Original Message|Исходное сообщение|Пересылаемое сообщение)\\s*-{2,})\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    // Заголовок цитаты в стиле Outlook: «From:» и через пару строк «Sent:»
+    private static final Pattern OUTLOOK_FROM = Pattern.compile("^(From|От):\\s.*", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    private static final Pattern OUTLOOK_SENT = Pattern.compile(
+            "^(Sent|Date|Отправлено|Дата):\\s.*", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+
+    private static final Pattern SIGNATURE_DELIMITER = Pattern.compile("^--\\s*$");
+    private static final Pattern SIGN_OFF = Pattern.compile(
+            "^(С уважением|С наилучшими пожеланиями|Best regards|Kind regards|Regards)[,.!]?\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    private static final Pattern MOBILE_FOOTER = Pattern.compile(
+            "^(Sent from my .*|Отправлено с (iPhone|iPad|Android|моего .*)|Get Outlook for .*)$",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    private static final Pattern DISCLAIMER = Pattern.compile(
+            "^(CONFIDENTIALITY NOTICE|DISCLAIMER|This (e-?mail|message) and any attachments"
+                    + "|Это (сообщение|письмо) и (все|любые) вложения|Данное сообщение (и любые вложения )?является конфиденциальн)",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    private static final Pattern UNSUBSCRIBE_LINE = Pattern.compile(
+            "(unsubscribe|отписаться|отказаться от рассылки|view (this email )?in (your )?browser)",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    // Ссылки с длинными трекинговыми параметрами модели ничего не дают
+    private static final Pattern TRACKING_URL = Pattern.compile("https?://\\S{60,}");
+
+    // Подпись после прощания обычно короче этого числа непустых строк
+    private static final int MAX_SIGNATURE_LINES = 6;
+
+    @Value("${mail.analysis.prompt.preprocess:true}")
+    private boolean enabled = true;
+
+    @Value("${mail.analysis.prompt.max-body-tokens:1500}")
+    private int maxBodyTokens = 1500;
+
+    private final AtomicLong processedEmails = new AtomicLong();
+    private final AtomicLong tokensBefore = new AtomicLong();
+    private final AtomicLong tokensAfter = new AtomicLong();
+
+    /**
+     * Возвращает текст письма для промпта и учитывает сэкономленные токены
+     */
+    public String prepare(String body) {
+        if (!enabled || body == null || body.isBlank()) {
+            return body;
+        }
+        String text = looksLikeHtml(body) ? htmlToText(body) : body;
+        text = stripQuotedHistory(text);
+        text = stripSignatureAndBoilerplate(text);
+        text = truncate(text, maxBodyTokens);
+
+        processedEmails.incrementAndGet();
+        tokensBefore.addAndGet(TokenEstimator.estimate(body));
+        tokensAfter.addAndGet(TokenEstimator.estimate(text));
+        return text;
+    }
+
+    public PreprocessStats stats() {
+        long before = tokensBefore.get();
+        long after = tokensAfter.get();
+        return new PreprocessStats(processedEmails.get(), before, after, Math.max(0, before - after));
+    }
+
+    private static boolean looksLikeHtml(String body) {
+        return HTML_MARKERS.matcher(body).find();
+    }
+
+    /**
+     * Цитаты из blockquote становятся строками с «>» и убираются вместе с остальной историей переписки
+     */
+    static String htmlToText(String html) {
+        return HtmlTextConverter.toText(html);
+    }
+
+    /**
+     * Отрезает всё, начиная с заголовка цитаты, и убирает строки с «>».
+     * Если над цитатой ничего нет (письмо — чистая пересылка), текст оставляется как есть.
+     */
+    static String stripQuotedHistory(String text) {
+        String[] lines = text.split("\r?\n", -1);
+        List<String> kept = new ArrayList<>(lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (isReplyHeader(lines, i) && hasContent(kept)) {
+                break;
+            }
+            if (line.startsWith(">")) {
+                continue;
+            }
+            kept.add(lines[i]);
+        }
+        return hasContent(kept) ? String.join("\n", kept) : text;
+    }
+
+    private static boolean isReplyHeader(String[] lines, int index) {
+        String line = lines[index].trim();
+        if (REPLY_HEADER.matcher(line).matches()) {
+            return true;
+        }
+        if (OUTLOOK_FROM.matcher(line).matches()) {
+            for (int j = index + 1; j < Math.min(lines.length, index + 4); j++) {
+                if (OUTLOOK_SENT.matcher(lines[j].trim()).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static String stripSignatureAndBoilerplate(String text) {
+        String[] lines = text.split("\n", -1);
+        int end = lines.length;
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (SIGNATURE_DELIMITER.matcher(line).matches() || DISCLAIMER.matcher(line).find()) {
+                end = i;
+                break;
+            }
+            if (SIGN_OFF.matcher(line).matches() && nonEmptyLines(lines, i + 1) <= MAX_SIGNATURE_LINES) {
+                end = i;
+                break;
+            }
+        }
+
+        List<String> kept = new ArrayList<>(end);
+        boolean previousBlank = false;
+        for (int i = 0; i < end; i++) {
+            String line = lines[i].stripTrailing();
+            if (MOBILE_FOOTER.matcher(line.trim()).matches() || UNSUBSCRIBE_LINE.matcher(line).find()) {
+                continue;
+            }
+            line = TRACKING_URL.matcher(line).replaceAll("[ссылка]");
+            boolean blank = line.isBlank();
+            // Несколько пустых строк подряд схлопываем в одну
+            if (blank && (previousBlank || kept.isEmpty())) {
+                continue;
+            }
+            kept.add(line);
+            previousBlank = blank;
+        }
+        if (!kept.isEmpty() && previousBlank) {
+            kept.remove(kept.size() - 1);
+        }
+        return kept.isEmpty() ? text.strip() : String.join("\n", kept);
+    }
+
+    /**
+     * Обрезает текст по границе слова так, чтобы вместе с пометкой он укладывался в бюджет
+     */
+    static String truncate(String text, int maxTokens) {
+        if (maxTokens <= 0 || TokenEstimator.estimate(text) <= maxTokens) {
+            return text;
+        }
+        int budget = Math.max(0, maxTokens - TokenEstimator.estimate(TRUNCATION_MARK));
+        // Оценка монотонна по длине префикса, поэтому ищем самый длинный подходящий префикс бинарным поиском
+        int low = 0;
+        int high = text.length();
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (TokenEstimator.estimate(text.subSequence(0, mid)) <= budget) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int cut = low;
+        int lastSpace = Math.max(text.lastIndexOf(' ', cut), text.lastIndexOf('\n', cut));
+        if (lastSpace > cut / 2) {
+            cut = lastSpace;
+        }
+        return text.substring(0, cut).stripTrailing() + TRUNCATION_MARK;
+    }
+
+    private static boolean hasContent(List<String> lines) {
+        for (String line : lines) {
+            if (!line.isBlank()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int nonEmptyLines(String[] lines, int from) {
+        int count = 0;
+        for (int i = from; i < lines.length; i++) {
+            if (!lines[i].isBlank()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public record PreprocessStats(long emails, long tokensBefore, long tokensAfter, long tokensSaved) {
+    }
+}
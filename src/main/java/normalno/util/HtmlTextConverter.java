@@ -0,0 +1,262 @@
+package normalno.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Потоковое преобразование HTML в текст: читает символы по одному и сразу пишет результат,
+ * не строя DOM и не держа в памяти исходный HTML целиком. Содержимое head, style и script
+ * выбрасывается, br и закрывающие блочные теги дают перевод строки, строки внутри
+ * blockquote помечаются «> », как цитата в текстовом письме. Пробелы схлопываются.
+ */
+public final class HtmlTextConverter {
+
+    private static final Map<String, String> NAMED_ENTITIES = Map.ofEntries(
+            Map.entry("nbsp", " "), Map.entry("amp", "&"), Map.entry("lt", "<"), Map.entry("gt", ">"),
+            Map.entry("quot", "\""), Map.entry("apos", "'"), Map.entry("laquo", "«"), Map.entry("raquo", "»"),
+            Map.entry("mdash", "—"), Map.entry("ndash", "–"), Map.entry("hellip", "…"), Map.entry("copy", "©"),
+            Map.entry("reg", "®"), Map.entry("trade", "™"), Map.entry("euro", "€"), Map.entry("bull", "•"));
+
+    // Длиннее этого имя сущности не бывает: дальше это просто текст с «&»
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private final Reader in;
+    private final StringBuilder out;
+    private final int maxChars;
+    private final StringBuilder name = new StringBuilder(16);
+
+    private int pushedBack = -1;
+    private String skipUntil;
+    private int quoteDepth;
+    private boolean pendingSpace;
+
+    private HtmlTextConverter(Reader in, StringBuilder out, int maxChars) {
+        this.in = in;
+        this.out = out;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Дописывает текст HTML из in в out, но не больше maxChars символов (0 — без ограничения).
+     * Возвращает true, если HTML прочитан до конца, и false, если вывод упёрся в лимит.
+     */
+    public static boolean convert(Reader in, StringBuilder out, int maxChars) throws IOException {
+        Reader buffered = in instanceof BufferedReader || in instanceof StringReader ? in : new BufferedReader(in);
+        return new HtmlTextConverter(buffered, out, maxChars).run();
+    }
+
+    public static String toText(String html) {
+        StringBuilder text = new StringBuilder(html.length() / 2);
+        try {
+            convert(new StringReader(html), text, 0);
+        } catch (IOException e) {
+            //StringReader не бросает IOException
+            throw new IllegalStateException(e);
+        }
+        return text.toString();
+    }
+
+    private boolean run() throws IOException {
+        int c;
+        while ((c = next()) != -1) {
+            if (maxChars > 0 && out.length() >= maxChars) {
+                return false;
+            }
+            if (c == '<') {
+                readTag();
+            } else if (skipUntil != null) {
+                continue;
+            } else if (c == '&') {
+                readEntity();
+            } else if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+            } else {
+                appendText((char) c);
+            }
+        }
+        return true;
+    }
+
+    private int next() throws IOException {
+        if (pushedBack != -1) {
+            int c = pushedBack;
+            pushedBack = -1;
+            return c;
+        }
+        return in.read();
+    }
+
+    private void readTag() throws IOException {
+        int c = next();
+        if (c == '!') {
+            skipDeclaration();
+            return;
+        }
+        boolean closing = c == '/';
+        if (closing) {
+            c = next();
+        }
+        if (c == -1 || !Character.isLetter(c)) {
+            //Одинокий «<» в тексте
+            if (skipUntil == null) {
+                appendText('<');
+                if (closing) {
+                    appendText('/');
+                }
+            }
+            pushedBack = c;
+            return;
+        }
+
+        name.setLength(0);
+        while (c != -1 && (Character.isLetterOrDigit(c)) && name.length() < 16) {
+            name.append(Character.toLowerCase((char) c));
+            c = next();
+        }
+        skipAttributes(c);
+        String tag = name.toString();
+
+        if (skipUntil != null) {
+            if (closing && tag.equals(skipUntil)) {
+                skipUntil = null;
+            }
+            return;
+        }
+        if (!closing && (tag.equals("head") || tag.equals("style") || tag.equals("script") || tag.equals("title"))) {
+            skipUntil = tag;
+            return;
+        }
+        switch (tag) {
+            case "br" -> newLine();
+            case "p", "div", "tr", "li", "h1", "h2", "h3", "h4", "h5", "h6", "table", "ul", "ol" -> {
+                if (closing) {
+                    newLine();
+                }
+            }
+            case "blockquote" -> {
+                if (!atLineStart()) {
+                    newLine();
+                }
+                quoteDepth = Math.max(0, quoteDepth + (closing ? -1 : 1));
+            }
+            case "td", "th" -> pendingSpace = true;
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Пропускает атрибуты до «>», учитывая кавычки: «>» внутри значения атрибута тег не закрывает
+     */
+    private void skipAttributes(int c) throws IOException {
+        int quote = 0;
+        while (c != -1) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return;
+            }
+            c = next();
+        }
+    }
+
+    /**
+     * Комментарий &lt;!-- ... --&gt; или объявление вроде &lt;!DOCTYPE html&gt;
+     */
+    private void skipDeclaration() throws IOException {
+        int first = next();
+        int second = first == '-' ? next() : -1;
+        if (first == '-' && second == '-') {
+            int dashes = 0;
+            int c;
+            while ((c = next()) != -1) {
+                if (c == '>' && dashes >= 2) {
+                    return;
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+            return;
+        }
+        skipAttributes(second == -1 ? first : second);
+    }
+
+    private void readEntity() throws IOException {
+        name.setLength(0);
+        int c = next();
+        while (c != -1 && c != ';' && name.length() < MAX_ENTITY_LENGTH && (Character.isLetterOrDigit(c) || c == '#')) {
+            name.append((char) c);
+            c = next();
+        }
+        String decoded = c == ';' ? decodeEntity(name.toString()) : null;
+        if (decoded == null) {
+            //Не сущность: выводим как было, а прочитанный лишний символ обрабатываем заново
+            appendText('&');
+            for (int i = 0; i < name.length(); i++) {
+                appendText(name.charAt(i));
+            }
+            if (c == ';') {
+                appendText(';');
+            } else {
+                pushedBack = c;
+            }
+            return;
+        }
+        for (int i = 0; i < decoded.length(); i++) {
+            char ch = decoded.charAt(i);
+            if (ch == ' ') {
+                pendingSpace = true;
+            } else {
+                appendText(ch);
+            }
+        }
+    }
+
+    private static String decodeEntity(String entity) {
+        if (entity.startsWith("#")) {
+            try {
+                int codePoint = entity.length() > 1 && (entity.charAt(1) == 'x' || entity.charAt(1) == 'X')
+                        ? Integer.parseInt(entity.substring(2), 16)
+                        : Integer.parseInt(entity.substring(1));
+                return Character.isValidCodePoint(codePoint) ? new String(Character.toChars(codePoint)) : " ";
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return NAMED_ENTITIES.get(entity.toLowerCase(Locale.ROOT));
+    }
+
+    private void appendText(char c) {
+        if (atLineStart() && quoteDepth > 0) {
+            out.append("> ".repeat(quoteDepth));
+        } else if (pendingSpace && !atLineStart()) {
+            out.append(' ');
+        }
+        pendingSpace = false;
+        out.append(c);
+    }
+
+    private void newLine() {
+        pendingSpace = false;
+        int length = out.length();
+        if (length == 0) {
+            return;
+        }
+        //Не больше одной пустой строки подряд
+        if (length >= 2 && out.charAt(length - 1) == '\n' && out.charAt(length - 2) == '\n') {
+            return;
+        }
+        out.append('\n');
+    }
+
+    private boolean atLineStart() {
+        return out.length() == 0 || out.charAt(out.length() - 1) == '\n';
+    }
+}
@@ -0,0 +1,104 @@
+package normalno.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Метрики этапов получения и анализа почты. Таймеры и распределения публикуют гистограмму,
+ * поэтому p50/p99 считаются на стороне Prometheus (histogram_quantile) и агрегируются
+ * по нескольким экземплярам приложения. Ошибки считаются одним счётчиком с тегами этапа и типа.
+ */
+@Component
+public class MailMetrics {
+
+    public static final String IMAP_CONNECT = "mail.imap.connect";
+    public static final String FOLDER_OPEN = "mail.imap.folder.open";
+    public static final String MESSAGE_FETCH = "mail.imap.fetch";
+    public static final String MIME_PARSE = "mail.mime.parse";
+    public static final String PROMPT_BUILD = "mail.ai.prompt.build";
+    public static final String LLM_CALL = "mail.ai.call";
+    public static final String LLM_TOKENS = "mail.ai.tokens";
+    public static final String FORMAT = "mail.analysis.format";
+    public static final String ERRORS = "mail.errors";
+    //Вызовы, присоединившиеся к уже идущему чтению или анализу (тег operation)
+    public static final String COALESCED = "mail.coalesced";
+    //Поиск почти одинакового письма перед вызовом модели (тег outcome=reused|missed): доля reused — доля сэкономленных вызовов
+    public static final String NEAR_DUPLICATE = "mail.analysis.near-duplicate";
+
+    private final MeterRegistry registry;
+
+    /**
+     * Реестр Actuator, если он есть в контексте; иначе глобальный реестр Micrometer
+     */
+    @Autowired
+    public MailMetrics(ObjectProvider<MeterRegistry> registry) {
+        this(registry.getIfAvailable(() -> Metrics.globalRegistry));
+    }
+
+    public MailMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Метрики никуда не публикуются: для тестов и классов, созданных вне Spring
+     */
+    public static MailMetrics noop() {
+        return new MailMetrics(new CompositeMeterRegistry());
+    }
+
+    /**
+     * Записывает время этапа, начатого в startedNanos (System.nanoTime())
+     */
+    public void recordSince(String stage, long startedNanos, String... tags) {
+        Timer.builder(stage)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(System.nanoTime() - startedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Токены запроса или ответа модели; type — prompt или completion
+     */
+    public void recordTokens(String type, String mode, int tokens) {
+        DistributionSummary.builder(LLM_TOKENS)
+                .baseUnit("tokens")
+                .tags("type", type, "mode", mode)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(tokens);
+    }
+
+    public void increment(String name, String... tags) {
+        Counter.builder(name).tags(tags).register(registry).increment();
+    }
+
+    /**
+     * Текущее значение состояния объекта (лимит, число запросов в полёте); объект должен жить всё время работы
+     */
+    public <T> void gauge(String name, T state, ToDoubleFunction<T> value) {
+        Gauge.builder(name, state, value).register(registry);
+    }
+
+    public void recordError(String stage, Throwable error) {
+        Counter.builder(ERRORS)
+                .tags("stage", stage, "type", error.getClass().getSimpleName())
+                .register(registry)
+                .increment();
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+}
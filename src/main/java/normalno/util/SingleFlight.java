@@ -0,0 +1,119 @@
+package normalno.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Объединение одинаковых одновременных операций: пока операция с ключом выполняется,
+ * остальные вызовы с тем же ключом не запускают её заново, а ждут и получают тот же результат
+ * (или то же исключение). Результат не запоминается: вызов после завершения выполняет операцию снова.
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Runnable onShared;
+
+    public SingleFlight() {
+        this(() -> {
+        });
+    }
+
+    /**
+     * onShared вызывается каждый раз, когда вызов присоединился к уже идущей операции
+     */
+    public SingleFlight(Runnable onShared) {
+        this.onShared = onShared;
+    }
+
+    /**
+     * Выполняет work в текущем потоке или дожидается результата такой же операции,
+     * уже запущенной другим потоком
+     */
+    public V execute(K key, Supplier<V> work) {
+        Claim<V> claim = claim(key);
+        if (!claim.leader()) {
+            return await(claim.result());
+        }
+        try {
+            V value = work.get();
+            claim.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            claim.fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Занимает ключ, если операция с ним ещё не идёт. Ведущий обязан завершить claim через complete или fail
+     * (иначе ожидающие не дождутся); остальные получают результат ведущего через result().
+     * Нужен, когда операция выполняется позже и в другом потоке, например в составе пакета.
+     */
+    public Claim<V> claim(K key) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            onShared.run();
+            return new Claim<>(null, null, running);
+        }
+        return new Claim<>(() -> inFlight.remove(key, own), own, own);
+    }
+
+    /**
+     * Место в операции: ведущий (leader) выполняет её сам, остальные ждут result()
+     */
+    public static final class Claim<V> {
+
+        private final Runnable release;
+        private final CompletableFuture<V> own;
+        private final CompletableFuture<V> result;
+
+        private Claim(Runnable release, CompletableFuture<V> own, CompletableFuture<V> result) {
+            this.release = release;
+            this.own = own;
+            this.result = result;
+        }
+
+        public boolean leader() {
+            return own != null;
+        }
+
+        public CompletableFuture<V> result() {
+            return result;
+        }
+
+        public void complete(V value) {
+            //Ключ освобождается до завершения: пришедший после результата вызов выполняет операцию заново
+            release.run();
+            own.complete(value);
+        }
+
+        public void fail(Throwable error) {
+            release.run();
+            own.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Операций, выполняющихся прямо сейчас
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    private static <V> V await(CompletableFuture<V> running) {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+}
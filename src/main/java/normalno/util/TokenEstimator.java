@@ -0,0 +1,51 @@
+package normalno.util;
+
+/**
+ * Быстрая локальная оценка числа токенов без обращения к токенизатору модели.
+ * Слово считается как один токен на каждые несколько букв (кириллица режется
+ * токенизаторами мельче латиницы), знаки препинания — по токену на символ.
+ * Оценка намеренно слегка завышена, чтобы не выходить за бюджет.
+ */
+public final class TokenEstimator {
+
+    private static final int LATIN_CHARS_PER_TOKEN = 4;
+    private static final int CYRILLIC_CHARS_PER_TOKEN = 3;
+
+    private TokenEstimator() {
+    }
+
+    public static int estimate(CharSequence text) {
+        if (text == null) {
+            return 0;
+        }
+        int tokens = 0;
+        int latinRun = 0;
+        int cyrillicRun = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (Character.UnicodeBlock.of(c) == Character.UnicodeBlock.CYRILLIC) {
+                    cyrillicRun++;
+                } else {
+                    latinRun++;
+                }
+                continue;
+            }
+            tokens += wordTokens(latinRun, cyrillicRun);
+            latinRun = 0;
+            cyrillicRun = 0;
+            if (!Character.isWhitespace(c)) {
+                tokens++;
+            }
+        }
+        return tokens + wordTokens(latinRun, cyrillicRun);
+    }
+
+    private static int wordTokens(int latinRun, int cyrillicRun) {
+        return ceilDiv(latinRun, LATIN_CHARS_PER_TOKEN) + ceilDiv(cyrillicRun, CYRILLIC_CHARS_PER_TOKEN);
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -0,0 +1,74 @@
+package normalno;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EmailAnalysisTest {
+
+    @Test
+    void parse_shouldBindAllFields_andNormalizeRussianPriority() {
+        // Arrange
+        String json = """
+                {"summary": "Просьба о встрече", "intent": "запрос", "tone": "дружелюбная",
+                 "priority": "Высокий", "action": "ответить"}
+                """;
+
+        // Act
+        EmailAnalysis analysis = EmailAnalysis.parse(json);
+
+        // Assert
+        assertThat(analysis).isNotNull();
+        assertThat(analysis.summary()).isEqualTo("Просьба о встрече");
+        assertThat(analysis.intent()).isEqualTo("запрос");
+        assertThat(analysis.tone()).isEqualTo("дружелюбная");
+        assertThat(analysis.priority()).isEqualTo(EmailAnalysis.Priority.HIGH);
+        assertThat(analysis.priorityLabel()).isEqualTo("Высокий");
+        assertThat(analysis.action()).isEqualTo("ответить");
+    }
+
+    @Test
+    void parse_shouldBindThreadSummary_onlyWhenPresent() {
+        // Act
+        EmailAnalysis reply = EmailAnalysis.parse("{\"summary\": \"Согласны\", \"thread\": \"Договор согласован\"}");
+        EmailAnalysis single = EmailAnalysis.parse("{\"summary\": \"Согласны\"}");
+
+        // Assert
+        assertThat(reply.thread()).isEqualTo("Договор согласован");
+        assertThat(single.thread()).isNull();
+    }
+
+    @Test
+    void parse_shouldSkipCodeFenceAndUnknownFields() {
+        // Arrange
+        String response = """
+                ```json
+                {"summary": "Отчёт", "extra": {"nested": [1, 2]}, "priority": "low"}
+                ```
+                """;
+
+        // Act
+        EmailAnalysis analysis = EmailAnalysis.parse(response);
+
+        // Assert
+        assertThat(analysis).isNotNull();
+        assertThat(analysis.summary()).isEqualTo("Отчёт");
+        assertThat(analysis.priority()).isEqualTo(EmailAnalysis.Priority.LOW);
+        assertThat(analysis.intent()).isNull();
+    }
+
+    @Test
+    void parse_shouldReturnNull_forErrorsAndBrokenJson() {
+        assertThat(EmailAnalysis.parse(null)).isNull();
+        assertThat(EmailAnalysis.parse("Ошибка анализа письма: timeout")).isNull();
+        assertThat(EmailAnalysis.parse("{\"summary\": \"обрезан")).isNull();
+        assertThat(EmailAnalysis.parse("{}")).isNull();
+    }
+
+    @Test
+    void priority_shouldFallBackToUnknown_forUnrecognizedText() {
+        assertThat(EmailAnalysis.Priority.fromText("medium")).isEqualTo(EmailAnalysis.Priority.MEDIUM);
+        assertThat(EmailAnalysis.Priority.fromText("когда-нибудь")).isEqualTo(EmailAnalysis.Priority.UNKNOWN);
+        assertThat(EmailAnalysis.Priority.UNKNOWN.code()).isEqualTo("unknown");
+    }
+}
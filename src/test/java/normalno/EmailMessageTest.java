@@ -113,4 +113,21 @@ class EmailMessageTest {
         assertThat(email.getBody()).contains("\n");
         assertThat(email.getBody()).contains("\t");
     }
-}
\ No newline at end of file
+
+    @Test
+    void setAiAnalysis_shouldParseOnce_andCopyShouldReuseParsedAnalysis() {
+        // Arrange
+        EmailMessage email = new EmailMessage();
+
+        // Act
+        email.setAiAnalysis("{\"summary\":\"Кратко\",\"priority\":\"средний\"}");
+        EmailMessage copy = email.copy();
+
+        // Assert
+        assertThat(email.getAnalysis().priority()).isEqualTo(EmailAnalysis.Priority.MEDIUM);
+        assertThat(copy.getAnalysis()).isSameAs(email.getAnalysis());
+
+        email.setAiAnalysis("Ошибка анализа письма: timeout");
+        assertThat(email.getAnalysis()).isNull();
+    }
+}
@@ -28,6 +28,9 @@ import static org.mockito.Mockito.when;
         "mail.imap.host=localhost",
         "mail.imap.port=993",
         "mail.connect.enabled=false",
+        // Кэш анализа и хранилище писем не трогают домашний каталог и не переходят из прогона в прогон
+        "mail.analysis.cache.dir=target/test-data/${random.uuid}/analysis-cache",
+        "mail.store.dir=target/test-data/${random.uuid}/store",
         "spring.ai.gigachat.enabled=false"
 })
 class MailAssistantIntegrationTest {
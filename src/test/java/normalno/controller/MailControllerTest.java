@@ -3,6 +3,11 @@ package normalno.controller;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import normalno.EmailMessage;
 import normalno.service.AiService;
+import normalno.service.ConversationIndex;
+import normalno.service.InboxSnapshot;
+import normalno.service.MailPage;
+import normalno.service.MailRefreshService;
+import normalno.service.MailSearchIndex;
 import normalno.service.MailService;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,9 +16,11 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.Matchers.hasSize;
@@ -34,6 +41,15 @@ class MailControllerTest {
     @MockBean
     private AiService aiService;
 
+    @MockBean
+    private MailRefreshService refreshService;
+
+    @MockBean
+    private MailSearchIndex searchIndex;
+
+    @MockBean
+    private ConversationIndex conversations;
+
     @Autowired
     private ObjectMapper objectMapper;
 
@@ -143,4 +159,158 @@ class MailControllerTest {
 
         verify(mailService, times(2)).fetchEmails();
     }
-}
\ No newline at end of file
+
+    @Test
+    void getMails_shouldExposeWindowCursor_whenEmailsHaveUids() throws Exception {
+        // Arrange
+        EmailMessage oldest = new EmailMessage();
+        oldest.setUid(101L);
+        EmailMessage newest = new EmailMessage();
+        newest.setUid(110L);
+        when(mailService.fetchEmails()).thenReturn(List.of(oldest, newest));
+
+        // Act & Assert
+        mockMvc.perform(get("/mails"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Cursor", "101"));
+    }
+
+    @Test
+    void getMails_shouldReturnRequestedPage_whenCursorGiven() throws Exception {
+        // Arrange
+        EmailMessage email = new EmailMessage();
+        email.setUid(95L);
+        email.setSubject("Older");
+        when(mailService.fetchPage(null, null, 101L, 5)).thenReturn(new MailPage(List.of(email), 95L));
+
+        // Act & Assert
+        mockMvc.perform(get("/mails").param("before", "101").param("size", "5"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].subject", is("Older")))
+                .andExpect(header().string("X-Next-Cursor", "95"));
+
+        verify(mailService, never()).fetchEmails();
+    }
+
+    @Test
+    void getMails_shouldOmitWindowCursor_whenWindowMixesFolders() throws Exception {
+        // Arrange
+        EmailMessage inbox = new EmailMessage();
+        inbox.setUid(101L);
+        inbox.setAccount("personal");
+        inbox.setFolder("INBOX");
+        EmailMessage escalation = new EmailMessage();
+        escalation.setUid(7L);
+        escalation.setAccount("support");
+        escalation.setFolder("Escalations");
+        when(mailService.fetchEmails()).thenReturn(List.of(inbox, escalation));
+
+        // Act & Assert
+        mockMvc.perform(get("/mails"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[1].account", is("support")))
+                .andExpect(header().doesNotExist("X-Next-Cursor"));
+    }
+
+    @Test
+    void getMails_shouldPageRequestedAccountFolder() throws Exception {
+        // Arrange
+        when(mailService.fetchPage("support", "Escalations", null, null))
+                .thenReturn(new MailPage(List.of(new EmailMessage()), 40L));
+
+        // Act & Assert
+        mockMvc.perform(get("/mails").param("account", "support").param("folder", "Escalations"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Cursor", "40"));
+
+        verify(mailService, never()).fetchEmails();
+    }
+
+    @Test
+    void getMails_shouldOmitCursor_onLastPage() throws Exception {
+        // Arrange
+        when(mailService.fetchPage(null, null, 3L, null)).thenReturn(new MailPage(List.of(new EmailMessage()), null));
+
+        // Act & Assert
+        mockMvc.perform(get("/mails").param("before", "3"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("X-Next-Cursor"));
+    }
+
+    @Test
+    void getFullBody_shouldReturnBody_whenMessageExists() throws Exception {
+        // Arrange
+        when(mailService.fetchFullBody("support", null, 42L)).thenReturn(Optional.of("Полный текст"));
+
+        // Act & Assert
+        mockMvc.perform(get("/mails/42/body").param("account", "support"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.uid", is(42)))
+                .andExpect(jsonPath("$.body", is("Полный текст")));
+    }
+
+    @Test
+    void getFullBody_shouldReturnNotFound_whenMessageIsGone() throws Exception {
+        // Arrange
+        when(mailService.fetchFullBody(null, null, 7L)).thenReturn(Optional.empty());
+
+        // Act & Assert
+        mockMvc.perform(get("/mails/7/body"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void getMails_shouldServeFreshSnapshot_withoutFetchingMail() throws Exception {
+        // Arrange
+        EmailMessage email = new EmailMessage();
+        email.setSubject("Из снимка");
+        email.setUid(12L);
+        when(refreshService.current()).thenReturn(Optional.of(new InboxSnapshot(List.of(email), 12L, Instant.now())));
+
+        // Act & Assert
+        mockMvc.perform(get("/mails"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Cursor", "12"))
+                .andExpect(jsonPath("$[0].subject", is("Из снимка")));
+
+        verify(mailService, never()).fetchEmails();
+    }
+
+    @Test
+    void search_shouldPassQueryAndFilters_toIndex() throws Exception {
+        // Arrange
+        MailSearchIndex.Hit hit = new MailSearchIndex.Hit("work", "INBOX", 42L, "<42@example.com>",
+                "boss@example.com", "me@example.com", "Договор поставки", null, "high", "запрос", "Подписать договор", 3.5);
+        when(searchIndex.search("договор", "high", null, null, null, 5))
+                .thenReturn(new MailSearchIndex.SearchResult(1, List.of(hit), 120));
+
+        // Act & Assert
+        mockMvc.perform(get("/mails/search").param("q", "договор").param("priority", "high").param("limit", "5"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.total", is(1)))
+                .andExpect(jsonPath("$.hits[0].uid", is(42)))
+                .andExpect(jsonPath("$.hits[0].subject", is("Договор поставки")));
+
+        verifyNoInteractions(mailService);
+    }
+
+    @Test
+    void getConversations_shouldReturnOneLinePerConversation() throws Exception {
+        // Arrange
+        ConversationIndex.ConversationView conversation = new ConversationIndex.ConversationView("<a@example.com>",
+                "work", "INBOX", "Договор", List.of("boss@example.com", "lawyer@example.com"), 3, null,
+                "lawyer@example.com", 42L, "high", "Прислали договор, юрист просит правки");
+        when(conversations.conversations("work", 10)).thenReturn(List.of(conversation));
+
+        // Act & Assert
+        mockMvc.perform(get("/mails/conversations").param("account", "work").param("limit", "10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].subject", is("Договор")))
+                .andExpect(jsonPath("$[0].messages", is(3)))
+                .andExpect(jsonPath("$[0].summary", is("Прислали договор, юрист просит правки")));
+
+        verifyNoInteractions(mailService);
+    }
+}
@@ -0,0 +1,140 @@
+package normalno.controller;
+
+import normalno.EmailMessage;
+import normalno.service.MailService;
+import normalno.service.MailStreamListener;
+import normalno.util.AiAnalysisFormatter;
+import normalno.util.MailMetrics;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+@WebMvcTest(MailStreamController.class)
+@Import({AiAnalysisFormatter.class, MailMetrics.class})
+class MailStreamControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockBean
+    private MailService mailService;
+
+    @Test
+    void streamMails_shouldSendHeadersFirstAndAnalysisLater() throws Exception {
+        // Arrange
+        EmailMessage email = new EmailMessage();
+        email.setFrom("sender@example.com");
+        email.setSubject("Subject 1");
+        email.setBody("Body 1");
+        when(mailService.fetchEmails(any(MailStreamListener.class))).thenAnswer(invocation -> {
+            MailStreamListener listener = invocation.getArgument(0);
+            listener.onFetched(List.of(email));
+            email.setAiAnalysis("{\"summary\":\"Кратко\",\"priority\":\"high\"}");
+            listener.onAnalyzed(email);
+            return List.of(email.copy());
+        });
+
+        // Act
+        MvcResult result = mockMvc.perform(get("/mails/stream"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult(5000);
+        String body = result.getResponse().getContentAsString(StandardCharsets.UTF_8);
+
+        // Assert
+        int emailEvent = body.indexOf("event:email");
+        int analysisEvent = body.indexOf("event:analysis");
+        int doneEvent = body.indexOf("event:done");
+        assertThat(emailEvent).isGreaterThanOrEqualTo(0);
+        assertThat(analysisEvent).isGreaterThan(emailEvent);
+        assertThat(doneEvent).isGreaterThan(analysisEvent);
+        assertThat(body).contains("\"subject\":\"Subject 1\"", "\"analysis\":null", "\"priority\":\"high\"",
+                "Кратко", "\"total\":1");
+        verify(mailService, never()).fetchEmails();
+    }
+
+    @Test
+    void streamMails_shouldSendDateSortKey_forEmailsFetchedOutOfOrder() throws Exception {
+        // Arrange
+        EmailMessage newer = new EmailMessage();
+        newer.setSubject("Newer");
+        newer.setReceivedDate(Instant.parse("2025-10-02T09:00:00Z"));
+        EmailMessage older = new EmailMessage();
+        older.setSubject("Older");
+        older.setReceivedDate(Instant.parse("2025-10-01T09:00:00Z"));
+        when(mailService.fetchEmails(any(MailStreamListener.class))).thenAnswer(invocation -> {
+            MailStreamListener listener = invocation.getArgument(0);
+            // Папка с более новым письмом прочиталась первой
+            listener.onFetched(List.of(newer));
+            listener.onFetched(List.of(older));
+            return List.of(older.copy(), newer.copy());
+        });
+
+        // Act
+        MvcResult result = mockMvc.perform(get("/mails/stream"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult(5000);
+        String body = result.getResponse().getContentAsString(StandardCharsets.UTF_8);
+
+        // Assert
+        assertThat(body).contains(
+                "\"index\":0,\"sortKey\":" + newer.getReceivedDate().toEpochMilli()
+                        + ",\"receivedDate\":\"2025-10-02T09:00:00Z\"",
+                "\"index\":1,\"sortKey\":" + older.getReceivedDate().toEpochMilli());
+    }
+
+    @Test
+    void streamMails_shouldRelayTokens_whenRequested() throws Exception {
+        // Arrange
+        EmailMessage email = new EmailMessage();
+        email.setSubject("Subject 1");
+        when(mailService.fetchEmails(any(MailStreamListener.class))).thenAnswer(invocation -> {
+            MailStreamListener listener = invocation.getArgument(0);
+            assertThat(listener.streamTokens()).isTrue();
+            listener.onFetched(List.of(email));
+            listener.onToken(email, "{\"summary\":");
+            return List.of(email);
+        });
+
+        // Act
+        MvcResult result = mockMvc.perform(get("/mails/stream").param("tokens", "true"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult(5000);
+
+        // Assert
+        assertThat(result.getResponse().getContentAsString(StandardCharsets.UTF_8))
+                .contains("event:token", "\"index\":0", "\"text\":\"{\\\"summary\\\":\"");
+    }
+
+    @Test
+    void streamMails_shouldFinishStream_whenServiceFails() throws Exception {
+        // Arrange
+        when(mailService.fetchEmails(any(MailStreamListener.class))).thenThrow(new RuntimeException("Service error"));
+
+        // Act
+        MvcResult result = mockMvc.perform(get("/mails/stream"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        Object asyncResult = result.getAsyncResult(5000);
+
+        // Assert
+        assertThat(asyncResult).isInstanceOf(RuntimeException.class);
+        assertThat(result.getResponse().getContentAsString(StandardCharsets.UTF_8)).doesNotContain("event:done");
+    }
+}
@@ -0,0 +1,47 @@
+package normalno.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AdaptiveLimiterTest {
+
+    @Test
+    void shouldGrowWhenSaturatedAndFast_andShrinkOnSlowResponses() throws Exception {
+        // Arrange
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10, Duration.ofSeconds(1), 0.5, 0.5, Duration.ofMillis(10));
+
+        // Act: несколько «окон» быстрых ответов при полной загрузке
+        for (int round = 0; round < 4; round++) {
+            int permits = limiter.limit();
+            for (int i = 0; i < permits; i++) {
+                limiter.acquire();
+            }
+            for (int i = 0; i < permits; i++) {
+                limiter.release(AdaptiveLimiter.Outcome.SUCCESS, Duration.ofMillis(100).toNanos());
+            }
+        }
+        int grown = limiter.limit();
+        limiter.acquire();
+        limiter.release(AdaptiveLimiter.Outcome.SUCCESS, Duration.ofSeconds(5).toNanos());
+
+        // Assert
+        assertThat(grown).isGreaterThan(2);
+        assertThat(limiter.limit()).isLessThan(grown);
+        assertThat(limiter.inFlight()).isZero();
+    }
+
+    @Test
+    void shouldRejectAfterTimeout_whenAllPermitsAreTaken() throws Exception {
+        // Arrange
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 4, Duration.ofSeconds(1), 0.9, 0.5, Duration.ofMillis(20));
+        limiter.acquire();
+
+        // Act & Assert
+        assertThatThrownBy(limiter::acquire).isInstanceOf(ModelUnavailableException.class);
+        assertThat(limiter.timedOut()).isEqualTo(1);
+    }
+}
@@ -1,12 +1,19 @@
 package normalno.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import normalno.EmailMessage;
+import normalno.util.MailMetrics;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.List;
 
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -33,7 +40,7 @@ class AiServiceTest {
     @BeforeEach
     void setUp() {
         when(chatClientBuilder.build()).thenReturn(chatClient);
-        aiService = new AiService(chatClientBuilder);
+        aiService = new AiService(chatClientBuilder, guard(MailMetrics.noop()), MailMetrics.noop());
     }
 
     @Test
@@ -84,10 +91,77 @@ class AiServiceTest {
 
         String result = aiService.analyzeEmail(email);
 
-        assertThat(result).contains("Ошибка при анализе письма");
+        assertThat(result).contains("Ошибка анализа письма");
         assertThat(result).contains("API Error");
     }
 
+    @Test
+    void analyzeEmail_shouldRecordLatencyTokensAndErrors() {
+        // Arrange
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        aiService = new AiService(chatClientBuilder, guard(new MailMetrics(registry)), new MailMetrics(registry));
+        EmailMessage email = new EmailMessage();
+        email.setSubject("Счёт за октябрь");
+        email.setBody("Добрый день, направляем счёт за октябрь.");
+
+        when(chatClient.prompt(anyString()))
+                .thenReturn(requestSpec)
+                .thenThrow(new IllegalStateException("invalid prompt"));
+        when(requestSpec.call()).thenReturn(callResponseSpec);
+        when(callResponseSpec.content()).thenReturn("{\"summary\":\"Счёт\"}");
+
+        // Act
+        aiService.analyzeEmail(email);
+        aiService.analyzeEmail(email);
+
+        // Assert
+        assertThat(registry.get(MailMetrics.PROMPT_BUILD).tag("mode", "single").timer().count()).isEqualTo(2);
+        assertThat(registry.get(MailMetrics.LLM_CALL).tags("mode", "single", "outcome", "success").timer().count())
+                .isEqualTo(1);
+        assertThat(registry.get(MailMetrics.LLM_CALL).tags("mode", "single", "outcome", "error").timer().count())
+                .isEqualTo(1);
+        assertThat(registry.get(MailMetrics.LLM_TOKENS).tag("type", "prompt").summary().totalAmount())
+                .isGreaterThan(registry.get(MailMetrics.LLM_TOKENS).tag("type", "completion").summary().totalAmount());
+        assertThat(registry.get(MailMetrics.ERRORS).tags("stage", "llm", "type", "IllegalStateException")
+                .counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void analyzeEmail_shouldRelayStreamedTokensAndReturnWholeResponse() {
+        // Arrange
+        EmailMessage email = new EmailMessage();
+        email.setSubject("Streamed");
+        ChatClient.StreamResponseSpec streamResponseSpec = mock(ChatClient.StreamResponseSpec.class);
+        when(chatClient.prompt(anyString())).thenReturn(requestSpec);
+        when(requestSpec.stream()).thenReturn(streamResponseSpec);
+        when(streamResponseSpec.content()).thenReturn(Flux.just("{\"summary\":", " \"ok\"}"));
+        List<String> tokens = new ArrayList<>();
+
+        // Act
+        String result = aiService.analyzeEmail(email, tokens::add);
+
+        // Assert
+        assertThat(tokens).containsExactly("{\"summary\":", " \"ok\"}");
+        assertThat(result).isEqualTo("{\"summary\": \"ok\"}");
+        verify(requestSpec, never()).call();
+    }
+
+    @Test
+    void analyzeEmail_shouldReturnErrorMessage_whenStreamFails() {
+        // Arrange
+        ChatClient.StreamResponseSpec streamResponseSpec = mock(ChatClient.StreamResponseSpec.class);
+        when(chatClient.prompt(anyString())).thenReturn(requestSpec);
+        when(requestSpec.stream()).thenReturn(streamResponseSpec);
+        when(streamResponseSpec.content()).thenReturn(Flux.concat(Flux.just("{"),
+                Flux.error(new RuntimeException("Stream Error"))));
+
+        // Act
+        String result = aiService.analyzeEmail(new EmailMessage(), token -> { });
+
+        // Assert
+        assertThat(result).startsWith(AiService.ERROR_PREFIX).contains("Stream Error");
+    }
+
     @Test
     void analyzeEmail_shouldHandleNullFields() {
 
@@ -135,4 +209,132 @@ class AiServiceTest {
                         prompt.contains("Please review this urgent request")
         ));
     }
-}
\ No newline at end of file
+
+    @Test
+    void buildPrompt_shouldAskForUpdatedThreadSummary_whenReplyHasThreadContext() {
+        // Arrange
+        EmailMessage email = email("Re: Договор");
+        email.setThreadSummary("Прислали договор на подпись");
+
+        // Act
+        String reply = AiService.buildPrompt(email);
+        String standalone = AiService.buildPrompt(email("Договор"));
+
+        // Assert
+        assertThat(reply).contains("Прислали договор на подпись", "\"thread\"");
+        assertThat(standalone).doesNotContain("\"thread\"", "Это ответ в переписке");
+    }
+
+    @Test
+    void analyzeBatch_shouldMapArrayResultsBackByIndex() {
+        // Arrange
+        List<EmailMessage> batch = List.of(email("First"), email("Second"));
+        when(chatClient.prompt(anyString())).thenReturn(requestSpec);
+        when(requestSpec.call()).thenReturn(callResponseSpec);
+        when(callResponseSpec.content()).thenReturn("""
+                ```json
+                [
+                  {"index": 1, "summary": "second", "priority": "low"},
+                  {"index": 0, "summary": "first", "priority": "high"}
+                ]
+                ```
+                """);
+
+        // Act
+        List<String> results = aiService.analyzeBatch(batch);
+
+        // Assert
+        assertThat(results).hasSize(2);
+        assertThat(results.get(0)).contains("\"summary\":\"first\"").doesNotContain("index");
+        assertThat(results.get(1)).contains("\"summary\":\"second\"");
+        verify(chatClient, times(1)).prompt(argThat((String prompt) ->
+                prompt.contains("Письмо #0") && prompt.contains("First")
+                        && prompt.contains("Письмо #1") && prompt.contains("Second")));
+    }
+
+    @Test
+    void analyzeBatch_shouldRetryOnlyMissingItems_whenResponseIsPartial() {
+        // Arrange
+        List<EmailMessage> batch = List.of(email("First"), email("Second"), email("Third"));
+        when(chatClient.prompt(anyString())).thenReturn(requestSpec);
+        when(requestSpec.call()).thenReturn(callResponseSpec);
+        when(callResponseSpec.content())
+                // Ответ обрезан посреди третьего элемента, второй без summary
+                .thenReturn("[{\"index\": 0, \"summary\": \"first\"}, {\"index\": 1}, {\"index\": 2, \"summ")
+                .thenReturn("[{\"index\": 0, \"summary\": \"second\"}, {\"index\": 1, \"summary\": \"third\"}]");
+
+        // Act
+        List<String> results = aiService.analyzeBatch(batch);
+
+        // Assert
+        assertThat(results.get(0)).contains("first");
+        assertThat(results.get(1)).contains("second");
+        assertThat(results.get(2)).contains("third");
+        verify(chatClient).prompt(argThat((String prompt) ->
+                !prompt.contains("First") && prompt.contains("Second") && prompt.contains("Third")));
+    }
+
+    @Test
+    void analyzeBatch_shouldFallBackToSingleEmail_whenRetriesExhausted() {
+        // Arrange
+        List<EmailMessage> batch = List.of(email("First"), email("Second"));
+        when(chatClient.prompt(anyString())).thenReturn(requestSpec);
+        when(requestSpec.call()).thenReturn(callResponseSpec);
+        when(callResponseSpec.content())
+                .thenReturn("not json at all")
+                .thenReturn("[{\"index\": 0, \"summary\": \"first\"}]")
+                .thenReturn("{\"summary\": \"second alone\"}");
+
+        // Act
+        List<String> results = aiService.analyzeBatch(batch);
+
+        // Assert
+        assertThat(results.get(0)).contains("first");
+        assertThat(results.get(1)).contains("second alone");
+        verify(chatClient, times(3)).prompt(anyString());
+    }
+
+    @Test
+    void analyzeBatch_shouldReturnErrors_whenProviderFails() {
+        // Arrange
+        List<EmailMessage> batch = List.of(email("First"), email("Second"));
+        when(chatClient.prompt(anyString())).thenThrow(new RuntimeException("API Error"));
+
+        // Act
+        List<String> results = aiService.analyzeBatch(batch);
+
+        // Assert
+        assertThat(results).allSatisfy(result -> assertThat(result).contains("Ошибка анализа письма", "API Error"));
+        verify(chatClient, times(1)).prompt(anyString());
+    }
+
+    @Test
+    void packBatches_shouldRespectTokenBudgetAndMaxSize() {
+        // Arrange
+        ReflectionTestUtils.setField(aiService, "batchTokenBudget", 1500);
+        ReflectionTestUtils.setField(aiService, "maxBatchSize", 3);
+        EmailMessage longEmail = email("Long");
+        longEmail.setBody("слово ".repeat(3000));
+        List<EmailMessage> emails = List.of(email("1"), email("2"), email("3"), email("4"), longEmail, email("5"));
+
+        // Act
+        List<List<EmailMessage>> batches = aiService.packBatches(emails);
+
+        // Assert
+        assertThat(batches).extracting(List::size).containsExactly(3, 1, 1, 1);
+        assertThat(batches.get(2)).containsExactly(longEmail);
+    }
+
+    private static EmailMessage email(String subject) {
+        EmailMessage email = new EmailMessage();
+        email.setFrom("sender@example.com");
+        email.setTo("receiver@example.com");
+        email.setSubject(subject);
+        email.setBody("Body of " + subject);
+        return email;
+    }
+
+    private static ModelCallGuard guard(MailMetrics metrics) {
+        return new ModelCallGuard(new ModelResilienceProperties(), metrics);
+    }
+}
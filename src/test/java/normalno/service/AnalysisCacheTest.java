@@ -0,0 +1,129 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AnalysisCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void keyOf_shouldUseMessageId_whenPresent() {
+        // Arrange
+        AnalysisCache cache = new AnalysisCache(10, "");
+        EmailMessage email = email("Subject", "Body");
+        email.setMessageId(" <abc@example.com> ");
+
+        // Act & Assert
+        assertThat(cache.keyOf(email)).isEqualTo("mid:<abc@example.com>");
+    }
+
+    @Test
+    void keyOf_shouldHashContent_whenMessageIdMissing() {
+        // Arrange
+        AnalysisCache cache = new AnalysisCache(10, "");
+
+        // Act
+        String key1 = cache.keyOf(email("Subject", "Body"));
+        String key2 = cache.keyOf(email("Subject", "Body"));
+        String key3 = cache.keyOf(email("Subject", "Other body"));
+
+        // Assert
+        assertThat(key1).startsWith("sha:").isEqualTo(key2);
+        assertThat(key3).isNotEqualTo(key1);
+    }
+
+    @Test
+    void get_shouldEvictLeastRecentlyUsedEntry() {
+        // Arrange
+        AnalysisCache cache = new AnalysisCache(2, "");
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+
+        // Act
+        cache.put("c", "C");
+
+        // Assert
+        assertThat(cache.get("a")).isEqualTo("A");
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("c")).isEqualTo("C");
+        assertThat(cache.stats().memoryEntries()).isEqualTo(2);
+    }
+
+    @Test
+    void get_shouldSurviveRestart_whenDiskTierEnabled() {
+        // Arrange
+        AnalysisCache before = new AnalysisCache(10, tempDir.toString());
+        before.put("mid:<1@example.com>", "{\"priority\":\"high\"}");
+
+        // Act
+        AnalysisCache after = new AnalysisCache(10, tempDir.toString());
+
+        // Assert
+        assertThat(after.get("mid:<1@example.com>")).isEqualTo("{\"priority\":\"high\"}");
+        assertThat(after.stats().diskEntries()).isEqualTo(1);
+        assertThat(after.stats().memoryEntries()).isEqualTo(1);
+    }
+
+    @Test
+    void put_shouldEvictLeastRecentlyUsedFiles_overDiskLimit() throws Exception {
+        // Arrange
+        AnalysisCache cache = new AnalysisCache(1, tempDir.toString());
+        ReflectionTestUtils.setField(cache, "maxDiskEntries", 10);
+        cache.put("kept", "K");
+
+        // Act
+        for (int i = 0; i < 50; i++) {
+            cache.put("key" + i, "V" + i);
+            // В памяти помещается одна запись: «kept» читается с диска и остаётся самой свежей
+            cache.get("kept");
+        }
+
+        // Assert
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files.filter(file -> file.toString().endsWith(".json")).count()).isLessThanOrEqualTo(10);
+        }
+        assertThat(cache.stats().diskEntries()).isLessThanOrEqualTo(10);
+        AnalysisCache restarted = new AnalysisCache(1, tempDir.toString());
+        assertThat(restarted.get("kept")).isEqualTo("K");
+        assertThat(restarted.get("key49")).isEqualTo("V49");
+        assertThat(restarted.get("key0")).isNull();
+    }
+
+    @Test
+    void stats_shouldReportHitRatio() {
+        // Arrange
+        AnalysisCache cache = new AnalysisCache(10, "");
+        cache.put("a", "A");
+
+        // Act
+        cache.get("a");
+        cache.get("a");
+        cache.get("a");
+        cache.get("missing");
+
+        // Assert
+        AnalysisCache.CacheStats stats = cache.stats();
+        assertThat(stats.hits()).isEqualTo(3);
+        assertThat(stats.misses()).isEqualTo(1);
+        assertThat(stats.hitRatio()).isEqualTo(0.75);
+    }
+
+    private static EmailMessage email(String subject, String body) {
+        EmailMessage email = new EmailMessage();
+        email.setFrom("sender@example.com");
+        email.setSubject(subject);
+        email.setBody(body);
+        return email;
+    }
+}
@@ -0,0 +1,487 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+import normalno.util.EmailBodyPreprocessor;
+import normalno.util.MailMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class AnalysisPipelineTest {
+
+    @Mock
+    private AiService aiService;
+
+    private AnalysisPipeline pipeline;
+
+    @AfterEach
+    void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    void analyzeAll_shouldKeepMailboxOrder() {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 4, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class)))
+                .thenAnswer(invocation -> {
+                    EmailMessage email = invocation.getArgument(0);
+                    // Первые письма отвечают дольше, чтобы завершиться не по порядку
+                    Thread.sleep(50 - Integer.parseInt(email.getSubject()) * 5L);
+                    return "analysis " + email.getSubject();
+                });
+        List<EmailMessage> emails = emails(8);
+
+        // Act
+        pipeline.analyzeAll(emails);
+
+        // Assert
+        for (int i = 0; i < emails.size(); i++) {
+            assertThat(emails.get(i).getSubject()).isEqualTo(String.valueOf(i));
+            assertThat(emails.get(i).getAiAnalysis()).isEqualTo("analysis " + i);
+        }
+    }
+
+    @Test
+    void analyzeAll_shouldIsolateFailures() {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 4, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class)))
+                .thenAnswer(invocation -> {
+                    EmailMessage email = invocation.getArgument(0);
+                    if ("1".equals(email.getSubject())) {
+                        throw new RuntimeException("AI Service Error");
+                    }
+                    return "ok";
+                });
+        List<EmailMessage> emails = emails(3);
+
+        // Act
+        pipeline.analyzeAll(emails);
+
+        // Assert
+        assertThat(emails.get(0).getAiAnalysis()).isEqualTo("ok");
+        assertThat(emails.get(1).getAiAnalysis()).contains("Ошибка анализа письма", "AI Service Error");
+        assertThat(emails.get(2).getAiAnalysis()).isEqualTo("ok");
+    }
+
+    @Test
+    void analyzeAll_shouldNotExceedMaxInFlight() {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxObserved = new AtomicInteger();
+        when(aiService.analyzeEmail(any(EmailMessage.class)))
+                .thenAnswer(invocation -> {
+                    maxObserved.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                    inFlight.decrementAndGet();
+                    return "ok";
+                });
+
+        // Act
+        pipeline.analyzeAll(emails(10));
+
+        // Assert
+        assertThat(maxObserved.get()).isEqualTo(2);
+    }
+
+    @Test
+    void analyzeAll_shouldSkipModelCall_whenAnalysisIsCached() {
+        // Arrange
+        AnalysisCache cache = new AnalysisCache(100, "");
+        pipeline = new AnalysisPipeline(aiService, cache, new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"priority\":\"low\"}");
+        pipeline.analyzeAll(emails(1));
+
+        // Act
+        List<EmailMessage> again = emails(1);
+        pipeline.analyzeAll(again);
+
+        // Assert
+        assertThat(again.get(0).getAiAnalysis()).isEqualTo("{\"priority\":\"low\"}");
+        verify(aiService, times(1)).analyzeEmail(any(EmailMessage.class));
+        assertThat(cache.stats().hits()).isEqualTo(1);
+    }
+
+    @Test
+    void analyzeAll_shouldNotCacheErrors() {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class)))
+                .thenReturn(AiService.ERROR_PREFIX + "timeout")
+                .thenReturn("{\"priority\":\"low\"}");
+        pipeline.analyzeAll(emails(1));
+
+        // Act
+        List<EmailMessage> again = emails(1);
+        pipeline.analyzeAll(again);
+
+        // Assert
+        assertThat(again.get(0).getAiAnalysis()).isEqualTo("{\"priority\":\"low\"}");
+        verify(aiService, times(2)).analyzeEmail(any(EmailMessage.class));
+    }
+
+    @Test
+    void analyzeAll_shouldSendOnlyCacheMissesInBatches_whenBatchingEnabled() {
+        // Arrange
+        AnalysisCache cache = new AnalysisCache(100, "");
+        pipeline = new AnalysisPipeline(aiService, cache, new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+        ReflectionTestUtils.setField(pipeline, "batchEnabled", true);
+        List<EmailMessage> emails = emails(3);
+        cache.put(cache.keyOf(emails.get(1)), "cached");
+        when(aiService.packBatches(anyList())).thenAnswer(invocation -> {
+            List<EmailMessage> misses = invocation.getArgument(0);
+            return List.of(misses);
+        });
+        when(aiService.analyzeBatch(anyList())).thenReturn(List.of("batch 0", "batch 2"));
+
+        // Act
+        pipeline.analyzeAll(emails);
+
+        // Assert
+        assertThat(emails).extracting(EmailMessage::getAiAnalysis).containsExactly("batch 0", "cached", "batch 2");
+        verify(aiService).analyzeBatch(argThat(batch ->
+                batch.stream().map(EmailMessage::getSubject).toList().equals(List.of("0", "2"))));
+        verify(aiService, never()).analyzeEmail(any(EmailMessage.class));
+    }
+
+    @Test
+    void analyzeAll_shouldNotifyListenerAsSoonAsEachAnalysisCompletes() {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class)))
+                .thenAnswer(invocation -> {
+                    EmailMessage email = invocation.getArgument(0);
+                    // Первое письмо отвечает заметно дольше второго
+                    Thread.sleep("0".equals(email.getSubject()) ? 200 : 10);
+                    return "analysis " + email.getSubject();
+                });
+        List<String> completed = new CopyOnWriteArrayList<>();
+        MailStreamListener listener = new MailStreamListener() {
+            @Override
+            public void onAnalyzed(EmailMessage email) {
+                completed.add(email.getAiAnalysis());
+            }
+        };
+
+        // Act
+        pipeline.analyzeAll(emails(2), listener);
+
+        // Assert
+        assertThat(completed).containsExactly("analysis 1", "analysis 0");
+    }
+
+    @Test
+    void analyzeAll_shouldRelayTokens_whenListenerStreamsTokens() {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class), any()))
+                .thenAnswer(invocation -> {
+                    Consumer<String> onToken = invocation.getArgument(1);
+                    onToken.accept("{\"summary\":");
+                    onToken.accept("\"ok\"}");
+                    return "{\"summary\":\"ok\"}";
+                });
+        List<String> tokens = new CopyOnWriteArrayList<>();
+        MailStreamListener listener = new MailStreamListener() {
+            @Override
+            public void onToken(EmailMessage email, String token) {
+                tokens.add(token);
+            }
+
+            @Override
+            public boolean streamTokens() {
+                return true;
+            }
+        };
+        List<EmailMessage> emails = emails(1);
+
+        // Act
+        pipeline.analyzeAll(emails, listener);
+
+        // Assert
+        assertThat(tokens).containsExactly("{\"summary\":", "\"ok\"}");
+        assertThat(emails.get(0).getAiAnalysis()).isEqualTo("{\"summary\":\"ok\"}");
+        verify(aiService, never()).analyzeEmail(any(EmailMessage.class));
+    }
+
+    @Test
+    void analyzeAll_shouldKeepAnalyzing_whenListenerFails() {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 1, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("ok");
+        MailStreamListener listener = new MailStreamListener() {
+            @Override
+            public void onAnalyzed(EmailMessage email) {
+                throw new IllegalStateException("client gone");
+            }
+        };
+        List<EmailMessage> emails = emails(3);
+
+        // Act
+        pipeline.analyzeAll(emails, listener);
+
+        // Assert
+        assertThat(emails).extracting(EmailMessage::getAiAnalysis).containsOnly("ok");
+    }
+
+    @Test
+    void analyzeAll_shouldSendPreprocessedBodyToModelButKeepOriginal() {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("ok");
+        EmailMessage email = new EmailMessage();
+        email.setSubject("Re: отчёт");
+        email.setBody("Принято.\n\nOn Mon, Mar 11, 2024 at 10:00 AM John wrote:\n> старый текст");
+
+        // Act
+        pipeline.analyzeAll(List.of(email));
+
+        // Assert
+        ArgumentCaptor<EmailMessage> prompt = ArgumentCaptor.forClass(EmailMessage.class);
+        verify(aiService).analyzeEmail(prompt.capture());
+        assertThat(prompt.getValue().getBody()).isEqualTo("Принято.");
+        assertThat(prompt.getValue().getSubject()).isEqualTo("Re: отчёт");
+        assertThat(email.getBody()).contains("старый текст");
+        assertThat(email.getAiAnalysis()).isEqualTo("ok");
+    }
+
+    @Test
+    void analyzeAll_shouldSkipModel_whenClassifiedLocally() {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("model");
+        List<EmailMessage> emails = emails(2);
+        emails.get(0).setFrom("news@shop.example");
+        emails.get(0).setHeaders(Map.of("list-unsubscribe", "<mailto:unsubscribe@shop.example>"));
+        emails.get(0).setBody("Скидки до 50% и промокод на доставку");
+
+        // Act
+        pipeline.analyzeAll(emails);
+
+        // Assert
+        assertThat(emails.get(0).getAiAnalysis()).contains("\"intent\":\"реклама\"", "\"priority\":\"низкий\"");
+        assertThat(emails.get(1).getAiAnalysis()).isEqualTo("model");
+        verify(aiService, times(1)).analyzeEmail(any(EmailMessage.class));
+    }
+
+    @Test
+    void analyzeAll_shouldHandleEmptyList() {
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+
+        pipeline.analyzeAll(List.of());
+    }
+
+    @Test
+    void analyzeAll_shouldServeUncachedLocalEstimate_whenModelIsDegraded() {
+        // Arrange
+        AnalysisCache cache = new AnalysisCache(100, "");
+        pipeline = new AnalysisPipeline(aiService, cache, new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class)))
+                .thenReturn(AiService.ERROR_PREFIX + "Модель временно недоступна");
+        when(aiService.isDegraded()).thenReturn(true);
+        EmailMessage email = new EmailMessage();
+        email.setMessageId("<deadline@example.com>");
+        email.setSubject("Срочно: договор до вечера");
+
+        // Act
+        pipeline.analyzeAll(List.of(email));
+
+        // Assert
+        assertThat(email.getAnalysis()).isNotNull();
+        assertThat(email.getAnalysis().degraded()).isTrue();
+        assertThat(email.getAnalysis().priority()).isEqualTo(normalno.EmailAnalysis.Priority.HIGH);
+        // Оценка по правилам не кэшируется и считается неудачной, чтобы письмо ушло в модель повторно
+        assertThat(cache.get(cache.keyOf(email))).isNull();
+        assertThat(AnalysisPipeline.isFailed(email)).isTrue();
+    }
+
+    @Test
+    void analyzeAll_shouldCallModelOnce_whenSameEmailIsAnalyzedConcurrently() throws Exception {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 4, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenAnswer(invocation -> {
+            Thread.sleep(100);
+            return "shared";
+        });
+        List<EmailMessage> first = List.of(sameEmail(), sameEmail());
+        List<EmailMessage> second = List.of(sameEmail());
+
+        // Act
+        Thread other = new Thread(() -> pipeline.analyzeAll(second));
+        other.start();
+        pipeline.analyzeAll(first);
+        other.join();
+
+        // Assert
+        assertThat(first).extracting(EmailMessage::getAiAnalysis).containsExactly("shared", "shared");
+        assertThat(second.get(0).getAiAnalysis()).isEqualTo("shared");
+        verify(aiService, times(1)).analyzeEmail(any(EmailMessage.class));
+    }
+
+    @Test
+    void analyzeAll_shouldSendEmailInOneBatchOnly_whenSameEmailIsAnalyzedConcurrently() throws Exception {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 4, MailMetrics.noop());
+        ReflectionTestUtils.setField(pipeline, "batchEnabled", true);
+        CountDownLatch started = new CountDownLatch(1);
+        when(aiService.packBatches(anyList())).thenAnswer(invocation -> {
+            List<EmailMessage> misses = invocation.getArgument(0);
+            return List.of(misses);
+        });
+        when(aiService.analyzeBatch(anyList())).thenAnswer(invocation -> {
+            started.countDown();
+            Thread.sleep(100);
+            return List.of("shared");
+        });
+        List<EmailMessage> first = List.of(sameEmail());
+        List<EmailMessage> second = List.of(sameEmail(), sameEmail());
+
+        // Act
+        Thread other = new Thread(() -> pipeline.analyzeAll(first));
+        other.start();
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        pipeline.analyzeAll(second);
+        other.join();
+
+        // Assert
+        assertThat(first.get(0).getAiAnalysis()).isEqualTo("shared");
+        assertThat(second).extracting(EmailMessage::getAiAnalysis).containsExactly("shared", "shared");
+        verify(aiService, times(1)).packBatches(anyList());
+        verify(aiService, times(1)).analyzeBatch(anyList());
+    }
+
+    @Test
+    void analyzeAll_shouldSendDuplicateEmailOnceInBatch_whenBatchingEnabled() {
+        // Arrange
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
+        ReflectionTestUtils.setField(pipeline, "batchEnabled", true);
+        List<EmailMessage> emails = List.of(sameEmail(), emails(1).get(0), sameEmail());
+        when(aiService.packBatches(anyList())).thenAnswer(invocation -> {
+            List<EmailMessage> misses = invocation.getArgument(0);
+            return List.of(misses);
+        });
+        when(aiService.analyzeBatch(anyList())).thenReturn(List.of("report", "batch 0"));
+
+        // Act
+        pipeline.analyzeAll(emails);
+
+        // Assert
+        assertThat(emails).extracting(EmailMessage::getAiAnalysis).containsExactly("report", "batch 0", "report");
+        verify(aiService).analyzeBatch(argThat(batch -> batch.size() == 2));
+    }
+
+    private static EmailMessage sameEmail() {
+        EmailMessage email = new EmailMessage();
+        email.setMessageId("<report@example.com>");
+        email.setSubject("Отчёт за неделю");
+        return email;
+    }
+
+    @Test
+    void analyzeAll_shouldReuseAnalysis_forNearDuplicateEmail() {
+        // Arrange
+        NearDuplicateIndex nearDuplicates = new NearDuplicateIndex(true, 3, 100, 8);
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), nearDuplicates, new ConversationIndex(100), 2, MailMetrics.noop());
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"priority\":\"средний\"}");
+        String body = "Сборка номер %d на ветке main завершилась с ошибкой на этапе тестов. "
+                + "Подробности и журнал выполнения доступны на странице сборки в системе непрерывной интеграции.";
+        EmailMessage first = new EmailMessage();
+        first.setFrom("ci@build.example");
+        first.setSubject("Сборка 512 упала");
+        first.setBody(body.formatted(512));
+        EmailMessage second = first.copy();
+        second.setSubject("Сборка 513 упала");
+        second.setBody(body.formatted(513));
+
+        // Act
+        pipeline.analyzeAll(List.of(first));
+        pipeline.analyzeAll(List.of(second));
+
+        // Assert
+        assertThat(second.getAiAnalysis()).isEqualTo(first.getAiAnalysis());
+        verify(aiService, times(1)).analyzeEmail(any(EmailMessage.class));
+        assertThat(nearDuplicates.stats().reused()).isEqualTo(1);
+    }
+
+    @Test
+    void analyzeAll_shouldAnalyzeReply_againstConversationSummary() {
+        // Arrange
+        ConversationIndex conversations = new ConversationIndex(100);
+        pipeline = new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(),
+                new RuleBasedClassifier(), NearDuplicateIndex.disabled(), conversations, 2, MailMetrics.noop());
+        EmailMessage root = new EmailMessage();
+        root.setMessageId("<a@example.com>");
+        root.setSubject("Договор");
+        EmailMessage reply = new EmailMessage();
+        reply.setMessageId("<b@example.com>");
+        reply.setSubject("Re: Договор");
+        reply.setHeaders(Map.of("in-reply-to", "<a@example.com>"));
+        when(aiService.analyzeEmail(argThat((EmailMessage email) -> email != null && email.getThreadSummary() == null)))
+                .thenReturn("{\"summary\":\"Прислали договор\"}");
+        when(aiService.analyzeEmail(argThat((EmailMessage email) -> email != null && email.getThreadSummary() != null)))
+                .thenReturn("{\"summary\":\"Правки\",\"thread\":\"Прислали договор, просят правки\"}");
+
+        // Act
+        pipeline.analyzeAll(List.of(root));
+        pipeline.analyzeAll(List.of(reply));
+
+        // Assert
+        ArgumentCaptor<EmailMessage> prompts = ArgumentCaptor.forClass(EmailMessage.class);
+        verify(aiService, times(2)).analyzeEmail(prompts.capture());
+        assertThat(prompts.getAllValues().get(1).getThreadSummary()).isEqualTo("Прислали договор");
+        assertThat(reply.getThreadId()).isEqualTo(root.getThreadId());
+        assertThat(conversations.conversations(null, null).get(0).summary()).isEqualTo("Прислали договор, просят правки");
+    }
+
+    private static List<EmailMessage> emails(int count) {
+        List<EmailMessage> emails = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            EmailMessage email = new EmailMessage();
+            email.setSubject(String.valueOf(i));
+            emails.add(email);
+        }
+        return emails;
+    }
+}
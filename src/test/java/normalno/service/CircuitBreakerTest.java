@@ -0,0 +1,80 @@
+package normalno.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CircuitBreakerTest {
+
+    @Test
+    void shouldOpenOnFailureRate_andCloseAfterSuccessfulProbe() {
+        // Arrange
+        MutableClock clock = new MutableClock();
+        CircuitBreaker breaker = new CircuitBreaker(10, 4, 0.5, Duration.ofSeconds(30), clock);
+        breaker.onSuccess();
+        breaker.onSuccess();
+        breaker.onFailure();
+
+        // Act
+        breaker.onFailure();
+
+        // Assert
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+
+        clock.advance(Duration.ofSeconds(30));
+        assertThat(breaker.tryAcquire()).isTrue();
+        // Пока идёт пробный вызов, остальные отклоняются
+        assertThat(breaker.tryAcquire()).isFalse();
+        breaker.onSuccess();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquire()).isTrue();
+    }
+
+    @Test
+    void shouldReopen_whenProbeFails() {
+        // Arrange
+        MutableClock clock = new MutableClock();
+        CircuitBreaker breaker = new CircuitBreaker(4, 1, 0.5, Duration.ofSeconds(10), clock);
+        breaker.onFailure();
+        clock.advance(Duration.ofSeconds(10));
+        assertThat(breaker.tryAcquire()).isTrue();
+
+        // Act
+        breaker.onFailure();
+
+        // Assert
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+        assertThat(breaker.opened()).isEqualTo(2);
+    }
+
+    private static class MutableClock extends Clock {
+
+        private Instant now = Instant.parse("2025-10-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConversationIndexTest {
+
+    private final ConversationIndex index = new ConversationIndex(100);
+
+    @Test
+    void assign_shouldGroupRepliesByReferences() {
+        // Arrange
+        EmailMessage root = email("<a@example.com>", null, null, "Договор", 1);
+        EmailMessage reply = email("<b@example.com>", "<a@example.com>", "<a@example.com>", "Re: Договор", 2);
+        EmailMessage replyToReply = email("<c@example.com>", "<b@example.com>", "<a@example.com> <b@example.com>",
+                "RE: Re: Договор", 3);
+        EmailMessage other = email("<x@example.com>", null, null, "Отпуск", 4);
+
+        // Act
+        List.of(root, reply, replyToReply, other).forEach(index::assign);
+
+        // Assert
+        assertThat(reply.getThreadId()).isEqualTo(root.getThreadId());
+        assertThat(replyToReply.getThreadId()).isEqualTo(root.getThreadId());
+        assertThat(other.getThreadId()).isNotEqualTo(root.getThreadId());
+        List<ConversationIndex.ConversationView> conversations = index.conversations(null, null);
+        assertThat(conversations).extracting(ConversationIndex.ConversationView::subject)
+                .containsExactly("Отпуск", "Договор");
+        assertThat(conversations.get(1).messages()).isEqualTo(3);
+    }
+
+    @Test
+    void assign_shouldJoinParentThatArrivesAfterReply() {
+        // Arrange: ответ получен раньше письма, на которое он отвечает (например, страница истории)
+        EmailMessage reply = email("<b@example.com>", "<a@example.com>", null, "Re: Договор", 2);
+        EmailMessage root = email("<a@example.com>", null, null, "Договор", 1);
+
+        // Act
+        index.assign(reply);
+        index.assign(root);
+
+        // Assert
+        assertThat(root.getThreadId()).isEqualTo(reply.getThreadId());
+        assertThat(index.stats().conversations()).isEqualTo(1);
+    }
+
+    @Test
+    void assign_shouldPassRollingSummary_toNextReply() {
+        // Arrange
+        EmailMessage root = email("<a@example.com>", null, null, "Договор", 1);
+        index.assign(root);
+        root.setAiAnalysis("{\"summary\":\"Прислали договор на подпись\",\"priority\":\"высокий\"}");
+        index.record(root);
+        EmailMessage reply = email("<b@example.com>", "<a@example.com>", "<a@example.com>", "Re: Договор", 2);
+
+        // Act
+        index.assign(reply);
+        reply.setAiAnalysis("{\"summary\":\"Юрист просит правки\",\"priority\":\"средний\","
+                + "\"thread\":\"Прислали договор, юрист просит правки\"}");
+        index.record(reply);
+        EmailMessage next = email("<c@example.com>", "<b@example.com>", "<a@example.com> <b@example.com>",
+                "Re: Договор", 3);
+        index.assign(next);
+
+        // Assert
+        assertThat(reply.getThreadSummary()).isEqualTo("Прислали договор на подпись");
+        assertThat(next.getThreadSummary()).isEqualTo("Прислали договор, юрист просит правки");
+        ConversationIndex.ConversationView conversation = index.conversations(null, null).get(0);
+        assertThat(conversation.summary()).isEqualTo("Прислали договор, юрист просит правки");
+        assertThat(conversation.priority()).isEqualTo("medium");
+        assertThat(index.stats().repliesWithContext()).isEqualTo(2);
+    }
+
+    @Test
+    void record_shouldKeepSummary_whenAnalysisFailedOrOlder() {
+        // Arrange
+        EmailMessage root = email("<a@example.com>", null, null, "Договор", 1);
+        EmailMessage reply = email("<b@example.com>", "<a@example.com>", null, "Re: Договор", 5);
+        EmailMessage late = email("<c@example.com>", "<a@example.com>", null, "Re: Договор", 3);
+        index.assign(root);
+        root.setAiAnalysis("{\"summary\":\"Договор\"}");
+        index.record(root);
+        index.assign(reply);
+        reply.setAiAnalysis("{\"summary\":\"Правки\",\"thread\":\"Договор и правки\"}");
+        index.record(reply);
+
+        // Act
+        index.assign(late);
+        late.setAiAnalysis("{\"summary\":\"Старое\",\"thread\":\"Старое содержание\"}");
+        index.record(late);
+        EmailMessage failed = email("<d@example.com>", "<a@example.com>", null, "Re: Договор", 9);
+        index.assign(failed);
+        failed.setAiAnalysis("Ошибка анализа письма: timeout");
+        index.record(failed);
+
+        // Assert
+        assertThat(late.getThreadSummary()).isNull();
+        assertThat(index.conversations(null, null).get(0).summary()).isEqualTo("Договор и правки");
+        assertThat(index.conversations(null, null).get(0).messages()).isEqualTo(4);
+    }
+
+    private static EmailMessage email(String messageId, String inReplyTo, String references, String subject,
+                                      long minute) {
+        EmailMessage email = new EmailMessage();
+        email.setAccount("work");
+        email.setFolder("INBOX");
+        email.setUid(minute);
+        email.setMessageId(messageId);
+        email.setFrom("boss@example.com");
+        email.setSubject(subject);
+        email.setReceivedDate(Instant.parse("2024-05-01T10:00:00Z").plusSeconds(minute * 60));
+        Map<String, String> headers = new HashMap<>();
+        if (inReplyTo != null) {
+            headers.put("in-reply-to", inReplyTo);
+        }
+        if (references != null) {
+            headers.put("references", references);
+        }
+        email.setHeaders(Map.copyOf(headers));
+        return email;
+    }
+}
@@ -0,0 +1,140 @@
+package normalno.service;
+
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Store;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ImapConnectionPoolTest {
+
+    @Mock
+    private Store store;
+
+    @Mock
+    private Folder inbox;
+
+    @Test
+    void lease_shouldReuseConnectionAndOpenFolder() throws Exception {
+        // Arrange
+        AtomicInteger connects = new AtomicInteger();
+        ImapConnectionPool pool = pool(() -> {
+            connects.incrementAndGet();
+            return store;
+        }, 2, Duration.ofMinutes(5), Duration.ofSeconds(30));
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(inbox);
+        when(inbox.isOpen()).thenReturn(true);
+
+        // Act
+        try (ImapConnectionPool.Lease lease = pool.lease()) {
+            assertThat(lease.folder("INBOX")).isSameAs(inbox);
+            assertThat(lease.isFreshlyOpened("INBOX")).isTrue();
+        }
+        try (ImapConnectionPool.Lease lease = pool.lease()) {
+            assertThat(lease.folder("INBOX")).isSameAs(inbox);
+            assertThat(lease.isFreshlyOpened("INBOX")).isFalse();
+        }
+
+        // Assert
+        assertThat(connects.get()).isEqualTo(1);
+        verify(inbox, times(1)).open(Folder.READ_ONLY);
+        assertThat(pool.stats()).isEqualTo(new ImapConnectionPool.PoolStats(1, 1, 0));
+    }
+
+    @Test
+    void lease_shouldFail_whenPoolIsExhausted() throws Exception {
+        // Arrange
+        ImapConnectionPool pool = pool(() -> store, 1, Duration.ofMinutes(5), Duration.ofSeconds(30));
+        when(store.isConnected()).thenReturn(true);
+
+        // Act & Assert
+        try (ImapConnectionPool.Lease ignored = pool.lease()) {
+            assertThatThrownBy(pool::lease)
+                    .isInstanceOf(MessagingException.class)
+                    .hasMessageContaining("Нет свободных IMAP-подключений");
+        }
+    }
+
+    @Test
+    void lease_shouldFail_whenServerIsUnreachable() {
+        // Arrange
+        ImapConnectionPool pool = pool(() -> store, 1, Duration.ofMinutes(5), Duration.ofSeconds(30));
+        when(store.isConnected()).thenReturn(false);
+
+        // Act & Assert
+        assertThatThrownBy(pool::lease).isInstanceOf(MessagingException.class);
+        // Разрешение на подключение должно вернуться в пул
+        assertThat(pool.stats().open()).isZero();
+    }
+
+    @Test
+    void close_shouldDiscardInvalidatedConnection() throws Exception {
+        // Arrange
+        ImapConnectionPool pool = pool(() -> store, 1, Duration.ofMinutes(5), Duration.ofSeconds(30));
+        when(store.isConnected()).thenReturn(true);
+
+        // Act
+        try (ImapConnectionPool.Lease lease = pool.lease()) {
+            lease.invalidate();
+        }
+
+        // Assert
+        verify(store).close();
+        assertThat(pool.stats().open()).isZero();
+    }
+
+    @Test
+    void lease_shouldValidateIdleConnectionWithNoop_andReplaceDeadOne() throws Exception {
+        // Arrange
+        Store replacement = mock(Store.class);
+        AtomicInteger connects = new AtomicInteger();
+        ImapConnectionPool pool = pool(() -> connects.getAndIncrement() == 0 ? store : replacement,
+                1, Duration.ofMinutes(5), Duration.ZERO);
+        when(store.isConnected()).thenReturn(true, false);
+        when(replacement.isConnected()).thenReturn(true);
+        pool.lease().close();
+
+        // Act
+        try (ImapConnectionPool.Lease ignored = pool.lease()) {
+            // Assert
+            verify(store).close();
+            assertThat(connects.get()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void lease_shouldEvictConnectionsIdleLongerThanMaxIdle() throws Exception {
+        // Arrange
+        Store replacement = mock(Store.class);
+        AtomicInteger connects = new AtomicInteger();
+        ImapConnectionPool pool = pool(() -> connects.getAndIncrement() == 0 ? store : replacement,
+                1, Duration.ZERO, Duration.ofSeconds(30));
+        when(store.isConnected()).thenReturn(true);
+        when(replacement.isConnected()).thenReturn(true);
+        pool.lease().close();
+        Thread.sleep(5);
+
+        // Act
+        pool.lease().close();
+
+        // Assert
+        verify(store).close();
+        assertThat(connects.get()).isEqualTo(2);
+    }
+
+    private static ImapConnectionPool pool(ImapConnectionPool.StoreFactory factory, int size,
+                                           Duration maxIdle, Duration validateAfter) {
+        return new ImapConnectionPool(factory, size, maxIdle, validateAfter, Duration.ofMillis(50));
+    }
+}
@@ -0,0 +1,50 @@
+package normalno.service;
+
+import jakarta.mail.Folder;
+import org.eclipse.angus.mail.iap.Response;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class ImapRoundTripCounterTest {
+
+    @Test
+    void handleResponse_shouldCountOnlyTaggedResponses() {
+        // Arrange
+        ImapRoundTripCounter counter = ImapRoundTripCounter.attach(mock(IMAPFolder.class), true);
+
+        // Act
+        counter.handleResponse(new Response("* 15 EXISTS"));
+        counter.handleResponse(new Response("* 1 FETCH (UID 101)"));
+        counter.handleResponse(new Response("A4 OK FETCH completed"));
+        counter.handleResponse(new Response("A5 OK UID FETCH completed"));
+
+        // Assert: EXAMINE при открытии + две команды
+        assertThat(counter.isAvailable()).isTrue();
+        assertThat(counter.count()).isEqualTo(3);
+    }
+
+    @Test
+    void attach_shouldNotCountExamine_whenFolderReusedFromPool() {
+        // Arrange
+        ImapRoundTripCounter counter = ImapRoundTripCounter.attach(mock(IMAPFolder.class), false);
+
+        // Act
+        counter.handleResponse(new Response("A9 OK UID FETCH completed"));
+
+        // Assert
+        assertThat(counter.count()).isEqualTo(1);
+    }
+
+    @Test
+    void attach_shouldBeUnavailable_forNonImapFolder() {
+        // Act
+        ImapRoundTripCounter counter = ImapRoundTripCounter.attach(mock(Folder.class), true);
+
+        // Assert
+        assertThat(counter.isAvailable()).isFalse();
+        assertThat(counter.count()).isZero();
+    }
+}
@@ -0,0 +1,115 @@
+package normalno.service;
+
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.event.MessageCountEvent;
+import jakarta.mail.event.MessageCountListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class MailIngestionServiceTest {
+
+    @Mock
+    private MailService mailService;
+
+    @Mock
+    private Folder inbox;
+
+    private MailIngestionService ingestionService;
+
+    @BeforeEach
+    void setUp() {
+        ingestionService = new MailIngestionService(mailService);
+        ReflectionTestUtils.setField(ingestionService, "pollInterval", Duration.ofMillis(20));
+        ReflectionTestUtils.setField(ingestionService, "reconnectDelay", Duration.ofMillis(20));
+    }
+
+    @AfterEach
+    void tearDown() {
+        ingestionService.stop();
+    }
+
+    @Test
+    void start_shouldWarmUpWindowAndActivatePushMode() throws Exception {
+        // Arrange
+        when(mailService.openFolder("INBOX")).thenReturn(inbox);
+        lenient().when(inbox.isOpen()).thenReturn(true);
+        lenient().when(inbox.getMessageCount()).thenReturn(5);
+
+        // Act
+        ingestionService.start();
+
+        // Assert
+        await().atMost(Duration.ofSeconds(5)).untilAsserted(() -> {
+            verify(mailService).syncFolder("INBOX", inbox);
+            verify(mailService).setPushIngestionActive(true);
+        });
+    }
+
+    @Test
+    void listen_shouldSyncWhenNewMessagesArrive() throws Exception {
+        // Arrange
+        when(mailService.openFolder("INBOX")).thenReturn(inbox);
+        lenient().when(inbox.isOpen()).thenReturn(true);
+        lenient().when(inbox.getMessageCount()).thenReturn(5);
+
+        // Act
+        ingestionService.start();
+        await().atMost(Duration.ofSeconds(5))
+                .untilAsserted(() -> verify(mailService).setPushIngestionActive(true));
+
+        ArgumentCaptor<MessageCountListener> listener = ArgumentCaptor.forClass(MessageCountListener.class);
+        verify(inbox).addMessageCountListener(listener.capture());
+        listener.getValue().messagesAdded(
+                new MessageCountEvent(inbox, MessageCountEvent.ADDED, false, new Message[0]));
+
+        // Assert
+        await().atMost(Duration.ofSeconds(5))
+                .untilAsserted(() -> verify(mailService, times(2)).syncFolder("INBOX", inbox));
+    }
+
+    @Test
+    void listen_shouldSyncWhenMessageCountGrows_evenWithoutEvent() throws Exception {
+        // Arrange
+        when(mailService.openFolder("INBOX")).thenReturn(inbox);
+        lenient().when(inbox.isOpen()).thenReturn(true);
+        lenient().when(inbox.getMessageCount()).thenReturn(5, 6, 6);
+
+        // Act
+        ingestionService.start();
+
+        // Assert
+        await().atMost(Duration.ofSeconds(5))
+                .untilAsserted(() -> verify(mailService, times(2)).syncFolder("INBOX", inbox));
+    }
+
+    @Test
+    void run_shouldReconnect_whenFolderCannotBeOpened() throws Exception {
+        // Arrange
+        when(mailService.openFolder("INBOX"))
+                .thenThrow(new jakarta.mail.MessagingException("Connection refused"))
+                .thenReturn(inbox);
+        lenient().when(inbox.isOpen()).thenReturn(true);
+        lenient().when(inbox.getMessageCount()).thenReturn(0);
+
+        // Act
+        ingestionService.start();
+
+        // Assert
+        await().atMost(Duration.ofSeconds(5))
+                .untilAsserted(() -> verify(mailService).syncFolder(any(String.class), any(Folder.class)));
+    }
+}
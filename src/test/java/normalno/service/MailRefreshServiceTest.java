@@ -0,0 +1,119 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+import normalno.util.MailMetrics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class MailRefreshServiceTest {
+
+    @Mock
+    private MailService mailService;
+
+    private final MutableClock clock = new MutableClock();
+
+    private MailRefreshService refreshService;
+
+    @BeforeEach
+    void setUp() {
+        refreshService = new MailRefreshService(mailService, MailMetrics.noop(), clock);
+        ReflectionTestUtils.setField(refreshService, "maxStaleness", Duration.ofMinutes(5));
+    }
+
+    @Test
+    void current_shouldBeEmpty_untilFirstRefreshCompletes() {
+        // Act & Assert
+        assertThat(refreshService.current()).isEmpty();
+    }
+
+    @Test
+    void refresh_shouldPublishSnapshotWithCursor() {
+        // Arrange
+        when(mailService.fetchEmails()).thenReturn(List.of(email(7L), email(8L)));
+
+        // Act
+        refreshService.refresh();
+
+        // Assert
+        InboxSnapshot snapshot = refreshService.current().orElseThrow();
+        assertThat(snapshot.emails()).extracting(EmailMessage::getUid).containsExactly(7L, 8L);
+        assertThat(snapshot.nextCursor()).isEqualTo(7L);
+        assertThat(snapshot.refreshedAt()).isEqualTo(clock.instant());
+    }
+
+    @Test
+    void current_shouldNotServeSnapshot_olderThanMaxStaleness() {
+        // Arrange
+        when(mailService.fetchEmails()).thenReturn(List.of(email(1L)));
+        refreshService.refresh();
+
+        // Act
+        clock.advance(Duration.ofMinutes(6));
+
+        // Assert
+        assertThat(refreshService.current()).isEmpty();
+    }
+
+    @Test
+    void refresh_shouldKeepPreviousSnapshot_whenSourcesFailed() {
+        // Arrange
+        when(mailService.fetchEmails()).thenReturn(List.of(email(1L))).thenReturn(List.of());
+        when(mailService.getSourceStats()).thenReturn(List.of(new MailService.SourceStats("default", "INBOX",
+                5000, -1, "Connection timed out", null, 1)));
+        refreshService.refresh();
+        clock.advance(Duration.ofMinutes(1));
+
+        // Act
+        refreshService.refresh();
+
+        // Assert
+        assertThat(refreshService.current().orElseThrow().emails()).hasSize(1);
+    }
+
+    private static EmailMessage email(long uid) {
+        EmailMessage email = new EmailMessage();
+        email.setUid(uid);
+        email.setAccount("default");
+        email.setFolder("INBOX");
+        return email;
+    }
+
+    private static class MutableClock extends Clock {
+
+        private Instant now = Instant.parse("2025-10-01T09:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailSearchIndexTest {
+
+    @Test
+    void search_shouldRankSubjectMatchesAboveBodyMentions() {
+        // Arrange
+        MailSearchIndex index = new MailSearchIndex(1000);
+        index.index(List.of(
+                email(1, "Обед в пятницу", "Кстати, договор тоже надо будет посмотреть", null),
+                email(2, "Договор поставки", "Прошу подписать до конца недели", null),
+                email(3, "Новости компании", "Ничего интересного", null)));
+
+        // Act
+        MailSearchIndex.SearchResult result = index.search("договор", null, null, null, null, null);
+
+        // Assert
+        assertThat(result.total()).isEqualTo(2);
+        assertThat(result.hits()).extracting(MailSearchIndex.Hit::uid).containsExactly(2L, 1L);
+        assertThat(result.hits().get(0).score()).isGreaterThan(result.hits().get(1).score());
+    }
+
+    @Test
+    void search_shouldMatchWordForms_andAnalysisFields() {
+        // Arrange
+        MailSearchIndex index = new MailSearchIndex(1000);
+        index.index(List.of(email(1, "Re: вопрос", "Добрый день",
+                "{\"summary\":\"Клиент просит счёт по договору\",\"intent\":\"запрос счёта\",\"priority\":\"high\"}")));
+
+        // Act & Assert
+        assertThat(index.search("договоры", null, null, null, null, null).hits()).hasSize(1);
+        assertThat(index.search("счет", null, null, null, null, null).hits()).hasSize(1);
+    }
+
+    @Test
+    void search_shouldFilterByPriorityAndIntent() {
+        // Arrange
+        MailSearchIndex index = new MailSearchIndex(1000);
+        index.index(List.of(
+                email(1, "Счёт за октябрь", "", "{\"intent\":\"оплата\",\"priority\":\"high\"}"),
+                email(2, "Счёт за сентябрь", "", "{\"intent\":\"информирование\",\"priority\":\"low\"}"),
+                email(3, "Счёт за август", "", "{\"intent\":\"оплата\",\"priority\":\"low\"}")));
+
+        // Act
+        MailSearchIndex.SearchResult urgent = index.search("счёт", "high", null, null, null, null);
+        MailSearchIndex.SearchResult payments = index.search(null, null, "Оплата", null, null, null);
+
+        // Assert
+        assertThat(urgent.hits()).extracting(MailSearchIndex.Hit::uid).containsExactly(1L);
+        // Без слов запроса — последние подходящие письма, новые первыми
+        assertThat(payments.hits()).extracting(MailSearchIndex.Hit::uid).containsExactly(3L, 1L);
+    }
+
+    @Test
+    void index_shouldReplacePreviousVersion_ofSameEmail() {
+        // Arrange
+        MailSearchIndex index = new MailSearchIndex(1000);
+        index.index(List.of(email(1, "Встреча", "", "Ошибка анализа письма: timeout")));
+
+        // Act
+        index.index(List.of(email(1, "Встреча", "", "{\"summary\":\"Перенос встречи на вторник\",\"priority\":\"medium\"}")));
+
+        // Assert
+        assertThat(index.search("встреча", null, null, null, null, null).hits())
+                .singleElement()
+                .satisfies(hit -> assertThat(hit.priority()).isEqualTo("medium"));
+        assertThat(index.search("вторник", null, null, null, null, null).total()).isEqualTo(1);
+        assertThat(index.stats().documents()).isEqualTo(1);
+    }
+
+    @Test
+    void index_shouldEvictOldestDocuments_overLimit() {
+        // Arrange
+        MailSearchIndex index = new MailSearchIndex(100);
+        List<EmailMessage> emails = new ArrayList<>();
+        for (int uid = 1; uid <= 3000; uid++) {
+            emails.add(email(uid, "Отчёт " + uid, "Еженедельный отчёт", null));
+        }
+
+        // Act
+        for (EmailMessage email : emails) {
+            index.index(List.of(email));
+        }
+
+        // Assert
+        MailSearchIndex.SearchResult result = index.search("отчёт", null, null, null, null, 100);
+        assertThat(result.total()).isEqualTo(100);
+        assertThat(result.hits()).extracting(MailSearchIndex.Hit::uid).allMatch(uid -> uid > 2900);
+        assertThat(index.stats().deleted()).isLessThanOrEqualTo(1024);
+    }
+
+    @Test
+    void index_shouldKeepBackingArraysBounded_whenIndexingFarMoreThanMaxDocuments() {
+        // Arrange
+        MailSearchIndex index = new MailSearchIndex(100);
+
+        // Act
+        for (int uid = 1; uid <= 20000; uid++) {
+            index.index(List.of(email(uid, "Отчёт " + uid, "Еженедельный отчёт", null)));
+        }
+
+        // Assert
+        List<?> documents = (List<?>) ReflectionTestUtils.getField(index, "documents");
+        float[] lengths = (float[]) ReflectionTestUtils.getField(index, "lengths");
+        byte[] priorities = (byte[]) ReflectionTestUtils.getField(index, "priorities");
+        assertThat(documents).hasSizeLessThanOrEqualTo(100 + 1025);
+        assertThat(lengths).hasSizeLessThanOrEqualTo(2048);
+        assertThat(priorities).hasSizeLessThanOrEqualTo(2048);
+        MailSearchIndex.SearchResult result = index.search("отчёт", null, null, null, null, 5);
+        assertThat(result.total()).isEqualTo(100);
+        assertThat(result.hits()).extracting(MailSearchIndex.Hit::uid).allMatch(uid -> uid > 19900);
+        assertThat(index.search("отчёт 19950", null, null, null, null, 1).hits())
+                .extracting(MailSearchIndex.Hit::uid).containsExactly(19950L);
+    }
+
+    private static EmailMessage email(long uid, String subject, String body, String analysis) {
+        EmailMessage email = new EmailMessage();
+        email.setUid(uid);
+        email.setAccount("work");
+        email.setFolder("INBOX");
+        email.setFrom("sender@example.com");
+        email.setSubject(subject);
+        email.setBody(body);
+        if (analysis != null) {
+            email.setAiAnalysis(analysis);
+        }
+        return email;
+    }
+}
@@ -2,20 +2,39 @@ package normalno.service;
 
 import jakarta.mail.*;
 import jakarta.mail.internet.InternetAddress;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import jakarta.mail.internet.MimeMessage;
 import normalno.EmailMessage;
+import normalno.util.EmailBodyPreprocessor;
+import normalno.util.MailMetrics;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -33,18 +52,24 @@ class MailServiceTest {
     @Mock
     private Session session;
 
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final MailSearchIndex searchIndex = new MailSearchIndex(1000);
+
     private MailService mailService;
 
     @BeforeEach
     void setUp() {
-        mailService = new MailService(aiService);
+        mailService = new MailService(pipeline(),
+                new MailAccountProperties(), new MailMetrics(meterRegistry), new MailStore("", 1000), searchIndex);
+
+        // Вместо реального подключения — один ящик с мок-хранилищем
+        ReflectionTestUtils.setField(mailService, "accounts", List.of(account("default", () -> store, "INBOX")));
+    }
 
-        // Устанавливаем тестовые значения через рефлексию
-        ReflectionTestUtils.setField(mailService, "username", "test@example.com");
-        ReflectionTestUtils.setField(mailService, "password", "password");
-        ReflectionTestUtils.setField(mailService, "host", "imap.example.com");
-        ReflectionTestUtils.setField(mailService, "port", "993");
-        ReflectionTestUtils.setField(mailService, "store", store);
+    private AnalysisPipeline pipeline() {
+        return new AnalysisPipeline(aiService, new AnalysisCache(100, ""), new EmailBodyPreprocessor(), new RuleBasedClassifier(),
+                NearDuplicateIndex.disabled(), new ConversationIndex(100), 2, MailMetrics.noop());
     }
 
     @Test
@@ -72,7 +97,7 @@ class MailServiceTest {
         when(mockMessage.getRecipients(Message.RecipientType.TO))
                 .thenReturn(new Address[]{new InternetAddress("receiver@example.com")});
         when(mockMessage.getSubject()).thenReturn("Test Subject");
-        when(mockMessage.getContent()).thenReturn("Test email body");
+        when(mockMessage.getInputStream()).thenReturn(textStream("Test email body"));
 
         Message[] messages = new Message[]{mockMessage};
         when(inbox.getMessages()).thenReturn(messages);
@@ -91,7 +116,47 @@ class MailServiceTest {
         assertThat(result.get(0).getBody()).isEqualTo("Test email body");
         assertThat(result.get(0).getAiAnalysis()).isNotNull();
 
-        verify(inbox).close(false);
+        // Папка остаётся открытой в пуле до следующего запроса
+        verify(inbox, never()).close(false);
+    }
+
+    @Test
+    void fetchEmails_shouldRecordStageTimings() throws Exception {
+        // Arrange
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(inbox);
+        //Второе обновление берёт уже открытую папку из пула
+        when(inbox.isOpen()).thenReturn(true);
+        MimeMessage first = mock(MimeMessage.class);
+        when(first.getInputStream()).thenReturn(textStream("Первое письмо"));
+        MimeMessage second = mock(MimeMessage.class);
+        when(second.getInputStream()).thenReturn(textStream("Второе письмо"));
+        when(inbox.getMessages()).thenReturn(new Message[]{first, second});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"ok\"}");
+
+        // Act
+        mailService.fetchEmails();
+        mailService.fetchEmails();
+
+        // Assert
+        assertThat(meterRegistry.get(MailMetrics.FOLDER_OPEN).tag("account", "default").timer().count()).isEqualTo(1);
+        assertThat(meterRegistry.get(MailMetrics.MESSAGE_FETCH).tag("operation", "window").timer().count()).isEqualTo(2);
+        assertThat(meterRegistry.get(MailMetrics.MIME_PARSE).timer().count()).isEqualTo(4);
+    }
+
+    @Test
+    void fetchEmails_shouldCountErrorsByStageAndType() throws Exception {
+        // Arrange
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(inbox);
+        when(inbox.getMessages()).thenThrow(new FolderClosedException(inbox, "connection reset"));
+
+        // Act
+        mailService.fetchEmails();
+
+        // Assert
+        assertThat(meterRegistry.get(MailMetrics.ERRORS)
+                .tags("stage", "fetch", "type", "FolderClosedException").counter().count()).isEqualTo(1);
     }
 
     @Test
@@ -116,7 +181,7 @@ class MailServiceTest {
             when(mockMessage.getRecipients(Message.RecipientType.TO))
                     .thenReturn(new Address[]{new InternetAddress("receiver@example.com")});
             when(mockMessage.getSubject()).thenReturn("Subject " + i);
-            when(mockMessage.getContent()).thenReturn("Body " + i);
+            when(mockMessage.getInputStream()).thenReturn(textStream("Body " + i));
             messages[i] = mockMessage;
         }
 
@@ -133,7 +198,8 @@ class MailServiceTest {
         assertThat(result.get(0).getSubject()).isEqualTo("Subject 5");
         assertThat(result.get(9).getSubject()).isEqualTo("Subject 14");
 
-        verify(inbox).close(false);
+        // Папка остаётся открытой в пуле до следующего запроса
+        verify(inbox, never()).close(false);
     }
 
     @Test
@@ -151,12 +217,13 @@ class MailServiceTest {
         when(mockMessage.getRecipients(Message.RecipientType.TO))
                 .thenReturn(new Address[]{new InternetAddress("receiver@example.com")});
         when(mockMessage.getSubject()).thenReturn("Multipart Email");
+        when(mockMessage.getContentType()).thenReturn("multipart/mixed; boundary=\"b1\"");
         when(mockMessage.getContent()).thenReturn(multipart);
 
         when(multipart.getCount()).thenReturn(1);
         when(multipart.getBodyPart(0)).thenReturn(bodyPart);
         when(bodyPart.getContentType()).thenReturn("text/plain; charset=UTF-8");
-        when(bodyPart.getContent()).thenReturn("Plain text body");
+        when(bodyPart.getInputStream()).thenReturn(textStream("Plain text body"));
 
         Message[] messages = new Message[]{mockMessage};
         when(inbox.getMessages()).thenReturn(messages);
@@ -184,7 +251,7 @@ class MailServiceTest {
         when(mockMessage.getRecipients(Message.RecipientType.TO))
                 .thenReturn(new Address[]{new InternetAddress("receiver@example.com")});
         when(mockMessage.getSubject()).thenReturn("No Sender");
-        when(mockMessage.getContent()).thenReturn("Body");
+        when(mockMessage.getInputStream()).thenReturn(textStream("Body"));
 
         Message[] messages = new Message[]{mockMessage};
         when(inbox.getMessages()).thenReturn(messages);
@@ -212,7 +279,7 @@ class MailServiceTest {
         when(mockMessage.getRecipients(Message.RecipientType.TO))
                 .thenReturn(new Address[]{new InternetAddress("receiver@example.com")});
         when(mockMessage.getSubject()).thenReturn("Test");
-        when(mockMessage.getContent()).thenReturn("Body");
+        when(mockMessage.getInputStream()).thenReturn(textStream("Body"));
 
         Message[] messages = new Message[]{mockMessage};
         when(inbox.getMessages()).thenReturn(messages);
@@ -244,6 +311,545 @@ class MailServiceTest {
 
         // Assert
         assertThat(result).isEmpty();
-        verify(inbox).close(false);
+        // Папка остаётся открытой в пуле до следующего запроса
+        verify(inbox, never()).close(false);
+    }
+
+    @Test
+    void fetchEmails_shouldFetchOnlyNewUids_whenSyncedBefore() throws Exception {
+        // Arrange
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(uidInbox);
+        when(uidInbox.isOpen()).thenReturn(true);
+        when(uidFolder.getUIDValidity()).thenReturn(7L);
+
+        MimeMessage first = mockMessage("Subject 1");
+        MimeMessage second = mockMessage("Subject 2");
+        MimeMessage third = mockMessage("Subject 3");
+        when(uidFolder.getUID(first)).thenReturn(101L);
+        when(uidFolder.getUID(second)).thenReturn(102L);
+        when(uidFolder.getUID(third)).thenReturn(103L);
+
+        when(uidInbox.getMessageCount()).thenReturn(2);
+        when(uidInbox.getMessages(1, 2)).thenReturn(new Message[]{first, second});
+        when(uidFolder.getMessagesByUID(103L, UIDFolder.LASTUID)).thenReturn(new Message[]{third});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        // Act
+        List<EmailMessage> initial = mailService.fetchEmails();
+        List<EmailMessage> refreshed = mailService.fetchEmails();
+
+        // Assert
+        assertThat(initial).extracting(EmailMessage::getUid).containsExactly(101L, 102L);
+        assertThat(refreshed).extracting(EmailMessage::getSubject)
+                .containsExactly("Subject 1", "Subject 2", "Subject 3");
+        verify(aiService, times(3)).analyzeEmail(any(EmailMessage.class));
+        verify(uidInbox, never()).getMessages();
+        verify(uidInbox, times(1)).open(Folder.READ_ONLY);
+        verify(uidInbox, never()).close(false);
+    }
+
+    @Test
+    void fetchEmails_shouldResumeFromStoredWindow_afterRestart(@TempDir Path storeDir) throws Exception {
+        // Arrange: до перезапуска в хранилище попали два проанализированных письма
+        MailStore mailStore = new MailStore(storeDir.toString(), 100);
+        EmailMessage stored = new EmailMessage();
+        stored.setUid(101L);
+        stored.setSubject("Subject 1");
+        stored.setAiAnalysis("{\"summary\":\"Сохранённый анализ\"}");
+        mailStore.save("default", "INBOX", 7, List.of(stored));
+        mailService = new MailService(pipeline(),
+                new MailAccountProperties(), new MailMetrics(meterRegistry), new MailStore(storeDir.toString(), 100), searchIndex);
+        ReflectionTestUtils.setField(mailService, "accounts", List.of(account("default", () -> store, "INBOX")));
+
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(uidInbox);
+        when(uidFolder.getUIDValidity()).thenReturn(7L);
+        MimeMessage fresh = mockMessage("Subject 2");
+        when(uidFolder.getUID(fresh)).thenReturn(102L);
+        when(uidFolder.getMessagesByUID(102L, UIDFolder.LASTUID)).thenReturn(new Message[]{fresh});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Новый анализ\"}");
+
+        // Act
+        mailService.warmStart();
+        List<EmailMessage> emails = mailService.fetchEmails();
+
+        // Assert
+        assertThat(emails).extracting(EmailMessage::getSubject).containsExactly("Subject 1", "Subject 2");
+        assertThat(emails.get(0).getAnalysis().summary()).isEqualTo("Сохранённый анализ");
+        verify(aiService, times(1)).analyzeEmail(any(EmailMessage.class));
+        verify(uidInbox, never()).getMessages(anyInt(), anyInt());
+        assertThat(new MailStore(storeDir.toString(), 100).load("default", "INBOX", 10).orElseThrow().lastUid())
+                .isEqualTo(102L);
+        //В поиске и сохранённое, и только что полученное письмо
+        assertThat(searchIndex.search("subject", null, null, null, null, 10).hits())
+                .extracting(MailSearchIndex.Hit::uid).containsExactlyInAnyOrder(101L, 102L);
+    }
+
+    @Test
+    void fetchEmails_shouldIgnoreLastMessage_whenNoUidAboveWatermark() throws Exception {
+        // Arrange
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(uidInbox);
+        when(uidFolder.getUIDValidity()).thenReturn(7L);
+
+        MimeMessage only = mockMessage("Subject 1");
+        when(uidFolder.getUID(only)).thenReturn(101L);
+        when(uidInbox.getMessageCount()).thenReturn(1);
+        when(uidInbox.getMessages(1, 1)).thenReturn(new Message[]{only});
+        // Сервер отвечает на UID FETCH 102:* последним письмом
+        when(uidFolder.getMessagesByUID(102L, UIDFolder.LASTUID)).thenReturn(new Message[]{only});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        // Act
+        mailService.fetchEmails();
+        List<EmailMessage> refreshed = mailService.fetchEmails();
+
+        // Assert
+        assertThat(refreshed).hasSize(1);
+        verify(aiService, times(1)).analyzeEmail(any(EmailMessage.class));
+    }
+
+    @Test
+    void fetchEmails_shouldResync_whenUidValidityChanges() throws Exception {
+        // Arrange
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(uidInbox);
+        when(uidFolder.getUIDValidity()).thenReturn(7L, 8L);
+
+        MimeMessage before = mockMessage("Old mailbox");
+        MimeMessage after = mockMessage("New mailbox");
+        when(uidFolder.getUID(before)).thenReturn(101L);
+        when(uidFolder.getUID(after)).thenReturn(1L);
+        when(uidInbox.getMessageCount()).thenReturn(1);
+        when(uidInbox.getMessages(1, 1)).thenReturn(new Message[]{before}, new Message[]{after});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        // Act
+        mailService.fetchEmails();
+        List<EmailMessage> resynced = mailService.fetchEmails();
+
+        // Assert
+        assertThat(resynced).extracting(EmailMessage::getSubject).containsExactly("New mailbox");
+        verify(uidFolder, never()).getMessagesByUID(anyLong(), anyLong());
+    }
+
+    @Test
+    void fetchEmails_shouldReturnCopies_soCallersCannotAlterSyncedView() throws Exception {
+        // Arrange
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(uidInbox);
+        when(uidFolder.getUIDValidity()).thenReturn(7L);
+
+        MimeMessage only = mockMessage("Subject 1");
+        when(uidFolder.getUID(only)).thenReturn(101L);
+        when(uidInbox.getMessageCount()).thenReturn(1);
+        when(uidInbox.getMessages(1, 1)).thenReturn(new Message[]{only});
+        when(uidFolder.getMessagesByUID(102L, UIDFolder.LASTUID)).thenReturn(new Message[0]);
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        // Act
+        mailService.fetchEmails().get(0).setAiAnalysis("formatted");
+        List<EmailMessage> refreshed = mailService.fetchEmails();
+
+        // Assert
+        assertThat(refreshed.get(0).getAiAnalysis()).isEqualTo("{\"summary\":\"Test\"}");
+    }
+
+    @Test
+    void fetchEmails_shouldPrefetchEnvelopeAndStructureInOneBatch() throws Exception {
+        // Arrange
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(inbox);
+        MimeMessage first = mockMessage("Subject 1");
+        MimeMessage second = mockMessage("Subject 2");
+        when(inbox.getMessages()).thenReturn(new Message[]{first, second});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        // Act
+        mailService.fetchEmails();
+
+        // Assert
+        ArgumentCaptor<FetchProfile> profile = ArgumentCaptor.forClass(FetchProfile.class);
+        verify(inbox, times(1)).fetch(eq(new Message[]{first, second}), profile.capture());
+        assertThat(profile.getValue().contains(FetchProfile.Item.ENVELOPE)).isTrue();
+        assertThat(profile.getValue().contains(FetchProfile.Item.FLAGS)).isTrue();
+        assertThat(profile.getValue().contains(FetchProfile.Item.CONTENT_INFO)).isTrue();
+        assertThat(profile.getValue().contains("List-Unsubscribe")).isTrue();
+    }
+
+    @Test
+    void fetchEmails_shouldServeIngestedWindowWithoutServerRoundTrip_whenPushIngestionActive() throws Exception {
+        // Arrange
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(uidFolder.getUIDValidity()).thenReturn(7L);
+        MimeMessage only = mockMessage("Pushed");
+        when(uidFolder.getUID(only)).thenReturn(101L);
+        when(uidInbox.getMessageCount()).thenReturn(1);
+        when(uidInbox.getMessages(1, 1)).thenReturn(new Message[]{only});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        mailService.syncFolder("INBOX", uidInbox);
+        mailService.setPushIngestionActive(true);
+
+        // Act
+        List<EmailMessage> result = mailService.fetchEmails();
+
+        // Assert
+        assertThat(result).extracting(EmailMessage::getSubject).containsExactly("Pushed");
+        assertThat(result.get(0).getAiAnalysis()).isEqualTo("{\"summary\":\"Test\"}");
+        verifyNoInteractions(store);
+        verify(uidInbox, never()).close(anyBoolean());
+    }
+
+    @Test
+    void fetchEmails_shouldHandOutCopiesOfIngestedWindow_whenPushIngestionActive() throws Exception {
+        // Arrange
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(uidFolder.getUIDValidity()).thenReturn(7L);
+        MimeMessage only = mockMessage("Pushed");
+        when(uidFolder.getUID(only)).thenReturn(101L);
+        when(uidInbox.getMessageCount()).thenReturn(1);
+        when(uidInbox.getMessages(1, 1)).thenReturn(new Message[]{only});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+        mailService.syncFolder("INBOX", uidInbox);
+        mailService.setPushIngestionActive(true);
+
+        // Act: и слушатель, и вызывающий меняют полученные письма
+        mailService.fetchEmails(new MailStreamListener() {
+            @Override
+            public void onFetched(List<EmailMessage> emails) {
+                emails.forEach(email -> email.setSubject("Изменено слушателем"));
+            }
+        }).forEach(email -> email.setAiAnalysis("Изменено вызывающим"));
+        List<EmailMessage> result = mailService.fetchEmails();
+
+        // Assert
+        assertThat(result).extracting(EmailMessage::getSubject).containsExactly("Pushed");
+        assertThat(result.get(0).getAiAnalysis()).isEqualTo("{\"summary\":\"Test\"}");
+    }
+
+    @Test
+    void fetchEmails_shouldNotifyListenerWithHeadersBeforeAnalysis() throws Exception {
+        // Arrange
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(uidInbox);
+        when(uidFolder.getUIDValidity()).thenReturn(7L);
+        MimeMessage first = mockMessage("Subject 1");
+        MimeMessage second = mockMessage("Subject 2");
+        when(uidFolder.getUID(first)).thenReturn(101L);
+        when(uidFolder.getUID(second)).thenReturn(102L);
+        when(uidInbox.getMessageCount()).thenReturn(2);
+        when(uidInbox.getMessages(1, 2)).thenReturn(new Message[]{first, second});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        List<String> events = new CopyOnWriteArrayList<>();
+        MailStreamListener listener = new MailStreamListener() {
+            @Override
+            public void onFetched(List<EmailMessage> emails) {
+                emails.forEach(email -> events.add("fetched " + email.getSubject() + " " + email.getAiAnalysis()));
+            }
+
+            @Override
+            public void onAnalyzed(EmailMessage email) {
+                events.add("analyzed " + email.getSubject());
+            }
+        };
+
+        // Act
+        List<EmailMessage> result = mailService.fetchEmails(listener);
+
+        // Assert
+        assertThat(result).hasSize(2);
+        assertThat(events).hasSize(4);
+        assertThat(events.subList(0, 2)).containsExactly("fetched Subject 1 null", "fetched Subject 2 null");
+        assertThat(events.subList(2, 4)).containsExactlyInAnyOrder("analyzed Subject 1", "analyzed Subject 2");
+    }
+
+    @Test
+    void fetchPage_shouldFetchOnlyMessagesOlderThanCursor() throws Exception {
+        // Arrange
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(uidInbox);
+
+        Message cursor = mock(Message.class);
+        when(cursor.getMessageNumber()).thenReturn(50);
+        when(uidFolder.getMessageByUID(500L)).thenReturn(cursor);
+        MimeMessage older = mockMessage("Subject 48");
+        MimeMessage newer = mockMessage("Subject 49");
+        when(older.getMessageNumber()).thenReturn(48);
+        when(uidFolder.getUID(older)).thenReturn(480L);
+        when(uidFolder.getUID(newer)).thenReturn(490L);
+        when(uidInbox.getMessages(48, 49)).thenReturn(new Message[]{older, newer});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        // Act
+        MailPage page = mailService.fetchPage(500L, 2);
+
+        // Assert
+        assertThat(page.emails()).extracting(EmailMessage::getUid).containsExactly(480L, 490L);
+        assertThat(page.emails()).allMatch(email -> email.getAiAnalysis() != null);
+        assertThat(page.nextCursor()).isEqualTo(480L);
+        verify(uidInbox, never()).getMessages();
+        verify(uidInbox, never()).getMessageCount();
+        verify(aiService, times(2)).analyzeEmail(any(EmailMessage.class));
+    }
+
+    @Test
+    void fetchPage_shouldStartFromNewest_andStopAtFirstMessage() throws Exception {
+        // Arrange
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(uidInbox);
+        when(uidInbox.getMessageCount()).thenReturn(1);
+        MimeMessage only = mockMessage("Only");
+        when(only.getMessageNumber()).thenReturn(1);
+        when(uidFolder.getUID(only)).thenReturn(7L);
+        when(uidInbox.getMessages(1, 1)).thenReturn(new Message[]{only});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        // Act
+        MailPage page = mailService.fetchPage(null, 10);
+
+        // Assert
+        assertThat(page.emails()).extracting(EmailMessage::getSubject).containsExactly("Only");
+        assertThat(page.nextCursor()).isNull();
+    }
+
+    @Test
+    void fetchPage_shouldFallBackToUidRange_whenCursorMessageWasExpunged() throws Exception {
+        // Arrange
+        Folder uidInbox = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+        UIDFolder uidFolder = (UIDFolder) uidInbox;
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(uidInbox);
+        when(uidFolder.getMessageByUID(300L)).thenReturn(null);
+        Message oldest = mock(Message.class);
+        MimeMessage previous = mockMessage("Previous");
+        when(previous.getMessageNumber()).thenReturn(2);
+        when(uidFolder.getUID(previous)).thenReturn(250L);
+        when(uidFolder.getMessagesByUID(1L, 299L)).thenReturn(new Message[]{oldest, previous});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        // Act
+        MailPage page = mailService.fetchPage(300L, 1);
+
+        // Assert
+        assertThat(page.emails()).extracting(EmailMessage::getSubject).containsExactly("Previous");
+        assertThat(page.nextCursor()).isEqualTo(250L);
+    }
+
+    @Test
+    void fetchEmails_shouldMergeAccountsAndFolders_orderedByReceivedDate() throws Exception {
+        // Arrange
+        Store supportStore = mock(Store.class);
+        Folder escalations = mock(Folder.class);
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(inbox);
+        when(supportStore.isConnected()).thenReturn(true);
+        when(supportStore.getFolder("Escalations")).thenReturn(escalations);
+
+        MimeMessage personal = mockMessage("Personal");
+        when(personal.getReceivedDate()).thenReturn(Date.from(Instant.parse("2024-05-01T10:00:00Z")));
+        MimeMessage urgent = mockMessage("Urgent");
+        when(urgent.getReceivedDate()).thenReturn(Date.from(Instant.parse("2024-05-01T09:00:00Z")));
+        when(inbox.getMessages()).thenReturn(new Message[]{personal});
+        when(escalations.getMessages()).thenReturn(new Message[]{urgent});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        ReflectionTestUtils.setField(mailService, "incrementalSync", false);
+        ReflectionTestUtils.setField(mailService, "accounts", List.of(
+                account("personal", () -> store, "INBOX"),
+                account("support", () -> supportStore, "Escalations")));
+
+        // Act
+        List<EmailMessage> result = mailService.fetchEmails();
+
+        // Assert
+        assertThat(result).extracting(EmailMessage::getSubject).containsExactly("Urgent", "Personal");
+        assertThat(result).extracting(EmailMessage::getAccount).containsExactly("support", "personal");
+        assertThat(result).extracting(EmailMessage::getFolder).containsExactly("Escalations", "INBOX");
+        assertThat(MailService.windowCursor(result)).isNull();
+    }
+
+    @Test
+    void fetchEmails_shouldReturnOtherAccounts_whenOneAccountFails() throws Exception {
+        // Arrange
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(inbox);
+        MimeMessage message = mockMessage("Still here");
+        when(inbox.getMessages()).thenReturn(new Message[]{message});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        ReflectionTestUtils.setField(mailService, "incrementalSync", false);
+        ReflectionTestUtils.setField(mailService, "accounts", List.of(
+                account("broken", () -> { throw new AuthenticationFailedException("bad password"); }, "INBOX"),
+                account("personal", () -> store, "INBOX")));
+
+        // Act
+        List<EmailMessage> result = mailService.fetchEmails();
+
+        // Assert
+        assertThat(result).extracting(EmailMessage::getSubject).containsExactly("Still here");
+        assertThat(mailService.getSourceStats())
+                .anySatisfy(stats -> {
+                    assertThat(stats.account()).isEqualTo("broken");
+                    assertThat(stats.lastError()).isEqualTo("bad password");
+                    assertThat(stats.failures()).isEqualTo(1);
+                })
+                .anySatisfy(stats -> {
+                    assertThat(stats.account()).isEqualTo("personal");
+                    assertThat(stats.lastError()).isNull();
+                    assertThat(stats.lastSuccess()).isNotNull();
+                });
+    }
+
+    @Test
+    void fetchEmails_shouldStopReadingFolder_afterSourceTimeout() throws Exception {
+        // Arrange: первое письмо разбирается дольше таймаута источника
+        CountDownLatch release = new CountDownLatch(1);
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(inbox);
+        MimeMessage slow = mockMessage("Slow");
+        when(slow.getSubject()).thenAnswer(invocation -> {
+            release.await();
+            return "Slow";
+        });
+        MimeMessage next = mock(MimeMessage.class);
+        when(inbox.getMessages()).thenReturn(new Message[]{slow, next});
+        ReflectionTestUtils.setField(mailService, "incrementalSync", false);
+        ReflectionTestUtils.setField(mailService, "sourceTimeout", Duration.ofMillis(100));
+        MailAccount account = account("default", () -> store, "INBOX");
+        ReflectionTestUtils.setField(mailService, "accounts", List.of(account));
+
+        // Act
+        List<EmailMessage> result = mailService.fetchEmails();
+        release.countDown();
+
+        // Assert: подключение вернулось в пул, оставшиеся письма не читались и не анализировались
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (account.getConnectionPool().stats().leased() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(result).isEmpty();
+        assertThat(account.getConnectionPool().stats().leased()).isZero();
+        verify(next, never()).getSubject();
+        verifyNoInteractions(aiService);
+    }
+
+    @Test
+    void fetchEmails_shouldNotWaitForHangingAccount_longerThanSourceTimeout() throws Exception {
+        // Arrange
+        CountDownLatch release = new CountDownLatch(1);
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(inbox);
+        MimeMessage message = mockMessage("Fast");
+        when(inbox.getMessages()).thenReturn(new Message[]{message});
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"Test\"}");
+
+        ReflectionTestUtils.setField(mailService, "incrementalSync", false);
+        ReflectionTestUtils.setField(mailService, "sourceTimeout", Duration.ofMillis(300));
+        ReflectionTestUtils.setField(mailService, "accounts", List.of(
+                account("slow", () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new MessagingException("released");
+                }, "INBOX"),
+                account("fast", () -> store, "INBOX")));
+
+        try {
+            // Act
+            long started = System.nanoTime();
+            List<EmailMessage> result = mailService.fetchEmails();
+            long elapsedMillis = (System.nanoTime() - started) / 1_000_000;
+
+            // Assert
+            assertThat(result).extracting(EmailMessage::getSubject).containsExactly("Fast");
+            assertThat(elapsedMillis).isLessThan(5_000);
+            assertThat(mailService.getSourceStats())
+                    .anySatisfy(stats -> {
+                        assertThat(stats.account()).isEqualTo("slow");
+                        assertThat(stats.lastError()).isEqualTo("timeout");
+                    });
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void fetchEmails_shouldShareOneRefresh_betweenConcurrentCallers() throws Exception {
+        // Arrange
+        when(store.isConnected()).thenReturn(true);
+        when(store.getFolder("INBOX")).thenReturn(inbox);
+        MimeMessage message = mock(MimeMessage.class);
+        when(message.getSubject()).thenReturn("Общее письмо");
+        when(message.getInputStream()).thenReturn(textStream("Текст"));
+        when(inbox.getMessages()).thenAnswer(invocation -> {
+            //Держим первое обновление, пока второй вызов не присоединится к нему
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (meterRegistry.find(MailMetrics.COALESCED).counter() == null && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            return new Message[]{message};
+        });
+        when(aiService.analyzeEmail(any(EmailMessage.class))).thenReturn("{\"summary\":\"ok\"}");
+
+        // Act
+        List<List<EmailMessage>> results = new CopyOnWriteArrayList<>();
+        Thread other = new Thread(() -> results.add(mailService.fetchEmails()));
+        other.start();
+        results.add(mailService.fetchEmails());
+        other.join();
+
+        // Assert
+        assertThat(results).hasSize(2).allSatisfy(emails -> {
+            assertThat(emails).hasSize(1);
+            assertThat(emails.get(0).getSubject()).isEqualTo("Общее письмо");
+            assertThat(emails.get(0).getAiAnalysis()).isEqualTo("{\"summary\":\"ok\"}");
+        });
+        //Каждый вызов получает свои объекты писем
+        assertThat(results.get(0).get(0)).isNotSameAs(results.get(1).get(0));
+        verify(inbox, times(1)).getMessages();
+        verify(aiService, times(1)).analyzeEmail(any(EmailMessage.class));
+        assertThat(meterRegistry.get(MailMetrics.COALESCED).tag("operation", "window").counter().count()).isEqualTo(1);
+    }
+
+    private static MailAccount account(String name, ImapConnectionPool.StoreFactory storeFactory, String folder) {
+        return new MailAccount(name, List.of(folder), storeFactory, new ImapConnectionPool(
+                storeFactory, 2, Duration.ofMinutes(5), Duration.ofSeconds(30), Duration.ofSeconds(1)));
+    }
+
+    private static InputStream textStream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private MimeMessage mockMessage(String subject) throws Exception {
+        MimeMessage message = mock(MimeMessage.class);
+        when(message.getFrom()).thenReturn(new Address[]{new InternetAddress("sender@example.com")});
+        when(message.getRecipients(Message.RecipientType.TO))
+                .thenReturn(new Address[]{new InternetAddress("receiver@example.com")});
+        when(message.getSubject()).thenReturn(subject);
+        when(message.getInputStream()).thenReturn(textStream("Body of " + subject));
+        return message;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,176 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void load_shouldRestoreWindowWithAnalysis_afterRestart() {
+        // Arrange
+        MailStore store = new MailStore(directory.toString(), 100);
+        EmailMessage email = email(5);
+        email.setReceivedDate(Instant.parse("2025-10-01T09:00:00Z"));
+        email.setHeaders(Map.of("list-id", "<news.example.com>"));
+        email.setAiAnalysis("{\"summary\":\"Отчёт\",\"priority\":\"high\"}");
+        store.save("work", "INBOX", 42, List.of(email(3), email(4), email));
+
+        // Act
+        FolderSyncState state = new MailStore(directory.toString(), 100).load("work", "INBOX", 2).orElseThrow();
+
+        // Assert
+        assertThat(state.uidValidity()).isEqualTo(42);
+        assertThat(state.lastUid()).isEqualTo(5);
+        assertThat(state.view()).extracting(EmailMessage::getUid).containsExactly(4L, 5L);
+        EmailMessage restored = state.view().get(1);
+        assertThat(restored.getSubject()).isEqualTo("Письмо 5");
+        assertThat(restored.getReceivedDate()).isEqualTo(Instant.parse("2025-10-01T09:00:00Z"));
+        assertThat(restored.header("List-Id")).isEqualTo("<news.example.com>");
+        assertThat(restored.getAnalysis().summary()).isEqualTo("Отчёт");
+    }
+
+    @Test
+    void save_shouldReplaceEarlierRecord_andDropFolder_whenUidValidityChanges() {
+        // Arrange
+        MailStore store = new MailStore(directory.toString(), 100);
+        EmailMessage failed = email(1);
+        failed.setAiAnalysis(AiService.ERROR_PREFIX + "timeout");
+        store.save("work", "INBOX", 1, List.of(failed));
+        EmailMessage retried = email(1);
+        retried.setAiAnalysis("{\"summary\":\"ok\"}");
+        store.save("work", "INBOX", 1, List.of(retried));
+        store.save("work", "Archive", 7, List.of(email(9)));
+
+        // Act
+        store.save("work", "Archive", 8, List.of(email(2)));
+
+        // Assert
+        MailStore reopened = new MailStore(directory.toString(), 100);
+        assertThat(reopened.load("work", "INBOX", 10).orElseThrow().view())
+                .extracting(EmailMessage::getAiAnalysis).containsExactly("{\"summary\":\"ok\"}");
+        FolderSyncState archive = reopened.load("work", "Archive", 10).orElseThrow();
+        assertThat(archive.uidValidity()).isEqualTo(8);
+        assertThat(archive.view()).extracting(EmailMessage::getUid).containsExactly(2L);
+        assertThat(reopened.stats().messages()).isEqualTo(2);
+    }
+
+    @Test
+    void save_shouldCapFolderAndCompactLog() throws Exception {
+        // Arrange
+        MailStore store = new MailStore(directory.toString(), 10);
+        List<EmailMessage> emails = new ArrayList<>();
+        for (int uid = 1; uid <= 200; uid++) {
+            emails.add(email(uid));
+        }
+
+        // Act
+        for (EmailMessage email : emails) {
+            store.save("work", "INBOX", 1, List.of(email));
+        }
+
+        // Assert
+        MailStore.StoreStats stats = store.stats();
+        assertThat(stats.messages()).isEqualTo(10);
+        assertThat(stats.deadRecords()).isLessThan(80);
+        assertThat(Files.size(directory.resolve(MailStore.LOG_FILE))).isEqualTo(stats.logBytes());
+        assertThat(new MailStore(directory.toString(), 10).load("work", "INBOX", 20).orElseThrow().view())
+                .extracting(EmailMessage::getUid)
+                .containsExactly(191L, 192L, 193L, 194L, 195L, 196L, 197L, 198L, 199L, 200L);
+    }
+
+    @Test
+    void load_shouldIgnoreTornTail_andKeepAppending() throws Exception {
+        // Arrange
+        new MailStore(directory.toString(), 100).save("work", "INBOX", 1, List.of(email(1)));
+        Files.writeString(directory.resolve(MailStore.LOG_FILE), "{\"account\":\"work\",\"fol",
+                StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        // Act
+        MailStore store = new MailStore(directory.toString(), 100);
+        store.save("work", "INBOX", 1, List.of(email(2)));
+
+        // Assert
+        assertThat(new MailStore(directory.toString(), 100).load("work", "INBOX", 10).orElseThrow().view())
+                .extracting(EmailMessage::getUid).containsExactly(1L, 2L);
+    }
+
+    @Test
+    void load_shouldSkipCorruptLine_andKeepLaterRecords() throws Exception {
+        // Arrange
+        new MailStore(directory.toString(), 100).save("work", "INBOX", 1, List.of(email(1), email(2)));
+        Path log = directory.resolve(MailStore.LOG_FILE);
+        List<String> lines = new ArrayList<>(Files.readAllLines(log, StandardCharsets.UTF_8));
+        lines.add(1, "{\"account\":\"work\",\u0000garbage");
+        Files.write(log, lines, StandardCharsets.UTF_8);
+        long size = Files.size(log);
+
+        // Act
+        MailStore store = new MailStore(directory.toString(), 100);
+        FolderSyncState state = store.load("work", "INBOX", 10).orElseThrow();
+
+        // Assert
+        assertThat(state.view()).extracting(EmailMessage::getUid).containsExactly(1L, 2L);
+        assertThat(Files.size(log)).isEqualTo(size);
+        assertThat(store.stats().deadRecords()).isEqualTo(1);
+    }
+
+    @Test
+    void loadAndForEach_shouldSkipRecordThatIsNotAnEmail_andKeepTheRest() throws Exception {
+        // Arrange
+        new MailStore(directory.toString(), 100).save("work", "INBOX", 1, List.of(email(1), email(3)));
+        Path log = directory.resolve(MailStore.LOG_FILE);
+        List<String> lines = new ArrayList<>(Files.readAllLines(log, StandardCharsets.UTF_8));
+        lines.add(1, "{\"account\":\"work\",\"folder\":\"INBOX\",\"uidValidity\":1,\"uid\":2,"
+                + "\"receivedDate\":\"not-a-date\"}");
+        Files.write(log, lines, StandardCharsets.UTF_8);
+
+        // Act
+        MailStore store = new MailStore(directory.toString(), 100);
+        FolderSyncState state = store.load("work", "INBOX", 10).orElseThrow();
+        List<EmailMessage> all = new ArrayList<>();
+        new MailStore(directory.toString(), 100).forEach(all::add);
+
+        // Assert
+        assertThat(state.view()).extracting(EmailMessage::getUid).containsExactly(1L, 3L);
+        assertThat(all).extracting(EmailMessage::getUid).containsExactly(1L, 3L);
+        assertThat(store.stats().deadRecords()).isEqualTo(1);
+        assertThat(store.stats().messages()).isEqualTo(2);
+    }
+
+    @Test
+    void load_shouldBeEmpty_whenStoreIsDisabled() {
+        // Arrange
+        MailStore store = new MailStore("", 100);
+        store.save("work", "INBOX", 1, List.of(email(1)));
+
+        // Act & Assert
+        assertThat(store.load("work", "INBOX", 10)).isEmpty();
+    }
+
+    private static EmailMessage email(long uid) {
+        EmailMessage email = new EmailMessage();
+        email.setUid(uid);
+        email.setAccount("work");
+        email.setFolder("INBOX");
+        email.setMessageId("<" + uid + "@example.com>");
+        email.setFrom("sender@example.com");
+        email.setSubject("Письмо " + uid);
+        email.setBody("Текст письма " + uid);
+        return email;
+    }
+}
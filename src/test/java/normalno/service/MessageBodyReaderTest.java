@@ -0,0 +1,182 @@
+package normalno.service;
+
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageBodyReaderTest {
+
+    private final Session session = Session.getInstance(new Properties());
+    private final List<String> peekedSections = new ArrayList<>();
+
+    @Test
+    void readPreview_shouldDecodeOnlyPeekedPrefix_ofLargeBase64Body() throws Exception {
+        // Arrange
+        String text = "Строка письма номер один.\n".repeat(2000);
+        MimeMessage message = new MimeMessage(session);
+        message.setText(text, "UTF-8");
+        message.setHeader("Content-Transfer-Encoding", "base64");
+        MimeMessage stored = reparse(message);
+
+        // Act
+        MessageBodyReader.Body body = reader(1024).readPreview(null, stored);
+
+        // Assert
+        assertThat(peekedSections).containsExactly("TEXT");
+        assertThat(body.truncated()).isTrue();
+        assertThat(body.text()).startsWith("Строка письма номер один.\nСтрока");
+        assertThat(text).startsWith(body.text());
+        assertThat(body.text().length()).isLessThan(1024);
+    }
+
+    @Test
+    void readPreview_shouldReadSmallTextPart_withoutTouchingAttachment() throws Exception {
+        // Arrange
+        MimeBodyPart textPart = new MimeBodyPart();
+        textPart.setText("Счёт во вложении", "UTF-8");
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setContent(new byte[200_000], "application/pdf");
+        attachment.setFileName("invoice.pdf");
+        MimeMessage message = new MimeMessage(session);
+        message.setContent(new MimeMultipart(textPart, attachment));
+        MimeMessage stored = reparse(message);
+
+        // Act
+        MessageBodyReader.Body body = reader(1024).readPreview(null, stored);
+
+        // Assert
+        assertThat(body.text()).isEqualTo("Счёт во вложении");
+        assertThat(body.truncated()).isFalse();
+        assertThat(peekedSections).isEmpty();
+    }
+
+    @Test
+    void readFull_shouldReturnWholeText_evenAboveLimit() throws Exception {
+        // Arrange
+        String text = "Полный текст. ".repeat(500);
+        MimeMessage message = new MimeMessage(session);
+        message.setText(text, "UTF-8");
+        MimeMessage stored = reparse(message);
+
+        // Act
+        String body = reader(100).readFull(stored);
+
+        // Assert
+        assertThat(body).isEqualTo(text);
+        assertThat(peekedSections).isEmpty();
+    }
+
+    @Test
+    void readPreview_shouldFindPlainTextInsideNestedAlternative() throws Exception {
+        // Arrange
+        MimeBodyPart plain = new MimeBodyPart();
+        plain.setText("Текстовая версия", "UTF-8");
+        MimeBodyPart html = new MimeBodyPart();
+        html.setContent("<p>HTML-версия</p>", "text/html; charset=UTF-8");
+        MimeBodyPart alternative = new MimeBodyPart();
+        alternative.setContent(new MimeMultipart("alternative", plain, html));
+        MimeMessage message = new MimeMessage(session);
+        message.setContent(new MimeMultipart(alternative, attachment("report.pdf", "application/pdf")));
+        MimeMessage stored = reparse(message);
+
+        // Act
+        MessageBodyReader.Body body = reader(MessageBodyReader.NO_LIMIT).readPreview(null, stored);
+
+        // Assert
+        assertThat(body.text()).isEqualTo("Текстовая версия");
+    }
+
+    @Test
+    void readPreview_shouldConvertHtmlOnlyMail_andPeekNestedSection() throws Exception {
+        // Arrange
+        String html = "<html><head><style>p {color: red}</style></head><body>"
+                + "<p>Счёт&nbsp;№ 42 оплачен</p>" + "<p>Спасибо!</p>".repeat(300) + "</body></html>";
+        MimeBodyPart htmlPart = new MimeBodyPart();
+        htmlPart.setContent(html, "text/html; charset=UTF-8");
+        MimeBodyPart related = new MimeBodyPart();
+        related.setContent(new MimeMultipart("related", htmlPart));
+        MimeMessage message = new MimeMessage(session);
+        message.setContent(new MimeMultipart(related, attachment("notes.txt", "text/plain")));
+        MimeMessage stored = reparse(message);
+
+        // Act
+        MessageBodyReader.Body body = reader(512).readPreview(null, stored);
+
+        // Assert
+        assertThat(peekedSections).containsExactly("1.1");
+        assertThat(body.truncated()).isTrue();
+        assertThat(body.text()).startsWith("Счёт № 42 оплачен\nСпасибо!").doesNotContain("<p>", "color");
+    }
+
+    @Test
+    void readPreview_shouldReturnNoBody_whenOnlyAttachments() throws Exception {
+        // Arrange
+        MimeMessage message = new MimeMessage(session);
+        message.setContent(new MimeMultipart(attachment("scan.txt", "text/plain")));
+        MimeMessage stored = reparse(message);
+
+        // Act
+        MessageBodyReader.Body body = reader(1024).readPreview(null, stored);
+
+        // Assert
+        assertThat(body.text()).isNull();
+        assertThat(peekedSections).isEmpty();
+    }
+
+    private static MimeBodyPart attachment(String fileName, String contentType) throws Exception {
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setContent(contentType.startsWith("text/") ? "x".repeat(64 * 1024) : new byte[64 * 1024], contentType);
+        attachment.setFileName(fileName);
+        return attachment;
+    }
+
+    /**
+     * Вместо BODY.PEEK[section]<0.size> к серверу отдаёт начало сырого (закодированного) тела письма
+     */
+    private MessageBodyReader reader(int previewBytes) {
+        return new MessageBodyReader(previewBytes) {
+            @Override
+            byte[] peekSection(Folder folder, Message message, String section, int size) {
+                peekedSections.add(section);
+                try {
+                    return rawSection((MimeMessage) message, section).readNBytes(size);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    private static InputStream rawSection(MimeMessage message, String section) throws Exception {
+        if (section.equals("TEXT")) {
+            return message.getRawInputStream();
+        }
+        Part part = message;
+        for (String index : section.split("\\.")) {
+            part = ((Multipart) part.getContent()).getBodyPart(Integer.parseInt(index) - 1);
+        }
+        return ((MimeBodyPart) part).getRawInputStream();
+    }
+
+    private MimeMessage reparse(MimeMessage message) throws Exception {
+        message.saveChanges();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        message.writeTo(raw);
+        return new MimeMessage(session, new ByteArrayInputStream(raw.toByteArray()));
+    }
+}
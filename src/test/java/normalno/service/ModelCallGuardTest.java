@@ -0,0 +1,189 @@
+package normalno.service;
+
+import normalno.util.MailMetrics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ModelCallGuardTest {
+
+    private ModelResilienceProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        properties = new ModelResilienceProperties();
+        properties.getRetry().setInitialBackoff(Duration.ofMillis(1));
+        properties.getRetry().setMaxBackoff(Duration.ofMillis(2));
+    }
+
+    @Test
+    void call_shouldRetryTransientFailure_andReturnResult() {
+        // Arrange
+        ModelCallGuard guard = new ModelCallGuard(properties, MailMetrics.noop());
+        AtomicInteger attempts = new AtomicInteger();
+
+        // Act
+        String result = guard.call("single", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE);
+            }
+            return "ok";
+        }, () -> true);
+
+        // Assert
+        assertThat(result).isEqualTo("ok");
+        assertThat(attempts).hasValue(3);
+        assertThat(guard.stats().retries()).isEqualTo(2);
+    }
+
+    @Test
+    void call_shouldNotRetryPermanentFailure() {
+        // Arrange
+        ModelCallGuard guard = new ModelCallGuard(properties, MailMetrics.noop());
+        AtomicInteger attempts = new AtomicInteger();
+
+        // Act & Assert
+        assertThatThrownBy(() -> guard.call("single", () -> {
+            attempts.incrementAndGet();
+            throw new HttpClientErrorException(HttpStatus.BAD_REQUEST);
+        }, () -> true)).isInstanceOf(HttpClientErrorException.class);
+        assertThat(attempts).hasValue(1);
+        assertThat(guard.isDegraded()).isFalse();
+    }
+
+    @Test
+    void call_shouldHalveLimit_whenProviderThrottles() {
+        // Arrange
+        properties.getLimiter().setInitial(8);
+        properties.getRetry().setMaxAttempts(2);
+        ModelCallGuard guard = new ModelCallGuard(properties, MailMetrics.noop());
+        AtomicInteger attempts = new AtomicInteger();
+
+        // Act
+        String result = guard.call("single", () -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS);
+            }
+            return "ok";
+        }, () -> true);
+
+        // Assert
+        assertThat(result).isEqualTo("ok");
+        assertThat(guard.stats().limit()).isEqualTo(4);
+        assertThat(guard.stats().throttled()).isEqualTo(1);
+    }
+
+    @Test
+    void call_shouldFailFast_whenCircuitIsOpen() {
+        // Arrange
+        properties.getRetry().setMaxAttempts(1);
+        properties.getBreaker().setMinCalls(3);
+        ModelCallGuard guard = new ModelCallGuard(properties, MailMetrics.noop());
+        AtomicInteger attempts = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            try {
+                guard.call("single", () -> {
+                    attempts.incrementAndGet();
+                    throw new IllegalStateException("timeout", new SocketTimeoutException("Read timed out"));
+                }, () -> true);
+            } catch (IllegalStateException expected) {
+                // провайдер не отвечает
+            }
+        }
+
+        // Act & Assert
+        assertThatThrownBy(() -> guard.call("single", () -> "ok", () -> true))
+                .isInstanceOf(ModelUnavailableException.class);
+        assertThat(attempts).hasValue(3);
+        assertThat(guard.isDegraded()).isTrue();
+        assertThat(guard.stats().rejected()).isEqualTo(1);
+    }
+
+    @Test
+    void call_shouldNotRetryStream_afterTokensWereSent() {
+        // Arrange
+        ModelCallGuard guard = new ModelCallGuard(properties, MailMetrics.noop());
+        AtomicInteger attempts = new AtomicInteger();
+
+        // Act & Assert
+        assertThatThrownBy(() -> guard.call("stream", () -> {
+            attempts.incrementAndGet();
+            throw new HttpServerErrorException(HttpStatus.BAD_GATEWAY);
+        }, () -> false)).isInstanceOf(HttpServerErrorException.class);
+        assertThat(attempts).hasValue(1);
+    }
+
+    @Test
+    void classify_shouldUseHttpStatus_ofRestClientResponse() {
+        assertThat(ModelCallGuard.classify(new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS)))
+                .isEqualTo(ModelCallGuard.Failure.THROTTLED);
+        assertThat(ModelCallGuard.classify(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE)))
+                .isEqualTo(ModelCallGuard.Failure.TRANSIENT);
+        assertThat(ModelCallGuard.classify(new HttpClientErrorException(HttpStatus.REQUEST_TIMEOUT)))
+                .isEqualTo(ModelCallGuard.Failure.TRANSIENT);
+        assertThat(ModelCallGuard.classify(new HttpClientErrorException(HttpStatus.BAD_REQUEST)))
+                .isEqualTo(ModelCallGuard.Failure.PERMANENT);
+    }
+
+    @Test
+    void classify_shouldUseHttpStatus_ofWebClientResponse() {
+        assertThat(ModelCallGuard.classify(new WebClientResponseException(HttpStatus.TOO_MANY_REQUESTS)))
+                .isEqualTo(ModelCallGuard.Failure.THROTTLED);
+        assertThat(ModelCallGuard.classify(new RuntimeException(new WebClientResponseException(HttpStatus.BAD_GATEWAY))))
+                .isEqualTo(ModelCallGuard.Failure.TRANSIENT);
+    }
+
+    @Test
+    void classify_shouldTreatIoAndTimeouts_asTransient() {
+        assertThat(ModelCallGuard.classify(new IllegalStateException(new SocketTimeoutException("Read timed out"))))
+                .isEqualTo(ModelCallGuard.Failure.TRANSIENT);
+        assertThat(ModelCallGuard.classify(new RuntimeException(new TimeoutException())))
+                .isEqualTo(ModelCallGuard.Failure.TRANSIENT);
+    }
+
+    @Test
+    void classify_shouldRecognizeSpringAiExceptions_byType() {
+        assertThat(ModelCallGuard.classify(new TransientAiException())).isEqualTo(ModelCallGuard.Failure.TRANSIENT);
+        assertThat(ModelCallGuard.classify(new NonTransientAiException())).isEqualTo(ModelCallGuard.Failure.PERMANENT);
+    }
+
+    @Test
+    void classify_shouldIgnoreMessageText() {
+        // Формулировка ошибки не меняет решения о повторе
+        assertThat(ModelCallGuard.classify(new RuntimeException("429 Too Many Requests: rate limit")))
+                .isEqualTo(ModelCallGuard.Failure.PERMANENT);
+        assertThat(ModelCallGuard.classify(new RuntimeException("Превышено время ожидания (timeout)")))
+                .isEqualTo(ModelCallGuard.Failure.PERMANENT);
+    }
+
+    // Те же простые имена, что у исключений spring-ai-retry и spring-webflux, которых нет в зависимостях
+
+    private static final class TransientAiException extends RuntimeException {
+    }
+
+    private static final class NonTransientAiException extends RuntimeException {
+    }
+
+    private static final class WebClientResponseException extends RuntimeException {
+        private final HttpStatusCode status;
+
+        WebClientResponseException(HttpStatusCode status) {
+            this.status = status;
+        }
+
+        public HttpStatusCode getStatusCode() {
+            return status;
+        }
+    }
+}
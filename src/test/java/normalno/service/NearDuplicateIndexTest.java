@@ -0,0 +1,120 @@
+package normalno.service;
+
+import normalno.EmailMessage;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NearDuplicateIndexTest {
+
+    private static final String TEMPLATE = "Здравствуйте, %s! Ваш заказ номер %d передан в службу доставки. "
+            + "Курьер позвонит накануне и уточнит удобное время. Отследить посылку можно в личном кабинете магазина.";
+
+    @Test
+    void findSimilar_shouldReturnAnalysis_whenOnlyNumbersDiffer() {
+        // Arrange
+        NearDuplicateIndex index = new NearDuplicateIndex(true, 3, 100, 8);
+        index.remember(email("orders@shop.example", "Заказ 1001 отправлен", TEMPLATE.formatted("Иван", 1001)), "анализ");
+
+        // Act
+        String similar = index.findSimilar(email("orders@shop.example", "Заказ 2002 отправлен",
+                TEMPLATE.formatted("Иван", 2002)));
+
+        // Assert
+        assertThat(similar).isEqualTo("анализ");
+        assertThat(index.stats().reused()).isEqualTo(1);
+        assertThat(index.stats().reuseRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void findSimilar_shouldMiss_forDifferentTextOrSender() {
+        // Arrange
+        NearDuplicateIndex index = new NearDuplicateIndex(true, 3, 100, 8);
+        index.remember(email("orders@shop.example", "Заказ 1001 отправлен", TEMPLATE.formatted("Иван", 1001)), "анализ");
+
+        // Act
+        String otherSender = index.findSimilar(email("billing@bank.example", "Заказ 1001 отправлен",
+                TEMPLATE.formatted("Иван", 1001)));
+        String otherText = index.findSimilar(email("orders@shop.example", "Встреча в пятницу",
+                "Коллеги, переносим обсуждение квартального бюджета на пятницу, прошу подготовить цифры по своим отделам."));
+
+        // Assert
+        assertThat(otherSender).isNull();
+        assertThat(otherText).isNull();
+        assertThat(index.stats().missed()).isEqualTo(2);
+        assertThat(index.stats().reuseRate()).isZero();
+    }
+
+    @Test
+    void findSimilar_shouldMiss_forOtherAddressOfSameDomain() {
+        // Arrange
+        NearDuplicateIndex index = new NearDuplicateIndex(true, 3, 100, 8);
+        index.remember(email("Магазин <Orders@Shop.example>", "Заказ 1001 отправлен", TEMPLATE.formatted("Иван", 1001)), "анализ");
+
+        // Act
+        String sameAddress = index.findSimilar(email("orders@shop.example", "Заказ 2002 отправлен",
+                TEMPLATE.formatted("Иван", 2002)));
+        String otherAddress = index.findSimilar(email("fraud@shop.example", "Заказ 2002 отправлен",
+                TEMPLATE.formatted("Иван", 2002)));
+
+        // Assert
+        assertThat(sameAddress).isEqualTo("анализ");
+        assertThat(otherAddress).isNull();
+    }
+
+    @Test
+    void findSimilar_shouldReturnNothing_whenNotEnabled() {
+        // Arrange
+        NearDuplicateIndex index = new NearDuplicateIndex(false, 3, 100, 8);
+        index.remember(email("orders@shop.example", "Заказ 1001 отправлен", TEMPLATE.formatted("Иван", 1001)), "анализ");
+
+        // Act
+        String similar = index.findSimilar(email("orders@shop.example", "Заказ 1001 отправлен",
+                TEMPLATE.formatted("Иван", 1001)));
+
+        // Assert
+        assertThat(index.isEnabled()).isFalse();
+        assertThat(similar).isNull();
+        assertThat(index.stats().entries()).isZero();
+    }
+
+    @Test
+    void findSimilar_shouldIgnoreShortEmails() {
+        // Arrange
+        NearDuplicateIndex index = new NearDuplicateIndex(true, 3, 100, 8);
+        index.remember(email("boss@corp.example", "Ок", "Да, согласен"), "анализ");
+
+        // Act
+        String similar = index.findSimilar(email("boss@corp.example", "Ок", "Да, согласен"));
+
+        // Assert
+        assertThat(similar).isNull();
+        assertThat(index.stats().entries()).isZero();
+    }
+
+    @Test
+    void remember_shouldEvictOldestEntries() {
+        // Arrange
+        NearDuplicateIndex index = new NearDuplicateIndex(true, 3, 1, 8);
+        EmailMessage first = email("orders@shop.example", "Заказ отправлен", TEMPLATE.formatted("Иван", 1));
+        EmailMessage second = email("team@corp.example", "Встреча в пятницу",
+                "Коллеги, переносим обсуждение квартального бюджета на пятницу, прошу подготовить цифры по своим отделам.");
+
+        // Act
+        index.remember(first, "первый");
+        index.remember(second, "второй");
+
+        // Assert
+        assertThat(index.findSimilar(first)).isNull();
+        assertThat(index.findSimilar(second)).isEqualTo("второй");
+        assertThat(index.stats().entries()).isEqualTo(1);
+    }
+
+    private static EmailMessage email(String from, String subject, String body) {
+        EmailMessage email = new EmailMessage();
+        email.setFrom(from);
+        email.setSubject(subject);
+        email.setBody(body);
+        return email;
+    }
+}
@@ -0,0 +1,169 @@
+package normalno.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import normalno.EmailMessage;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RuleBasedClassifierTest {
+
+    private final RuleBasedClassifier classifier = new RuleBasedClassifier();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void classify_shouldProduceModelShapedJson_forNewsletterWithListHeaders() throws Exception {
+        // Arrange
+        EmailMessage email = email("Digest <digest@community.example>", "Weekly digest", "Top posts of the week");
+        email.setHeaders(Map.of(
+                "list-unsubscribe", "<https://community.example/unsubscribe>",
+                "list-id", "<digest.community.example>"));
+
+        // Act
+        Optional<String> result = classifier.classify(email);
+
+        // Assert
+        assertThat(result).isPresent();
+        JsonNode analysis = objectMapper.readTree(result.get());
+        assertThat(analysis.fieldNames()).toIterable()
+                .containsExactly("summary", "intent", "tone", "priority", "action");
+        assertThat(analysis.get("intent").asText()).isEqualTo("рассылка");
+        assertThat(analysis.get("priority").asText()).isEqualTo("низкий");
+        assertThat(analysis.get("summary").asText()).contains("Weekly digest");
+    }
+
+    @Test
+    void classify_shouldMarkAutoSubmittedMailAsNotification() throws Exception {
+        // Arrange
+        EmailMessage email = email("CI <builds@ci.example>", "Build #42 passed", "All checks passed");
+        email.setHeaders(Map.of("auto-submitted", "auto-generated", "list-id", "<builds.ci.example>"));
+
+        // Act
+        Optional<String> result = classifier.classify(email);
+
+        // Assert
+        assertThat(result).isPresent();
+        assertThat(objectMapper.readTree(result.get()).get("intent").asText()).isEqualTo("уведомление");
+    }
+
+    @Test
+    void classify_shouldMarkPromoFromBulkDomainAsAdvertising() throws Exception {
+        // Arrange
+        EmailMessage email = email("Shop <hello@em.sendgrid.net>", "Распродажа выходного дня",
+                "Только сегодня скидки и бесплатная доставка");
+
+        // Act
+        Optional<String> result = classifier.classify(email);
+
+        // Assert
+        assertThat(result).isPresent();
+        JsonNode analysis = objectMapper.readTree(result.get());
+        assertThat(analysis.get("intent").asText()).isEqualTo("реклама");
+        assertThat(analysis.get("action").asText()).isEqualTo("проигнорировать");
+    }
+
+    @Test
+    void classify_shouldLeaveAutoSubmittedMailToModel_withoutBulkSignal() {
+        // Arrange
+        EmailMessage email = email("Monitoring <alerts@monitoring.example>", "Disk usage 95% on db-1",
+                "Free space is running out");
+        email.setHeaders(Map.of("auto-submitted", "auto-generated"));
+
+        // Act & Assert
+        assertThat(classifier.classify(email)).isEmpty();
+    }
+
+    @Test
+    void classify_shouldLeaveUrgentMailToModel_evenFromMailingList() {
+        // Arrange
+        EmailMessage email = email("Security <no-reply@bank.example>", "Срочно: вход с нового устройства",
+                "Если это были не вы, заблокируйте карту");
+        email.setHeaders(Map.of("list-unsubscribe", "<mailto:unsubscribe@bank.example>"));
+
+        // Act & Assert
+        assertThat(classifier.classify(email)).isEmpty();
+    }
+
+    @Test
+    void classify_shouldNotTreatInfoAddressAsNoReply() {
+        // Arrange
+        EmailMessage email = email("Ателье <info@atelier.example>", "Скидка на пошив",
+                "Для постоянных клиентов действует акция до конца месяца");
+
+        // Act
+        Optional<String> result = classifier.classify(email);
+
+        // Assert
+        assertThat(result).isEmpty();
+        assertThat(classifier.stats().ruleHits()).doesNotContainKey(RuleBasedClassifier.RULE_NOREPLY_SENDER);
+    }
+
+    @Test
+    void classify_shouldLeavePersonalMailToModel() {
+        // Arrange
+        EmailMessage email = email("Иван <ivan@company.example>", "Транзакция по договору",
+                "Подписка на акции компании оформлена, нужна ваша подпись до пятницы.");
+
+        // Act
+        Optional<String> result = classifier.classify(email);
+
+        // Assert
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    void classify_shouldIgnoreAutoSubmittedNo() {
+        // Arrange
+        EmailMessage email = email("Мария <maria@company.example>", "Отчёт", "Отчёт во вложении");
+        email.setHeaders(Map.of("auto-submitted", "no"));
+
+        // Act & Assert
+        assertThat(classifier.classify(email)).isEmpty();
+    }
+
+    @Test
+    void stats_shouldCountRuleHitsAndBypassRatio() {
+        // Arrange
+        EmailMessage bulk = email("no-reply@service.example", "Ваш заказ отправлен", "Трек-номер внутри");
+        bulk.setHeaders(Map.of("precedence", "bulk"));
+        EmailMessage personal = email("boss@company.example", "Встреча", "Перенесём на завтра?");
+
+        // Act
+        classifier.classify(bulk);
+        classifier.classify(personal);
+
+        // Assert
+        RuleBasedClassifier.ClassifierStats stats = classifier.stats();
+        assertThat(stats.checked()).isEqualTo(2);
+        assertThat(stats.classified()).isEqualTo(1);
+        assertThat(stats.bypassRatio()).isEqualTo(0.5);
+        assertThat(stats.ruleHits()).containsEntry(RuleBasedClassifier.RULE_PRECEDENCE, 1L)
+                .containsEntry(RuleBasedClassifier.RULE_NOREPLY_SENDER, 1L)
+                .doesNotContainKey(RuleBasedClassifier.RULE_LIST_UNSUBSCRIBE);
+    }
+
+    @Test
+    void classify_shouldDoNothing_whenDisabled() {
+        // Arrange
+        ReflectionTestUtils.setField(classifier, "enabled", false);
+        EmailMessage email = email("no-reply@service.example", "Promo", "Sale");
+        email.setHeaders(Map.of("list-unsubscribe", "<mailto:u@service.example>"));
+
+        // Act & Assert
+        assertThat(classifier.classify(email)).isEmpty();
+        assertThat(classifier.stats().checked()).isZero();
+    }
+
+    private static EmailMessage email(String from, String subject, String body) {
+        EmailMessage email = new EmailMessage();
+        email.setFrom(from);
+        email.setSubject(subject);
+        email.setBody(body);
+        return email;
+    }
+}
@@ -1,5 +1,6 @@
 package normalno.util;
 
+import normalno.EmailMessage;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -11,7 +12,7 @@ class AiAnalysisFormatterTest {
 
     @BeforeEach
     void setUp() {
-        formatter = new AiAnalysisFormatter();
+        formatter = new AiAnalysisFormatter(MailMetrics.noop());
     }
 
     @Test
@@ -192,4 +193,31 @@ class AiAnalysisFormatterTest {
         assertThat(result).contains("средний");
         assertThat(result).contains("прочитать и ответить");
     }
-}
\ No newline at end of file
+
+    @Test
+    void format_shouldUseParsedAnalysis_andKeepModelPriorityWording() {
+        // Arrange
+        EmailMessage email = new EmailMessage();
+        email.setAiAnalysis("{\"summary\":\"Счёт на оплату\",\"priority\":\"Высокий\"}");
+
+        // Act
+        String result = formatter.format(email);
+
+        // Assert
+        assertThat(result).contains("Счёт на оплату", "⚡ Приоритет:\nВысокий");
+        assertThat(formatter.priorityCode(email)).isEqualTo("high");
+        assertThat(formatter.priorityLabel(email)).isEqualTo("Высокий");
+    }
+
+    @Test
+    void format_shouldShowRawText_whenAnalysisFailed() {
+        // Arrange
+        EmailMessage email = new EmailMessage();
+        email.setAiAnalysis("Ошибка анализа письма: timeout");
+
+        // Act & Assert
+        assertThat(formatter.format(email)).isEqualTo("Ошибка анализа письма: timeout");
+        assertThat(formatter.priorityCode(email)).isEqualTo("unknown");
+        assertThat(formatter.priorityLabel(email)).isNull();
+    }
+}
@@ -0,0 +1,204 @@
+package normalno.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EmailBodyPreprocessorTest {
+
+    private final EmailBodyPreprocessor preprocessor = new EmailBodyPreprocessor();
+
+    @Test
+    void prepare_shouldDropQuotedReplyChain() {
+        // Arrange
+        String body = """
+                Да, встреча в 15:00 подходит.
+
+                12.03.2024, 10:15, Иван Петров <ivan@example.com> пишет:
+                > Предлагаю встретиться завтра в 15:00.
+                > Подойдёт?
+                """;
+
+        // Act
+        String result = preprocessor.prepare(body);
+
+        // Assert
+        assertThat(result).isEqualTo("Да, встреча в 15:00 подходит.");
+    }
+
+    @Test
+    void prepare_shouldDropOutlookStyleHistory() {
+        // Arrange
+        String body = """
+                Please see my comments below.
+
+                From: John Smith <john@example.com>
+                Sent: Monday, March 11, 2024 10:00 AM
+                To: Team
+                Subject: Quarterly report
+
+                Old text that the model does not need.
+                """;
+
+        // Act
+        String result = preprocessor.prepare(body);
+
+        // Assert
+        assertThat(result).isEqualTo("Please see my comments below.");
+    }
+
+    @Test
+    void prepare_shouldKeepOwnText_whenLineOnlyLooksLikeQuoteHeader() {
+        // Arrange
+        String body = """
+                Коллеги, пересылаю суть обращения.
+                Клиент пишет:
+                заказ пришёл неполным, не хватает двух коробок.
+                Кому: отделу доставки
+                Дата: до пятницы нужно решение.
+                """;
+
+        // Act
+        String result = preprocessor.prepare(body);
+
+        // Assert
+        assertThat(result).contains("Клиент пишет:", "не хватает двух коробок", "Кому: отделу доставки",
+                "Дата: до пятницы нужно решение.");
+    }
+
+    @Test
+    void prepare_shouldDropQuote_afterMailRuStyleHeader() {
+        // Arrange
+        String body = """
+                Принято, спасибо.
+
+                Вторник, 12 марта 2024, 10:15 +03:00 от Иван Петров <ivan@example.com> написал:
+                Старый текст письма.
+                """;
+
+        // Act
+        String result = preprocessor.prepare(body);
+
+        // Assert
+        assertThat(result).isEqualTo("Принято, спасибо.");
+    }
+
+    @Test
+    void prepare_shouldKeepForwardedText_whenNothingAboveQuote() {
+        // Arrange
+        String body = """
+                -------- Пересылаемое сообщение --------
+                Счёт на оплату во вложении.
+                """;
+
+        // Act
+        String result = preprocessor.prepare(body);
+
+        // Assert
+        assertThat(result).contains("Счёт на оплату во вложении.");
+    }
+
+    @Test
+    void prepare_shouldDropSignatureDisclaimerAndMobileFooter() {
+        // Arrange
+        String body = """
+                Отчёт готов, загрузил в общую папку.
+                Отправлено с iPhone
+
+                С уважением,
+                Мария Иванова
+                Руководитель отдела
+                +7 999 000-00-00
+                """;
+
+        // Act
+        String result = preprocessor.prepare(body);
+
+        // Assert
+        assertThat(result).isEqualTo("Отчёт готов, загрузил в общую папку.");
+    }
+
+    @Test
+    void prepare_shouldCutEverythingAfterSignatureDelimiter() {
+        // Arrange
+        String body = "Short answer: yes.\n-- \nJohn\nCONFIDENTIALITY NOTICE: long legal text";
+
+        // Act
+        String result = preprocessor.prepare(body);
+
+        // Assert
+        assertThat(result).isEqualTo("Short answer: yes.");
+    }
+
+    @Test
+    void prepare_shouldConvertHtmlToText() {
+        // Arrange
+        String body = "<html><head><style>p {color: red}</style></head><body>"
+                + "<p>Привет&nbsp;&amp; добро пожаловать!</p><div>Скидка&nbsp;50&#37;</div>"
+                + "<blockquote>старое письмо</blockquote>"
+                + "<p><a href=\"https://example.com\">Отписаться от рассылки</a></p></body></html>";
+
+        // Act
+        String result = preprocessor.prepare(body);
+
+        // Assert
+        assertThat(result).isEqualTo("Привет & добро пожаловать!\nСкидка 50%");
+    }
+
+    @Test
+    void prepare_shouldReplaceTrackingUrls() {
+        // Arrange
+        String body = "Подробнее: https://click.example.com/track?id=1234567890abcdef&utm_source=mail&utm_campaign=spring";
+
+        // Act
+        String result = preprocessor.prepare(body);
+
+        // Assert
+        assertThat(result).isEqualTo("Подробнее: [ссылка]");
+    }
+
+    @Test
+    void prepare_shouldTruncateToTokenBudget() {
+        // Arrange
+        ReflectionTestUtils.setField(preprocessor, "maxBodyTokens", 50);
+        String body = "word ".repeat(500);
+
+        // Act
+        String result = preprocessor.prepare(body);
+
+        // Assert
+        assertThat(TokenEstimator.estimate(result)).isLessThanOrEqualTo(50);
+        assertThat(result).startsWith("word word").endsWith(EmailBodyPreprocessor.TRUNCATION_MARK);
+        assertThat(result).doesNotContain("wor\n");
+    }
+
+    @Test
+    void prepare_shouldRecordSavedTokens() {
+        // Arrange
+        String body = "Ок.\n\nOn Mon, Mar 11, 2024 at 10:00 AM John <john@example.com> wrote:\n> "
+                + "quoted text ".repeat(100);
+
+        // Act
+        preprocessor.prepare(body);
+
+        // Assert
+        EmailBodyPreprocessor.PreprocessStats stats = preprocessor.stats();
+        assertThat(stats.emails()).isEqualTo(1);
+        assertThat(stats.tokensBefore()).isEqualTo(TokenEstimator.estimate(body));
+        assertThat(stats.tokensAfter()).isEqualTo(TokenEstimator.estimate("Ок."));
+        assertThat(stats.tokensSaved()).isEqualTo(stats.tokensBefore() - stats.tokensAfter());
+    }
+
+    @Test
+    void prepare_shouldReturnBodyAsIs_whenDisabled() {
+        // Arrange
+        ReflectionTestUtils.setField(preprocessor, "enabled", false);
+        String body = "Текст\n> цитата";
+
+        // Act & Assert
+        assertThat(preprocessor.prepare(body)).isEqualTo(body);
+        assertThat(preprocessor.prepare(null)).isNull();
+        assertThat(preprocessor.stats().emails()).isZero();
+    }
+}
@@ -0,0 +1,55 @@
+package normalno.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HtmlTextConverterTest {
+
+    @Test
+    void toText_shouldDropMarkupScriptsAndComments() {
+        // Arrange
+        String html = "<!DOCTYPE html><html><head><title>t</title></head><body>"
+                + "<script>var a = '<p>';</script><!-- <p>скрыто</p> -->"
+                + "<p class=\"x > y\">Первый   абзац</p><div>Второй<br/>строкой</div></body></html>";
+
+        // Act
+        String text = HtmlTextConverter.toText(html);
+
+        // Assert
+        assertThat(text).isEqualTo("Первый абзац\nВторой\nстрокой\n");
+    }
+
+    @Test
+    void toText_shouldDecodeEntities_andKeepUnknownAmpersands() {
+        // Act
+        String text = HtmlTextConverter.toText("<p>A&amp;B &laquo;цитата&raquo; &#8470;&#x31; R&D &foo; 5 < 6</p>");
+
+        // Assert
+        assertThat(text).isEqualTo("A&B «цитата» №1 R&D &foo; 5 < 6\n");
+    }
+
+    @Test
+    void toText_shouldMarkBlockquoteLinesAsQuotes() {
+        // Act
+        String text = HtmlTextConverter.toText("<p>Ок</p><blockquote>старое<br>письмо</blockquote>");
+
+        // Assert
+        assertThat(text).isEqualTo("Ок\n> старое\n> письмо\n");
+    }
+
+    @Test
+    void convert_shouldStopAtLimit_andReportIncompleteInput() throws Exception {
+        // Arrange
+        StringBuilder out = new StringBuilder();
+
+        // Act
+        boolean complete = HtmlTextConverter.convert(new StringReader("<p>" + "слово ".repeat(1000) + "</p>"), out, 50);
+
+        // Assert
+        assertThat(complete).isFalse();
+        assertThat(out.length()).isLessThanOrEqualTo(50);
+    }
+}
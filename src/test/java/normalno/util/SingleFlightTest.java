@@ -0,0 +1,105 @@
+package normalno.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SingleFlightTest {
+
+    @Test
+    void execute_shouldRunOnce_forConcurrentCallsWithSameKey() throws Exception {
+        // Arrange
+        AtomicInteger shared = new AtomicInteger();
+        SingleFlight<String, String> flight = new SingleFlight<>(shared::incrementAndGet);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            // Act
+            Future<String> leader = executor.submit(() -> flight.execute("inbox", () -> {
+                runs.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "window";
+            }));
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+            Future<String> second = executor.submit(() -> flight.execute("inbox", () -> "again"));
+            Future<String> third = executor.submit(() -> flight.execute("inbox", () -> "again"));
+            while (shared.get() < 2) {
+                Thread.onSpinWait();
+            }
+            release.countDown();
+
+            // Assert
+            assertThat(leader.get(5, TimeUnit.SECONDS)).isEqualTo("window");
+            assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("window");
+            assertThat(third.get(5, TimeUnit.SECONDS)).isEqualTo("window");
+            assertThat(runs).hasValue(1);
+            assertThat(flight.inFlight()).isZero();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void claim_shouldShareLeaderResult_andReleaseKeyOnComplete() {
+        // Arrange
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        SingleFlight.Claim<String> leader = flight.claim("inbox");
+
+        // Act
+        SingleFlight.Claim<String> follower = flight.claim("inbox");
+        leader.complete("window");
+
+        // Assert
+        assertThat(leader.leader()).isTrue();
+        assertThat(follower.leader()).isFalse();
+        assertThat(follower.result().join()).isEqualTo("window");
+        assertThat(flight.inFlight()).isZero();
+        assertThat(flight.claim("inbox").leader()).isTrue();
+    }
+
+    @Test
+    void execute_shouldRunAgain_afterPreviousCallCompleted() {
+        // Arrange
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        AtomicInteger runs = new AtomicInteger();
+
+        // Act
+        flight.execute("inbox", runs::incrementAndGet);
+        int second = flight.execute("inbox", runs::incrementAndGet);
+
+        // Assert
+        assertThat(second).isEqualTo(2);
+    }
+
+    @Test
+    void execute_shouldPropagateFailure_andForgetKey() {
+        // Arrange
+        SingleFlight<String, String> flight = new SingleFlight<>();
+
+        // Act & Assert
+        assertThatThrownBy(() -> flight.execute("inbox", () -> {
+            throw new IllegalStateException("IMAP недоступен");
+        })).isInstanceOf(IllegalStateException.class).hasMessage("IMAP недоступен");
+        assertThat(flight.execute("inbox", () -> "ok")).isEqualTo("ok");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package normalno.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenEstimatorTest {
+
+    @Test
+    void estimate_shouldReturnZero_whenTextIsEmpty() {
+        assertThat(TokenEstimator.estimate(null)).isZero();
+        assertThat(TokenEstimator.estimate("")).isZero();
+        assertThat(TokenEstimator.estimate("   \n\t")).isZero();
+    }
+
+    @Test
+    void estimate_shouldCountLatinWordsAndPunctuation() {
+        // "Hello" = 2, "," = 1, "world" = 2, "!" = 1
+        assertThat(TokenEstimator.estimate("Hello, world!")).isEqualTo(6);
+    }
+
+    @Test
+    void estimate_shouldCountCyrillicDenserThanLatin() {
+        int cyrillic = TokenEstimator.estimate("информирование");
+        int latin = TokenEstimator.estimate("informirovanie");
+
+        assertThat(cyrillic).isEqualTo(5);
+        assertThat(latin).isEqualTo(4);
+    }
+
+    @Test
+    void estimate_shouldGrowLinearlyWithText() {
+        int once = TokenEstimator.estimate("Please review this urgent request. ");
+        int tenTimes = TokenEstimator.estimate("Please review this urgent request. ".repeat(10));
+
+        assertThat(tenTimes).isEqualTo(once * 10);
+    }
+}